@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.jtorrent.bencode.BObject.BEncodingException;
 
@@ -38,6 +39,72 @@ public class BByteStringCoder implements IDecode, IEncode {
 		return new BObject(byteSting);
 	}
 
+	/**
+	 * The byte string is not copied - the object holds a slice of the buffer.
+	 */
+	public BObject decode(ByteBuffer in) throws IOException {
+		return new BObject(decodeSlice(in));
+	}
+
+	/**
+	 * @return The byte string as a slice of the buffer.
+	 */
+	ByteBuffer decodeSlice(ByteBuffer in) throws IOException {
+		int length = extractLength(in);
+		ByteBuffer byteString = in.slice();
+		byteString.limit(length);
+		in.position(in.position() + length);
+
+		return byteString;
+	}
+
+	/**
+	 * Decodes a byte string that is used as a string, e.g. the key of a map.
+	 */
+	String decodeString(ByteBuffer in) throws IOException {
+		int length = extractLength(in);
+		String string;
+		if (in.hasArray()) {
+			string = new String(in.array(), in.arrayOffset() + in.position(), length, BObject.BYTE_ENCODING);
+		} else {
+			byte[] bytes = new byte[length];
+			in.duplicate().get(bytes);
+			string = new String(bytes, BObject.BYTE_ENCODING);
+		}
+		in.position(in.position() + length);
+
+		return string;
+	}
+
+	private int extractLength(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			throw new BObject.BEncodingException("unexpected end of buffer");
+		}
+
+		int ch = in.get();
+		if (ch < '0' || ch > '9') {
+			throw new BObject.BEncodingException("expected number, got " + (char) ch);
+		}
+
+		long length = 0;
+		while (ch >= '0' && ch <= '9') {
+			length = length * 10 + ch - '0';
+			if (length > in.remaining() || !in.hasRemaining()) {
+				throw new BObject.BEncodingException("byte string is longer than the data left");
+			}
+			ch = in.get();
+		}
+
+		if ((char) ch != DELIMETER) {
+			throw new BObject.BEncodingException("expected ':', got " + (char) ch);
+		}
+		if (length > in.remaining()) {
+			throw new BObject.BEncodingException("byte string is longer than the data left");
+		}
+
+		return (int) length;
+	}
+
 	private int extractLength(InputStream in) throws IOException {
 		int length = 0;
 		int ch = in.read();
@@ -79,11 +146,16 @@ public class BByteStringCoder implements IDecode, IEncode {
 	}
 
 	public void encode(Object o, OutputStream out) throws IOException {
-		if (!(o instanceof byte[] || o instanceof String)) {
+		if (!(o instanceof byte[] || o instanceof String || o instanceof ByteBuffer)) {
 			throw new BObject.BEncodingException(
 					"encode: BByteStringCoder expected String or byte[], got " + o.getClass().getName());
 		}
 
+		if (o instanceof ByteBuffer) {
+			encode((ByteBuffer) o, out);
+			return;
+		}
+
 		byte[] data;
 		if (o instanceof String) {
 			data = ((String) o).getBytes(BObject.BYTE_ENCODING);
@@ -96,6 +168,18 @@ public class BByteStringCoder implements IDecode, IEncode {
 		out.write(data);
 	}
 
+	private void encode(ByteBuffer data, OutputStream out) throws IOException {
+		out.write(Integer.toString(data.remaining()).getBytes(BObject.BYTE_ENCODING));
+		out.write(DELIMETER);
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			out.write(bytes);
+		}
+	}
+
 	public static void main(String[] args) {
 		BByteStringCoder bsb = BByteStringCoder.instance();
 		try {
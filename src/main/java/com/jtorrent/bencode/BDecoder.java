@@ -1,12 +1,9 @@
 package com.jtorrent.bencode;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
-import org.apache.commons.io.input.AutoCloseInputStream;
-
 public class BDecoder implements IDecode {
 
 	private static BDecoder _instance;
@@ -23,7 +20,25 @@ public class BDecoder implements IDecode {
 	}
 
 	public BObject decode(ByteBuffer in) throws IOException {
-		return decode(new AutoCloseInputStream(new ByteArrayInputStream(in.array())));
+		IDecode decoder = null;
+		switch (first(in)) {
+		case 'i':
+			decoder = BIntegerCoder.instance();
+			break;
+		case 's':
+			decoder = BByteStringCoder.instance();
+			break;
+		case 'l':
+			decoder = BListCoder.instance();
+			break;
+		case 'd':
+			decoder = BMapCoder.instance();
+			break;
+		default:
+			throw new BObject.BEncodingException("unexpected '" + first(in) + "' at " + in.position());
+		}
+
+		return decoder.decode(in);
 	}
 
 	public BObject decode(InputStream in) throws IOException {
@@ -62,6 +77,31 @@ public class BDecoder implements IDecode {
 		return (char) ch;
 	}
 
+	private char first(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			throw new BObject.BEncodingException("cannot decode empty buffer");
+		}
+
+		int ch = in.get(in.position());
+		if (ch >= '0' & ch <= '9') {
+			ch = (int) 's';
+		}
+
+		return (char) ch;
+	}
+
+	public boolean isEndSentinel(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			throw new BObject.BEncodingException("unexpected end of buffer");
+		}
+
+		if (in.get(in.position()) == 'e') {
+			in.get();
+			return true;
+		}
+		return false;
+	}
+
 	public boolean isEndSentinel(InputStream in) throws IOException {
 		in.mark(1);
 		int ch = in.read();
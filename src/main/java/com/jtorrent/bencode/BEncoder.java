@@ -2,6 +2,8 @@ package com.jtorrent.bencode;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +27,7 @@ public class BEncoder implements IEncode {
 		}
 
 		IEncode encoder = null;
-		if (o instanceof String || o instanceof byte[]) {
+		if (o instanceof String || o instanceof byte[] || o instanceof ByteBuffer) {
 			encoder = BByteStringCoder.instance();
 		} else if (o instanceof Number) {
 			encoder = BIntegerCoder.instance();
@@ -39,4 +41,12 @@ public class BEncoder implements IEncode {
 
 		encoder.encode(o, out);
 	}
+
+	/**
+	 * Encodes the value through a {@link BWriter} and writes it to the
+	 * channel. A caller that encodes often keeps its own writer instead.
+	 */
+	public void encode(Object o, WritableByteChannel channel) throws IOException {
+		new BWriter().write(o).writeTo(channel);
+	}
 }
@@ -0,0 +1,46 @@
+package com.jtorrent.bencode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the events of the {@link BParser} as it goes through bencoded
+ * data. Every event has an empty default, so a handler only overrides the
+ * events it cares about. During an event the position of the parsed buffer is
+ * right after the reported item - after a key it is where the value begins.
+ * 
+ * @author Alex
+ *
+ */
+public interface BHandler {
+
+	public default void startDictionary() throws IOException {
+	}
+
+	/**
+	 * The key of the next value in the current dictionary.
+	 */
+	public default void key(String key) throws IOException {
+	}
+
+	public default void endDictionary() throws IOException {
+	}
+
+	public default void startList() throws IOException {
+	}
+
+	public default void endList() throws IOException {
+	}
+
+	public default void integer(long value) throws IOException {
+	}
+
+	/**
+	 * @param value
+	 *            The byte string as a slice of the parsed buffer. It is only
+	 *            to be used for the duration of the call, unless the caller of
+	 *            the parser keeps the buffer as it is.
+	 */
+	public default void byteString(ByteBuffer value) throws IOException {
+	}
+}
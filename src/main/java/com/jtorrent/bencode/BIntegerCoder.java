@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 import com.jtorrent.bencode.BObject.BEncodingException;
 
@@ -45,6 +46,88 @@ public class BIntegerCoder implements IDecode, IEncode {
 		return extractInt(in);
 	}
 
+	/**
+	 * The number is parsed as a long. Only a number that does not fit in a
+	 * long becomes a BigInteger.
+	 */
+	public BObject decode(ByteBuffer in) throws IOException {
+		int start = in.position();
+		try {
+			return new BObject(decodeLong(in));
+		} catch (ArithmeticException e) {
+			in.position(start);
+			return new BObject(decodeBig(in));
+		}
+	}
+
+	/**
+	 * @throws ArithmeticException
+	 *             If the number does not fit in a long.
+	 */
+	long decodeLong(ByteBuffer in) throws IOException, ArithmeticException {
+		int ch = next(in);
+		if (ch != 'i') {
+			throw new BObject.BEncodingException("expected 'i', got " + (char) ch);
+		}
+
+		boolean negative = false;
+		ch = next(in);
+		if (ch == '-') {
+			negative = true;
+			ch = next(in);
+		}
+		if (ch == '0') {
+			if (negative) {
+				throw new BObject.BEncodingException("got negative zero");
+			}
+			ch = next(in);
+			if (ch != 'e') {
+				throw new BObject.BEncodingException("expected 'e' after '0', but got " + (char) ch);
+			}
+			return 0;
+		}
+
+		long value = 0;
+		int digits = 0;
+		while (ch >= '0' && ch <= '9') {
+			value = Math.addExact(Math.multiplyExact(value, 10), ch - '0');
+			digits++;
+			ch = next(in);
+		}
+
+		if (digits == 0 || ch != 'e') {
+			throw new BObject.BEncodingException("expected 'e' after number, got " + (char) ch);
+		}
+
+		return negative ? -value : value;
+	}
+
+	private BigInteger decodeBig(ByteBuffer in) throws IOException {
+		in.get();
+		StringBuilder buff = new StringBuilder();
+		int ch = next(in);
+		while (ch == '-' || (ch >= '0' && ch <= '9')) {
+			buff.append((char) ch);
+			if (buff.length() > MAX_SIZE) {
+				throw new BObject.BEncodingException("number is longer than " + MAX_SIZE + " digits");
+			}
+			ch = next(in);
+		}
+
+		if (ch != 'e') {
+			throw new BObject.BEncodingException("expected 'e' after number, got " + (char) ch);
+		}
+		try {
+			return new BigInteger(buff.toString());
+		} catch (NumberFormatException e) {
+			throw new BObject.BEncodingException("invalid number " + buff);
+		}
+	}
+
+	private int next(ByteBuffer in) {
+		return in.hasRemaining() ? in.get() & 0xFF : -1;
+	}
+
 	private boolean isZero(InputStream in) throws IOException {
 		in.mark(2);
 		int ch = in.read();
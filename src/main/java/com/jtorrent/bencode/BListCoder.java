@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class BListCoder implements IDecode, IEncode {
@@ -41,6 +42,21 @@ public class BListCoder implements IDecode, IEncode {
 		return new BObject(list);
 	}
 
+	public BObject decode(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining() || in.get() != 'l') {
+			throw new BObject.BEncodingException("expected 'l' at " + (in.position() - 1));
+		}
+
+		List<BObject> list = new ArrayList<BObject>();
+
+		BDecoder bdecoder = BDecoder.instance();
+		while (!bdecoder.isEndSentinel(in)) {
+			list.add(bdecoder.decode(in));
+		}
+
+		return new BObject(list);
+	}
+
 	@SuppressWarnings("unchecked")
 	public void encode(Object o, OutputStream out) throws IOException {
 		if (!(o instanceof List)) {
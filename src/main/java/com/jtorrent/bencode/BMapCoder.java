@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -51,6 +52,25 @@ public class BMapCoder implements IDecode, IEncode {
 		return new BObject(map);
 	}
 
+	@Override
+	public BObject decode(ByteBuffer in) throws IOException {
+		if (!in.hasRemaining() || in.get() != 'd') {
+			throw new BObject.BEncodingException("expected 'd' at " + (in.position() - 1));
+		}
+
+		Map<String, BObject> map = new HashMap<String, BObject>();
+
+		BDecoder bdecoder = BDecoder.instance();
+		BByteStringCoder keyDecoder = BByteStringCoder.instance();
+		while (!bdecoder.isEndSentinel(in)) {
+			String key = keyDecoder.decodeString(in);
+			BObject value = bdecoder.decode(in);
+			map.put(key, value);
+		}
+
+		return new BObject(map);
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public void encode(Object o, OutputStream out) throws IOException {
@@ -3,6 +3,7 @@ package com.jtorrent.bencode;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -17,6 +18,14 @@ public class BObject {
 		_bobj = bytes;
 	}
 
+	/**
+	 * The byte string is kept as the remaining bytes of the buffer, which is
+	 * not copied.
+	 */
+	public BObject(ByteBuffer bytes) {
+		_bobj = bytes;
+	}
+
 	public BObject(String str) throws UnsupportedEncodingException {
 		_bobj = str.getBytes("UTF-8");
 	}
@@ -26,11 +35,11 @@ public class BObject {
 	}
 
 	public BObject(int intNum) {
-		_bobj = new Integer(intNum);
+		_bobj = Integer.valueOf(intNum);
 	}
 
 	public BObject(long longNum) {
-		_bobj = new Long(longNum);
+		_bobj = Long.valueOf(longNum);
 	}
 
 	public BObject(Number num) {
@@ -55,6 +64,10 @@ public class BObject {
 
 	public String asString(String encoding) throws BEncodingException {
 		try {
+			if (_bobj instanceof ByteBuffer && ((ByteBuffer) _bobj).hasArray()) {
+				ByteBuffer bytes = (ByteBuffer) _bobj;
+				return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), encoding);
+			}
 			return new String(asBytes(), encoding);
 		} catch (ClassCastException cce) {
 			throw new BEncodingException(cce.toString());
@@ -67,6 +80,11 @@ public class BObject {
 		try {
 			if (_bobj instanceof BigInteger) {
 				return ((BigInteger) _bobj).toString().getBytes();
+			} else if (_bobj instanceof ByteBuffer) {
+				ByteBuffer bytes = ((ByteBuffer) _bobj).duplicate();
+				byte[] copy = new byte[bytes.remaining()];
+				bytes.get(copy);
+				return copy;
 			} else {
 				return (byte[]) _bobj;
 			}
@@ -75,6 +93,17 @@ public class BObject {
 		}
 	}
 
+	/**
+	 * @return The byte string without copying it. The buffer shares its
+	 *         content with the decoded data.
+	 */
+	public ByteBuffer asByteBuffer() throws BEncodingException {
+		if (_bobj instanceof ByteBuffer) {
+			return ((ByteBuffer) _bobj).duplicate();
+		}
+		return ByteBuffer.wrap(asBytes());
+	}
+
 	public Number asNumber() throws BEncodingException {
 		try {
 			return (Number) _bobj;
@@ -0,0 +1,112 @@
+package com.jtorrent.bencode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Goes through bencoded data and reports what it finds to a {@link BHandler},
+ * without building a tree of {@link BObject}s. The caller picks out the values
+ * it needs as they are reported, so the memory used does not grow with the
+ * size of the data - only with how deep the lists and dictionaries are
+ * nested, which is limited to {@link #MAX_DEPTH}.
+ * </p>
+ * <p>
+ * The byte strings are reported as slices of the buffer and the integers as
+ * primitive longs.
+ * </p>
+ * 
+ * @author Alex
+ *
+ */
+public class BParser {
+
+	public static final int MAX_DEPTH = 64;
+
+	private static final byte DICTIONARY = 'd';
+	private static final byte LIST = 'l';
+
+	private static BParser _instance;
+
+	private BParser() {
+	}
+
+	public static BParser instance() {
+		if (_instance == null) {
+			_instance = new BParser();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Parses the value that starts at the position of the buffer. The position
+	 * is moved past the value.
+	 * 
+	 * @param in
+	 *            The bencoded data.
+	 * @param handler
+	 *            Receives the events.
+	 * @throws IOException
+	 *             If the data is not valid bencode, or the handler fails.
+	 */
+	public void parse(ByteBuffer in, BHandler handler) throws IOException {
+		BByteStringCoder byteStringCoder = BByteStringCoder.instance();
+		BIntegerCoder integerCoder = BIntegerCoder.instance();
+		byte[] containers = new byte[MAX_DEPTH];
+		int depth = 0;
+		do {
+			if (!in.hasRemaining()) {
+				throw new BObject.BEncodingException("unexpected end of buffer");
+			}
+
+			int ch = in.get(in.position());
+			if (depth > 0 && ch == 'e') {
+				in.get();
+				if (containers[--depth] == DICTIONARY) {
+					handler.endDictionary();
+				} else {
+					handler.endList();
+				}
+				continue;
+			}
+
+			// Every value of a dictionary is preceded by its key.
+			if (depth > 0 && containers[depth - 1] == DICTIONARY) {
+				handler.key(byteStringCoder.decodeString(in));
+				if (!in.hasRemaining()) {
+					throw new BObject.BEncodingException("unexpected end of buffer");
+				}
+				ch = in.get(in.position());
+			}
+
+			switch (ch) {
+			case DICTIONARY:
+			case LIST:
+				if (depth == MAX_DEPTH) {
+					throw new BObject.BEncodingException("nested deeper than " + MAX_DEPTH);
+				}
+				in.get();
+				containers[depth++] = (byte) ch;
+				if (ch == DICTIONARY) {
+					handler.startDictionary();
+				} else {
+					handler.startList();
+				}
+				break;
+			case 'i':
+				try {
+					handler.integer(integerCoder.decodeLong(in));
+				} catch (ArithmeticException e) {
+					throw new BObject.BEncodingException("number at " + in.position() + " does not fit in a long");
+				}
+				break;
+			default:
+				if (ch < '0' || ch > '9') {
+					throw new BObject.BEncodingException("unexpected '" + (char) ch + "' at " + in.position());
+				}
+				handler.byteString(byteStringCoder.decodeSlice(in));
+			}
+		} while (depth > 0);
+	}
+}
@@ -0,0 +1,276 @@
+package com.jtorrent.bencode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * <p>
+ * Encodes values into a buffer that grows as needed and is kept between uses,
+ * so encoding does not allocate once the buffer is large enough. The numbers
+ * and the length prefixes are written digit by digit and ASCII strings
+ * character by character, without going through intermediate strings or
+ * arrays.
+ * </p>
+ * <p>
+ * The keys of a {@link SortedMap} in the natural order are taken as they come.
+ * The keys of other maps, including the sorted maps with a comparator of their
+ * own, are sorted first, so a dictionary is always written in the canonical
+ * order.
+ * </p>
+ * <p>
+ * A writer is not thread-safe.
+ * </p>
+ * 
+ * @author Alex
+ *
+ */
+public class BWriter {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The number of digits of Long.MIN_VALUE with its sign.
+	 */
+	private static final int MAX_LONG_LENGTH = 20;
+
+	private ByteBuffer _buffer;
+
+	public BWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public BWriter(int capacity) {
+		_buffer = ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Encodes a value after the ones that have already been written.
+	 * 
+	 * @param o
+	 *            A {@link BObject}, String, byte[], ByteBuffer, an integral
+	 *            Number, List or Map.
+	 * @return The writer.
+	 * @throws BObject.BEncodingException
+	 *             If the value, or a value in it, cannot be bencoded - e.g. a
+	 *             Double, which is not an integer.
+	 */
+	@SuppressWarnings("unchecked")
+	public BWriter write(Object o) throws BObject.BEncodingException {
+		if (o instanceof BObject) {
+			o = ((BObject) o).asObject();
+		}
+
+		if (o instanceof String) {
+			writeString((String) o);
+		} else if (o instanceof byte[]) {
+			writeBytes((byte[]) o);
+		} else if (o instanceof ByteBuffer) {
+			writeBytes((ByteBuffer) o);
+		} else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			writeInteger(((Number) o).longValue());
+		} else if (o instanceof BigInteger) {
+			writeBigInteger((BigInteger) o);
+		} else if (o instanceof List) {
+			writeList((List<Object>) o);
+		} else if (o instanceof Map) {
+			writeMap((Map<String, Object>) o);
+		} else if (o instanceof Number) {
+			throw new BObject.BEncodingException("not an integer: " + o);
+		} else {
+			throw new BObject.BEncodingException("unsupported type " + (o == null ? null : o.getClass()));
+		}
+		return this;
+	}
+
+	public BWriter writeInteger(long value) {
+		ensureRemaining(MAX_LONG_LENGTH + 2);
+		_buffer.put((byte) 'i');
+		putLong(value);
+		_buffer.put((byte) 'e');
+		return this;
+	}
+
+	public BWriter writeBytes(byte[] bytes) {
+		writeLength(bytes.length);
+		ensureRemaining(bytes.length);
+		_buffer.put(bytes);
+		return this;
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer. Its position is not moved.
+	 */
+	public BWriter writeBytes(ByteBuffer bytes) {
+		writeLength(bytes.remaining());
+		ensureRemaining(bytes.remaining());
+		_buffer.put(bytes.duplicate());
+		return this;
+	}
+
+	/**
+	 * Writes the string in {@link BObject#BYTE_ENCODING}.
+	 */
+	public BWriter writeString(String string) throws BObject.BEncodingException {
+		int length = string.length();
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) >= 0x80) {
+				try {
+					return writeBytes(string.getBytes(BObject.BYTE_ENCODING));
+				} catch (UnsupportedEncodingException e) {
+					throw new InternalError(e.toString());
+				}
+			}
+		}
+
+		// Plain ASCII is the same in UTF-8.
+		writeLength(length);
+		ensureRemaining(length);
+		for (int i = 0; i < length; i++) {
+			_buffer.put((byte) string.charAt(i));
+		}
+		return this;
+	}
+
+	public BWriter startList() {
+		ensureRemaining(1);
+		_buffer.put((byte) 'l');
+		return this;
+	}
+
+	public BWriter startDictionary() {
+		ensureRemaining(1);
+		_buffer.put((byte) 'd');
+		return this;
+	}
+
+	/**
+	 * Ends the current list or dictionary.
+	 */
+	public BWriter end() {
+		ensureRemaining(1);
+		_buffer.put((byte) 'e');
+		return this;
+	}
+
+	private void writeBigInteger(BigInteger number) {
+		byte[] digits = number.toString().getBytes();
+		ensureRemaining(digits.length + 2);
+		_buffer.put((byte) 'i');
+		_buffer.put(digits);
+		_buffer.put((byte) 'e');
+	}
+
+	private void writeList(List<Object> list) throws BObject.BEncodingException {
+		startList();
+		for (Object value : list) {
+			write(value);
+		}
+		end();
+	}
+
+	private void writeMap(Map<String, Object> map) throws BObject.BEncodingException {
+		startDictionary();
+		if (map instanceof SortedMap && ((SortedMap<String, Object>) map).comparator() == null) {
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				writeString(entry.getKey());
+				write(entry.getValue());
+			}
+		} else {
+			String[] keys = map.keySet().toArray(new String[map.size()]);
+			Arrays.sort(keys);
+			for (String key : keys) {
+				writeString(key);
+				write(map.get(key));
+			}
+		}
+		end();
+	}
+
+	private void writeLength(int length) {
+		ensureRemaining(MAX_LONG_LENGTH + 1);
+		putLong(length);
+		_buffer.put((byte) ':');
+	}
+
+	/**
+	 * Writes the decimal digits of the value, most significant first.
+	 */
+	private void putLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			_buffer.put("-9223372036854775808".getBytes());
+			return;
+		}
+		if (value < 0) {
+			_buffer.put((byte) '-');
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+			digits++;
+		}
+		int end = _buffer.position() + digits;
+		for (int i = end - 1; i >= _buffer.position(); i--) {
+			_buffer.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		_buffer.position(end);
+	}
+
+	private void ensureRemaining(int length) {
+		if (_buffer.remaining() >= length) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(_buffer.capacity() * 2, _buffer.position() + length));
+		_buffer.flip();
+		buffer.put(_buffer);
+		_buffer = buffer;
+	}
+
+	/**
+	 * @return The encoded bytes. The buffer shares its content with the
+	 *         writer and is only valid until the writer is used again.
+	 */
+	public ByteBuffer getEncoded() {
+		ByteBuffer encoded = _buffer.duplicate();
+		encoded.flip();
+		return encoded;
+	}
+
+	/**
+	 * @return The number of bytes written.
+	 */
+	public int size() {
+		return _buffer.position();
+	}
+
+	/**
+	 * Writes out the encoded bytes.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer encoded = getEncoded();
+		while (encoded.hasRemaining()) {
+			channel.write(encoded);
+		}
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(_buffer.array(), _buffer.arrayOffset(), _buffer.position());
+	}
+
+	/**
+	 * Forgets what has been written. The buffer is kept for the next values.
+	 */
+	public void clear() {
+		_buffer.clear();
+	}
+}
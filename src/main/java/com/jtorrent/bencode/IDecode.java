@@ -2,6 +2,7 @@ package com.jtorrent.bencode;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public interface IDecode {
 
@@ -15,4 +16,17 @@ public interface IDecode {
 	 * @throws IOException
 	 */
 	public BObject decode(InputStream in) throws IOException;
+	
+	/**
+	 * Decodes the value that starts at the position of the buffer. The
+	 * position is moved past the value. Nothing beyond the limit of the buffer
+	 * is read.
+	 * 
+	 * @param in
+	 *            The buffer from which the data is decoded.
+	 * @return BObject representation of the decoded value. The byte strings in
+	 *         it are slices of the buffer rather than copies.
+	 * @throws IOException
+	 */
+	public BObject decode(ByteBuffer in) throws IOException;
 }
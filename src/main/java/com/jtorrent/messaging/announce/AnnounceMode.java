@@ -0,0 +1,23 @@
+package com.jtorrent.messaging.announce;
+
+/**
+ * Determines which trackers an announce goes to.
+ *
+ * @author Alex
+ *
+ */
+public enum AnnounceMode {
+	/**
+	 * A single tracker is queried at a time. The next tracker is tried only
+	 * after the current one has failed, as described in BEP #12.
+	 */
+	SEQUENTIAL,
+	/**
+	 * All the tiers are queried at the same time. Within a tier the trackers
+	 * are tried from the healthiest one until one of them answers, each with
+	 * its own timeout. The peers of all the responses are merged.
+	 */
+	ALL_TIERS;
+
+	public static final AnnounceMode DEFAULT = ALL_TIERS;
+}
@@ -0,0 +1,287 @@
+package com.jtorrent.messaging.announce;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * AnnounceScheduler times the announces of all the torrent sessions in the
+ * client. The timeouts are kept in a hashed timer wheel - a ring of slots
+ * which a single thread visits one per tick. A timeout goes into the slot of
+ * its deadline and counts the number of whole turns of the wheel it still has
+ * to wait, so adding and cancelling a timeout is cheap no matter how many
+ * timeouts are pending.
+ * </p>
+ * <p>
+ * Expired timeouts are run by a small pool of threads, so the number of
+ * threads does not grow with the number of torrents. The queries to the
+ * trackers, which can block for as long as the tracker timeout, run in a
+ * separate pool. That pool is bounded as well - the queries beyond its size
+ * wait in a queue - and its threads go away when they are idle.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class AnnounceScheduler {
+
+	private static final Logger _logger = LoggerFactory.getLogger(AnnounceScheduler.class);
+
+	/**
+	 * The resolution of the wheel. The trackers count the intervals in
+	 * seconds, so a finer one is of no use.
+	 */
+	public static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	/**
+	 * The number of slots in the wheel. Must be a power of 2.
+	 */
+	public static final int WHEEL_SIZE = 512;
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUERY_THREADS = 16;
+	private static final long QUERY_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+	private static final AnnounceScheduler INSTANCE = new AnnounceScheduler(DEFAULT_THREADS);
+
+	private final Set<Timeout>[] _wheel;
+	private final int _mask;
+	private final long _tickNanos;
+	/**
+	 * The timeouts are added and removed by the thread of the wheel only. The
+	 * other threads queue them here.
+	 */
+	private final Queue<Timeout> _added;
+	private final Queue<Timeout> _cancelled;
+	private final ExecutorService _executor;
+	private final ExecutorService _queryExecutor;
+
+	private Thread _worker;
+	private long _startTime;
+
+	public AnnounceScheduler(int threads) {
+		this(threads, DEFAULT_QUERY_THREADS);
+	}
+
+	/**
+	 * @param threads
+	 *            The number of threads that run the expired timeouts.
+	 * @param queryThreads
+	 *            The most trackers that are queried at the same time.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public AnnounceScheduler(int threads, int queryThreads) {
+		if (threads <= 0 || queryThreads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads + ", " + queryThreads);
+		}
+
+		_wheel = new Set[WHEEL_SIZE];
+		for (int i = 0; i < _wheel.length; i++) {
+			_wheel[i] = new HashSet<Timeout>();
+		}
+		_mask = WHEEL_SIZE - 1;
+		_tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		_added = new ConcurrentLinkedQueue<Timeout>();
+		_cancelled = new ConcurrentLinkedQueue<Timeout>();
+		_executor = Executors.newFixedThreadPool(threads, daemonThreads("jtorrent-announce"));
+		ThreadPoolExecutor queryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads,
+				QUERY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				daemonThreads("jtorrent-tracker"));
+		queryExecutor.allowCoreThreadTimeOut(true);
+		_queryExecutor = queryExecutor;
+	}
+
+	/**
+	 * @return The scheduler shared by all the torrent sessions.
+	 */
+	public static AnnounceScheduler instance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Runs the task once the delay has passed. The delay is rounded up to the
+	 * next tick.
+	 *
+	 * @param task
+	 *            The task, run by the threads of the scheduler.
+	 * @param delayMillis
+	 *            The delay in milliseconds.
+	 * @return The timeout of the task.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		ensureStarted();
+		Timeout timeout = new Timeout(task,
+				System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+		_added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Runs the task by the threads of the scheduler right away.
+	 */
+	public Future<?> submit(Runnable task) {
+		return _executor.submit(task);
+	}
+
+	/**
+	 * @return The pool in which the trackers are queried.
+	 */
+	public ExecutorService getQueryExecutor() {
+		return _queryExecutor;
+	}
+
+	private synchronized void ensureStarted() {
+		if (_worker != null) {
+			return;
+		}
+
+		_startTime = System.nanoTime();
+		_worker = new Thread(this::turn, "jtorrent-announce-timer");
+		_worker.setDaemon(true);
+		_worker.start();
+	}
+
+	/**
+	 * The loop of the wheel thread.
+	 */
+	private void turn() {
+		long tick = 0;
+		while (true) {
+			long sleep = _startTime + (tick + 1) * _tickNanos - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					// The wheel is never stopped - the thread is a daemon.
+					continue;
+				}
+			}
+
+			removeCancelled();
+			addQueued(tick);
+			expire(_wheel[(int) (tick & _mask)]);
+			tick++;
+		}
+	}
+
+	private void addQueued(long tick) {
+		Timeout timeout;
+		while ((timeout = _added.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+
+			// A slot is visited at the end of its tick. The timeouts whose
+			// deadlines have already passed go into the current slot and
+			// expire right away.
+			long deadlineTick = Math.max(tick, (timeout._deadline - _startTime) / _tickNanos);
+			timeout._remainingRounds = (deadlineTick - tick) / WHEEL_SIZE;
+			timeout._slot = _wheel[(int) (deadlineTick & _mask)];
+			timeout._slot.add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = _cancelled.poll()) != null) {
+			if (timeout._slot != null) {
+				timeout._slot.remove(timeout);
+			}
+		}
+	}
+
+	private void expire(Set<Timeout> slot) {
+		for (Iterator<Timeout> it = slot.iterator(); it.hasNext();) {
+			Timeout timeout = it.next();
+			if (timeout._remainingRounds > 0) {
+				timeout._remainingRounds--;
+				continue;
+			}
+
+			it.remove();
+			if (timeout._state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+				try {
+					_executor.execute(timeout._task);
+				} catch (RuntimeException e) {
+					_logger.warn("could not run an announce: {}", e.toString());
+				}
+			}
+		}
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * A task waiting in the wheel.
+	 *
+	 * @author Alex
+	 *
+	 */
+	public class Timeout {
+		private static final int PENDING = 0;
+		private static final int EXPIRED = 1;
+		private static final int CANCELLED = 2;
+
+		private final Runnable _task;
+		/**
+		 * In the time of {@link System#nanoTime()}.
+		 */
+		private final long _deadline;
+		private final AtomicInteger _state;
+		// Accessed by the wheel thread only.
+		private long _remainingRounds;
+		private Set<Timeout> _slot;
+
+		private Timeout(Runnable task, long deadline) {
+			_task = task;
+			_deadline = deadline;
+			_state = new AtomicInteger(PENDING);
+		}
+
+		/**
+		 * @return <b>true</b> if the task will not be run because of the call,
+		 *         <b>false</b> if it has already been run or cancelled.
+		 */
+		public boolean cancel() {
+			if (!_state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+
+			_cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return _state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return _state.get() == EXPIRED;
+		}
+
+		/**
+		 * @return The time left until the task is run, in milliseconds.
+		 */
+		public long getDelayMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(_deadline - System.nanoTime());
+		}
+	}
+}
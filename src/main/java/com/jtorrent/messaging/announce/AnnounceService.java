@@ -1,67 +1,173 @@
 package com.jtorrent.messaging.announce;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jtorrent.messaging.common.TierManager;
+import com.jtorrent.messaging.common.TrackerClient;
 import com.jtorrent.torrent.TorrentSession;
 
-// FIXME - add class comment
+/**
+ * <p>
+ * Announces the torrent of a session to its trackers. The first announce
+ * sends the "started" event so that the client receives the list of peers.
+ * After that the trackers are kept updated about the usage of the torrent at
+ * the interval they have asked for.
+ * </p>
+ * <p>
+ * The service has no thread of its own - the announces of all the sessions are
+ * timed by the shared {@link AnnounceScheduler}. Every announce is delayed by
+ * a small random amount, so the torrents started together do not keep
+ * announcing together.
+ * </p>
+ * <p>
+ * When all the tiers are announced to, no thread waits for the trackers. The
+ * queries run in the bounded query pool of the scheduler, a tracker that has
+ * not answered in time is given up on by a timeout of the wheel, and the
+ * merged response is handled by the scheduler once every tier is done.
+ * </p>
+ * 
+ * @author Alex
+ *
+ */
 public class AnnounceService {
 
 	private static final Logger _logger = LoggerFactory.getLogger(AnnounceService.class);
 	
+	/**
+	 * How long a single tracker is waited for when all the tiers are
+	 * announced to.
+	 */
+	public static final long DEFAULT_TRACKER_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	/**
+	 * The interval in seconds until the first tracker has answered.
+	 */
+	public static final int DEFAULT_RETRY_INTERVAL = 10;
+	/**
+	 * How soon an emergency announce may follow the previous announce, in
+	 * seconds, if the tracker has not given a minimum interval.
+	 */
+	public static final int DEFAULT_MIN_INTERVAL = 30;
+	/**
+	 * The largest delay added to an interval, as a part of the interval.
+	 */
+	public static final double INTERVAL_JITTER = 0.1;
+	/**
+	 * How long stopping the service waits for the "stopped" announce.
+	 */
+	private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	
 	private final TorrentSession _session;
 	private final TierManager _tierManager;
-	private ExecutorService _announceService;
-	private BlockingQueue<TrackerRequestEvent> _emergencyQueue;
+	private final AnnounceScheduler _scheduler;
+	private volatile AnnounceMode _announceMode;
+	private volatile long _trackerTimeout;
 
 	/**
 	 * Interval in seconds that the client should wait between sending regular
 	 * requests to the tracker.
 	 */
-	private int _trackerInterval;
-	private boolean _stop;
+	private volatile int _trackerInterval;
+	/**
+	 * The tracker asks not to be announced to more often than that, in
+	 * seconds.
+	 */
+	private int _minInterval;
+	private volatile boolean _stop;
+	private boolean _started;
+	/**
+	 * Incremented whenever the service is started or stopped, so that an
+	 * announce scheduled before that is dropped.
+	 */
+	private long _generation;
+	private TrackerRequestEvent _nextEvent;
+	private AnnounceScheduler.Timeout _nextAnnounce;
+	private boolean _announcing;
 	/**
-	 * When the service is forcefully stopped - a STOP message needs to be sent
-	 * to the tracker.
+	 * The thread that is announcing to a single tracker, if any.
 	 */
-	private boolean _hardStop;
+	private Thread _announcer;
+	/**
+	 * The tracker queries in progress when all the tiers are announced to.
+	 */
+	private final Set<Future<?>> _queries;
+	private long _lastAnnounce;
 
 	public AnnounceService(TorrentSession session) {
+		this(session, AnnounceScheduler.instance());
+	}
+
+	public AnnounceService(TorrentSession session, AnnounceScheduler scheduler) {
 		_session = session;
 		_tierManager = new TierManager(session);		
-		_emergencyQueue = new LinkedBlockingQueue<TrackerRequestEvent>();
+		_scheduler = scheduler;
+		_announceMode = AnnounceMode.DEFAULT;
+		_trackerTimeout = DEFAULT_TRACKER_TIMEOUT_MILLIS;
+		_queries = ConcurrentHashMap.newKeySet();
 	}
 
 	public TierManager getTierManager() {
 		return _tierManager;
 	}
 	
-	public void start() {
+	public synchronized void start() {
 		_stop = false;
-		_hardStop = false;
-		_announceService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
-				new LinkedBlockingQueue<Runnable>());
-		if (!_tierManager.getTierList().isEmpty() && (!_announceService.isShutdown() && !_announceService.isTerminated()
-				&& ((ThreadPoolExecutor) _announceService).getActiveCount() == 0)) {
-			_announceService.execute(new AnnounceTask());
+		_generation++;
+		_trackerInterval = DEFAULT_RETRY_INTERVAL;
+		_minInterval = 0;
+		_lastAnnounce = 0;
+		_announcing = false;
+		_nextEvent = TrackerRequestEvent.STARTED;
+		_started = !_tierManager.getTierList().isEmpty();
+		if (_started) {
+			scheduleAnnounce(0);
 		}
 	}
 
+	/**
+	 * Stops announcing. An announce that is in progress is interrupted.
+	 * 
+	 * @param shouldHardStop
+	 *            If <b>true</b> the trackers are told that the client has
+	 *            stopped downloading the torrent. The call waits a few seconds
+	 *            for that.
+	 */
 	public void stop(boolean shouldHardStop) throws InterruptedException {
-		_stop = true;
-		_hardStop = shouldHardStop;
-		if (_announceService != null &&
-				!_announceService.isShutdown() &&
-				!_announceService.isTerminated() &&
-				((ThreadPoolExecutor) _announceService).getActiveCount() != 0) {
-			_announceService.shutdownNow();
-			_announceService.awaitTermination(5, TimeUnit.SECONDS);
-			_announceService = null;
+		synchronized (this) {
+			_stop = true;
+			_generation++;
+			if (_nextAnnounce != null) {
+				_nextAnnounce.cancel();
+				_nextAnnounce = null;
+			}
+			if (_announcer != null) {
+				_announcer.interrupt();
+			}
+			cancelQueries();
+			if (!_started) {
+				return;
+			}
+			_started = false;
+		}
+
+		if (shouldHardStop) {
+			Future<?> stopRequest = AnnounceMode.ALL_TIERS.equals(_announceMode)
+					? announceToAllTiers(TrackerRequestEvent.STOPPED)
+					: _scheduler.submit(this::sendStopRequest);
+			try {
+				stopRequest.get(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException | TimeoutException e) {
+				stopRequest.cancel(true);
+				cancelQueries();
+				_logger.debug("could not send the stop announce: {}", e.toString());
+			}
 		}
 	}
 	
@@ -78,110 +184,314 @@ public class AnnounceService {
 		return _trackerInterval;
 	}
 
+	/**
+	 * @param trackerInterval
+	 *            The interval in seconds, used from the next announce on.
+	 */
 	public void setTrackerInterval(int trackerInterval) {
-		if(_trackerInterval <= 0) {
-			try {
-				stop(true);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
 		this._trackerInterval = trackerInterval;
 	}
 	
+	public AnnounceMode getAnnounceMode() {
+		return _announceMode;
+	}
+
+	public void setAnnounceMode(AnnounceMode announceMode) {
+		_announceMode = announceMode;
+	}
+
+	public long getTrackerTimeout() {
+		return _trackerTimeout;
+	}
+
+	/**
+	 * @param trackerTimeout
+	 *            How long a single tracker is waited for when all the tiers
+	 *            are announced to, in milliseconds.
+	 */
+	public void setTrackerTimeout(long trackerTimeout) {
+		_trackerTimeout = trackerTimeout;
+	}
+	
 	public void sendCompletedMessage() throws AnnounceException, IOException {
+		if (AnnounceMode.ALL_TIERS.equals(_announceMode)) {
+			// The trackers are not waited for.
+			announceToAllTiers(TrackerRequestEvent.COMPLETED);
+			return;
+		}
 		_tierManager.provideTrackerClient().queryTracker(TrackerRequestEvent.COMPLETED);
 	}
 	
 	/**
-	 * Used to ask the tracker for an update peer list.
-	 * @throws InterruptedException
+	 * Announces to every tier at the same time. Within a tier the trackers
+	 * are queried one at a time, from the healthiest, until one of them
+	 * answers. No thread waits for the trackers.
+	 * 
+	 * @param event
+	 *            The event to announce.
+	 * @return The future of the merged responses of the tiers. It completes
+	 *         with <b>null</b> if no tracker has answered.
 	 */
-	public void sendEmergencyTrackerRequest() throws InterruptedException {
-		// If there is already an emergency request, then there is not need to 
-		// send more.
-		if(!_emergencyQueue.isEmpty()) {
-			return;
+	private CompletableFuture<MergedTrackerResponseMessage> announceToAllTiers(TrackerRequestEvent event) {
+		List<CompletableFuture<TrackerResponseMessage>> tiers = new ArrayList<CompletableFuture<TrackerResponseMessage>>();
+		for (int tier = 0; tier < _tierManager.getTierList().size(); tier++) {
+			tiers.add(announceToTier(tier, event));
 		}
-		_emergencyQueue.put(TrackerRequestEvent.NONE);
+
+		return CompletableFuture.allOf(tiers.toArray(new CompletableFuture<?>[tiers.size()])).thenApply(done -> {
+			List<TrackerResponseMessage> responses = new ArrayList<TrackerResponseMessage>();
+			for (CompletableFuture<TrackerResponseMessage> tier : tiers) {
+				responses.add(tier.join());
+			}
+
+			MergedTrackerResponseMessage merged = MergedTrackerResponseMessage.merge(responses);
+			_logger.debug("Announced {} to {} tiers: {}", event, tiers.size(), merged);
+			return merged;
+		});
+	}
+	
+	private CompletableFuture<TrackerResponseMessage> announceToTier(int tier, TrackerRequestEvent event) {
+		List<TrackerClient> trackers = _tierManager.provideTrackersByHealth(tier);
+		// If every tracker of the tier is backing off, they are all tried
+		// anyway.
+		if (!trackers.isEmpty() && !_tierManager.getHealth(trackers.get(0)).isBackingOff()) {
+			trackers.removeIf(tracker -> _tierManager.getHealth(tracker).isBackingOff());
+		}
+		return queryTrackers(trackers.iterator(), event);
 	}
 
 	/**
-	 * The purpose of this task is to send the initial "started" event so that
-	 * the client can receive the list of peers from the .torrent file. After
-	 * that it sends periodic messages to keep the tracker updated about the
-	 * usage of the torrent. <br/>
-	 * The task is active so long as the service is being used by the client.
+	 * Queries the trackers one after another, each once the previous one has
+	 * failed.
 	 * 
-	 * <br/>
-	 * If the service is to be stopped with a STOP message then such a message
-	 * is sent to the tracker.
-	 * 
-	 * @author Alex
-	 *
+	 * @return The future of the first successful response, or of <b>null</b>
+	 *         if none of the trackers has answered.
 	 */
-	private class AnnounceTask implements Runnable {
+	private CompletableFuture<TrackerResponseMessage> queryTrackers(Iterator<TrackerClient> trackers,
+			TrackerRequestEvent event) {
+		if (!trackers.hasNext()) {
+			return CompletableFuture.completedFuture(null);
+		}
 
-		@Override
-		public void run() {
-			TrackerRequestEvent trackerEvent = TrackerRequestEvent.STARTED;
-			_logger.debug("Announcencing...");
-			_trackerInterval = 10;
-			while (!_stop) {
+		return queryTracker(trackers.next(), event).thenCompose(
+				response -> response != null ? CompletableFuture.completedFuture(response) : queryTrackers(trackers, event));
+	}
+
+	/**
+	 * Queries the tracker in the query pool. If the tracker does not answer in
+	 * time, a timeout of the scheduler gives up on it.
+	 * 
+	 * @return The future of the successful response, or of <b>null</b> if the
+	 *         tracker has failed.
+	 */
+	private CompletableFuture<TrackerResponseMessage> queryTracker(TrackerClient tracker, TrackerRequestEvent event) {
+		CompletableFuture<TrackerResponseMessage> result = new CompletableFuture<TrackerResponseMessage>();
+		long start = System.currentTimeMillis();
+		Future<?> query;
+		try {
+			query = _scheduler.getQueryExecutor().submit(() -> {
 				try {
-					TrackerResponseMessage response = _tierManager.provideTrackerClient().queryTracker(trackerEvent);
-					_tierManager.moveTrackerToFront();
-					if (response != null) {
-						_logger.debug("Announce to tracker {} received", _tierManager.provideTrackerClient().toString());
-						handleResponse(response);
+					TrackerResponseMessage response = tracker.queryTracker(event);
+					if (response != null
+							&& (response.getFailureReason() == null || response.getFailureReason().isEmpty())) {
+						if (result.complete(response)) {
+							_tierManager.onTrackerResponded(tracker, System.currentTimeMillis() - start);
+						}
+						return;
 					}
-					trackerEvent = TrackerRequestEvent.NONE;
-				} catch (AnnounceException e) {
-					_tierManager.tryNextTrackerClient();
-				} catch (IOException e) {
-					_logger.warn("could not send announce: {}", e.getMessage());
-				} catch (ResponseException e) {
-					_logger.warn("exception while handling announce response: {}", e.getMessage());
+					_logger.debug("tracker {} refused the announce: {}", tracker,
+							response != null ? response.getFailureReason() : "no response");
+				} catch (AnnounceException | IOException | RuntimeException e) {
+					_logger.debug("could not announce to tracker {}: {}", tracker, e.getMessage());
 				}
-
-				try {
-					_emergencyQueue.poll(_trackerInterval * 1000, TimeUnit.MILLISECONDS);
-				} catch (InterruptedException e) {
-					// Not a problem - the task is not doing anything intensive
-					// or has a state worth saving.
+				if (result.complete(null)) {
+					_tierManager.onTrackerFailed(tracker);
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			_logger.warn("could not query tracker {}: {}", tracker, e.toString());
+			return CompletableFuture.completedFuture(null);
+		}
+		_queries.add(query);
+
+		AnnounceScheduler.Timeout timeout = _scheduler.schedule(() -> {
+			if (result.complete(null)) {
+				query.cancel(true);
+				_logger.debug("tracker {} timed out", tracker);
+				_tierManager.onTrackerFailed(tracker);
 			}
+		}, _trackerTimeout);
+		result.whenComplete((response, e) -> {
+			timeout.cancel();
+			_queries.remove(query);
+		});
+		return result;
+	}
+
+	/**
+	 * Interrupts the tracker queries of all the tiers that are in progress.
+	 */
+	private void cancelQueries() {
+		for (Future<?> query : _queries) {
+			query.cancel(true);
+		}
+	}
+	
+	/**
+	 * Used to ask the tracker for an update peer list. The announce is sent
+	 * as soon as the minimum interval of the tracker allows. The requests made
+	 * before that, or while an announce is in progress, come down to a single
+	 * announce.
+	 * @throws InterruptedException
+	 */
+	public synchronized void sendEmergencyTrackerRequest() throws InterruptedException {
+		if (_stop || !_started || _announcing) {
+			return;
+		}
 
-			if (_hardStop) {
-				sendStopRequest();
+		int minInterval = _minInterval > 0 ? _minInterval : DEFAULT_MIN_INTERVAL;
+		long delay = Math.max(0,
+				_lastAnnounce + TimeUnit.SECONDS.toMillis(minInterval) - System.currentTimeMillis());
+		if (_nextAnnounce != null) {
+			if (_nextAnnounce.getDelayMillis() <= delay || !_nextAnnounce.cancel()) {
+				// The next announce is as early as it can be, or is already
+				// being sent.
+				return;
 			}
 		}
+		scheduleAnnounce(delay);
+	}
+
+	/**
+	 * The caller must hold the lock of the service.
+	 */
+	private void scheduleAnnounce(long delayMillis) {
+		long generation = _generation;
+		_nextAnnounce = _scheduler.schedule(() -> announce(generation), delayMillis);
+	}
 
-		private void handleResponse(TrackerResponseMessage message) throws ResponseException {
-			if (message.getFailureReason() != null && !message.getFailureReason().isEmpty()) {
-				throw new ResponseException(message.getFailureReason());
+	/**
+	 * @return The delay in milliseconds until the next regular announce. The
+	 *         caller must hold the lock of the service.
+	 */
+	private long provideNextDelay() {
+		long interval = TimeUnit.SECONDS.toMillis(Math.max(_trackerInterval, _minInterval));
+		// The jitter is only ever added, so the minimum interval is honoured.
+		return interval + (long) (interval * INTERVAL_JITTER * ThreadLocalRandom.current().nextDouble());
+	}
+
+	/**
+	 * Sends the next announce and schedules the one after it. If the service
+	 * has been stopped or restarted since the announce was scheduled, nothing
+	 * is done.
+	 */
+	private void announce(long generation) {
+		TrackerRequestEvent trackerEvent;
+		boolean allTiers = AnnounceMode.ALL_TIERS.equals(_announceMode);
+		synchronized (this) {
+			if (_stop || generation != _generation) {
+				return;
 			}
-			setTrackerInterval(message.getInterval());
-			_session.onTrackerResponse(message);
+			_nextAnnounce = null;
+			_announcing = true;
+			if (!allTiers) {
+				_announcer = Thread.currentThread();
+			}
+			_lastAnnounce = System.currentTimeMillis();
+			trackerEvent = _nextEvent;
 		}
 
-		private void sendStopRequest() {
-			if (!_announceService.isShutdown() && !_announceService.isTerminated()) {
-				// Send the request after a small delay.
-				try {
-					TimeUnit.MILLISECONDS.sleep(500);
-				} catch (InterruptedException e) {
-					// Nothing to do
-				}
-				try {
-					_tierManager.provideTrackerClient().queryTracker(TrackerRequestEvent.STOPPED);
-				} catch (AnnounceException e) {
-					// TODO log
-				} catch (IOException e) {
-					// TODO log
-				}
+		_logger.debug("Announcencing...");
+		if (allTiers) {
+			// The thread is given back to the scheduler right away. The
+			// response is handled by the scheduler once all the tiers are done.
+			announceToAllTiers(trackerEvent).whenComplete(
+					(response, e) -> _scheduler.submit(() -> onAllTiersAnnounced(generation, response)));
+			return;
+		}
+
+		boolean announced = false;
+		try {
+			announceSequentially(trackerEvent);
+			announced = true;
+		} catch (AnnounceException e) {
+			_tierManager.onTrackerFailed(_tierManager.provideTrackerClient());
+			_tierManager.tryNextTrackerClient();
+		} catch (IOException e) {
+			_logger.warn("could not send announce: {}", e.getMessage());
+		} catch (ResponseException e) {
+			_logger.warn("exception while handling announce response: {}", e.getMessage());
+		} finally {
+			finishAnnounce(generation, announced);
+		}
+	}
+
+	private void onAllTiersAnnounced(long generation, TrackerResponseMessage response) {
+		boolean announced = false;
+		try {
+			if (response != null) {
+				handleResponse(response);
+				announced = true;
+			} else {
+				_logger.warn("no tracker answered the announce");
+			}
+		} catch (ResponseException e) {
+			_logger.warn("exception while handling announce response: {}", e.getMessage());
+		} finally {
+			finishAnnounce(generation, announced);
+		}
+	}
+
+	/**
+	 * Schedules the announce after the one that has just finished.
+	 */
+	private synchronized void finishAnnounce(long generation, boolean announced) {
+		if (_announcer == Thread.currentThread()) {
+			_announcer = null;
+		}
+		// Do not leave an interrupt of stop() to the next task of the
+		// thread.
+		Thread.interrupted();
+		if (!_stop && generation == _generation) {
+			_announcing = false;
+			if (announced) {
+				_nextEvent = TrackerRequestEvent.NONE;
 			}
+			scheduleAnnounce(provideNextDelay());
+		}
+	}
+	
+	private void announceSequentially(TrackerRequestEvent trackerEvent)
+			throws AnnounceException, IOException, ResponseException {
+		TrackerClient tracker = _tierManager.provideTrackerClient();
+		long start = System.currentTimeMillis();
+		TrackerResponseMessage response = tracker.queryTracker(trackerEvent);
+		_tierManager.onTrackerResponded(tracker, System.currentTimeMillis() - start);
+		_tierManager.moveTrackerToFront();
+		if (response != null) {
+			_logger.debug("Announce to tracker {} received", tracker);
+			handleResponse(response);
+		}
+	}
+
+	private void handleResponse(TrackerResponseMessage message) throws ResponseException {
+		if (message.getFailureReason() != null && !message.getFailureReason().isEmpty()) {
+			throw new ResponseException(message.getFailureReason());
+		}
+		synchronized (this) {
+			_minInterval = Math.max(0, message.getMinInterval());
+		}
+		setTrackerInterval(message.getInterval());
+		if (!_stop) {
+			_session.onTrackerResponse(message);
+		}
+	}
+
+	private void sendStopRequest() {
+		try {
+			_tierManager.provideTrackerClient().queryTracker(TrackerRequestEvent.STOPPED);
+		} catch (AnnounceException | IOException e) {
+			_logger.debug("could not send the stop announce: {}", e.getMessage());
 		}
 	}
 }
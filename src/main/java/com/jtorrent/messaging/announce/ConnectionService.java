@@ -23,6 +23,7 @@ import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jtorrent.peer.MessageReactor;
 import com.jtorrent.peer.Peer;
 import com.jtorrent.torrent.TorrentSession;
 import com.jtorrent.utils.Utils;
@@ -64,9 +65,24 @@ public class ConnectionService {
 	private boolean _listenForConnections;
 	
 	private ExecutorService _connectionService;
+	
+	/**
+	 * Drives the message channels of all the peers of all torrent sessions.
+	 */
+	private final MessageReactor _messageReactor;
 
 	public ConnectionService() {
+		this(MessageReactor.DEFAULT_LOOP_THREADS);
+	}
+
+	/**
+	 * @param messageLoopThreads
+	 *            The number of selector threads that will multiplex the peer
+	 *            connections.
+	 */
+	public ConnectionService(int messageLoopThreads) {
 		_listenForConnections = false;
+		_messageReactor = new MessageReactor(messageLoopThreads);
 		_connectionService = new ThreadPoolExecutor(
 				NUMBER_OF_SIMULTANIOUS_CONNECTIONS,
 				NUMBER_OF_SIMULTANIOUS_CONNECTIONS,
@@ -110,6 +126,10 @@ public class ConnectionService {
 		_socketAddress = address;
 	}
 	
+	public MessageReactor getMessageReactor() {
+		return _messageReactor;
+	}
+	
 	public synchronized void register(TorrentSession session) {
 		if(session == null) {
 			return;
@@ -135,6 +155,12 @@ public class ConnectionService {
 		}
 		setSocketAddress(clientAddress);
 		
+		try {
+			_messageReactor.start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not start the message reactor: " + e.getMessage());
+		}
+		
 		if (_listeningService != null) {
 			return;
 		}
@@ -157,6 +183,8 @@ public class ConnectionService {
 		_connectionService = null;
 		_listeningService = null;
 		
+		_messageReactor.stop();
+		
 		// The list needs to be copied to avoid concurrent modification exceptions 
 		// as its contents will be deleted.
 		_registeredTorrents = new HashMap<String, TorrentSession>();
@@ -0,0 +1,79 @@
+package com.jtorrent.messaging.announce;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jtorrent.peer.Peer;
+
+/**
+ * The responses of several trackers to the same announce, merged into one.
+ * Every peer is listed once, even if more than one tracker knows it.
+ *
+ * @author Alex
+ *
+ */
+public class MergedTrackerResponseMessage extends TrackerResponseMessage {
+
+	private final int _responses;
+
+	private MergedTrackerResponseMessage(int interval, int minInterval, int complete, int incomplete,
+			List<Peer> peers, int responses) {
+		super("", "", interval, minInterval, complete, incomplete, peers);
+		_responses = responses;
+	}
+
+	/**
+	 * Merges the successful responses. The interval and the minimum interval
+	 * are the longest ones, so that no tracker is announced to more often than it asked
+	 * for, and the swarm size is the largest any tracker reported.
+	 *
+	 * @param responses
+	 *            The responses of the trackers that have answered.
+	 * @return The merged response, or <b>null</b> if none of the responses
+	 *         was successful.
+	 */
+	public static MergedTrackerResponseMessage merge(List<TrackerResponseMessage> responses) {
+		Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+		int interval = 0;
+		int minInterval = 0;
+		int complete = 0;
+		int incomplete = 0;
+		int merged = 0;
+		for (TrackerResponseMessage response : responses) {
+			if (response == null
+					|| (response.getFailureReason() != null && !response.getFailureReason().isEmpty())) {
+				continue;
+			}
+
+			merged++;
+			interval = Math.max(interval, response.getInterval());
+			minInterval = Math.max(minInterval, response.getMinInterval());
+			complete = Math.max(complete, response.getComplete());
+			incomplete = Math.max(incomplete, response.getIncomplete());
+			for (Peer peer : response.getPeers()) {
+				peers.putIfAbsent(peer.getHostAddress(), peer);
+			}
+		}
+
+		if (merged == 0) {
+			return null;
+		}
+		return new MergedTrackerResponseMessage(interval, minInterval, complete, incomplete,
+				new ArrayList<Peer>(peers.values()), merged);
+	}
+
+	/**
+	 * @return The number of trackers whose responses have been merged.
+	 */
+	public int getResponses() {
+		return _responses;
+	}
+
+	@Override
+	public String toString() {
+		return "merged " + _responses + " responses: interval " + getInterval() + ", " + getPeers().size()
+				+ " peers";
+	}
+}
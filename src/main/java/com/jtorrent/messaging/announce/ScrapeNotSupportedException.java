@@ -0,0 +1,17 @@
+package com.jtorrent.messaging.announce;
+
+/**
+ * Thrown when a tracker cannot be scraped at all, as opposed to a scrape that
+ * has failed this time.
+ * 
+ * @author Alex
+ *
+ */
+public class ScrapeNotSupportedException extends AnnounceException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ScrapeNotSupportedException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,265 @@
+package com.jtorrent.messaging.announce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jtorrent.messaging.common.TrackerClient;
+import com.jtorrent.torrent.TorrentSession;
+import com.jtorrent.utils.Utils;
+
+/**
+ * <p>
+ * ScrapeService keeps the number of seeders and leechers of every torrent of
+ * the client up to date without announcing. The torrents are grouped by
+ * tracker and every tracker is asked about as many torrents as it accepts in
+ * a single scrape request, so a tracker shared by hundreds of torrents is
+ * scraped with a handful of requests.
+ * </p>
+ * <p>
+ * A torrent listed by several trackers gets the statistics of the largest
+ * swarm reported in the last round. Trackers that do not support scraping are
+ * not asked again.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class ScrapeService {
+
+	private static final Logger _logger = LoggerFactory.getLogger(ScrapeService.class);
+
+	public static final long DEFAULT_SCRAPE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	/**
+	 * How long a newly registered torrent waits for the next round, so that
+	 * the torrents registered together are scraped together.
+	 */
+	public static final long REGISTER_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * The trackers by their announce URI.
+	 */
+	private final Map<String, ScrapedTracker> _trackers;
+	private final Map<String, RoundStatistics> _statistics;
+	private final long _interval;
+
+	private ScheduledExecutorService _executor;
+	private ScheduledFuture<?> _nextRound;
+	private long _round;
+
+	public ScrapeService() {
+		this(DEFAULT_SCRAPE_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param interval
+	 *            The time between two scrapes of the same tracker, in
+	 *            milliseconds.
+	 */
+	public ScrapeService(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Invalid scrape interval: " + interval);
+		}
+
+		_trackers = new HashMap<String, ScrapedTracker>();
+		_statistics = new ConcurrentHashMap<String, RoundStatistics>();
+		_interval = interval;
+	}
+
+	public synchronized void start() {
+		if (_executor != null) {
+			return;
+		}
+
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(DEFAULT_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "jtorrent-scrape");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		_executor = executor;
+		schedule(REGISTER_DELAY_MILLIS);
+	}
+
+	public synchronized void stop() {
+		if (_executor == null) {
+			return;
+		}
+
+		_executor.shutdownNow();
+		_executor = null;
+		_nextRound = null;
+	}
+
+	/**
+	 * Adds the torrent of the session to the scrapes of all its trackers.
+	 */
+	public synchronized void register(TorrentSession session) {
+		byte[] infoHash = session.getMetaInfo().getInfoHash();
+		String key = Utils.convertToHex(infoHash);
+		for (List<TrackerClient> tier : session.getAnnounceService().getTierManager().getTierList()) {
+			for (TrackerClient client : tier) {
+				String uri = client.getTrackerURI().toString();
+				ScrapedTracker tracker = _trackers.get(uri);
+				if (tracker == null) {
+					// Any of the clients for the URI can scrape the torrents of
+					// all the sessions.
+					tracker = new ScrapedTracker(client);
+					_trackers.put(uri, tracker);
+				}
+				tracker._infoHashes.put(key, infoHash);
+			}
+		}
+
+		// Have the new torrent scraped soon, unless the round is near anyway.
+		if (_nextRound != null && _nextRound.getDelay(TimeUnit.MILLISECONDS) > REGISTER_DELAY_MILLIS) {
+			_nextRound.cancel(false);
+			schedule(REGISTER_DELAY_MILLIS);
+		}
+	}
+
+	public synchronized void unregister(TorrentSession session) {
+		String key = Utils.convertToHex(session.getMetaInfo().getInfoHash());
+		_trackers.values().removeIf(tracker -> {
+			tracker._infoHashes.remove(key);
+			return tracker._infoHashes.isEmpty();
+		});
+		_statistics.remove(key);
+	}
+
+	/**
+	 * @param infoHash
+	 *            The info hash of the torrent.
+	 * @return The latest statistics of the torrent, or <b>null</b> if none of
+	 *         its trackers has been scraped yet.
+	 */
+	public ScrapeStatistics getStatistics(byte[] infoHash) {
+		RoundStatistics statistics = _statistics.get(Utils.convertToHex(infoHash));
+		return statistics != null ? statistics._statistics : null;
+	}
+
+	/**
+	 * Scrapes all the trackers right away.
+	 */
+	public synchronized void scrapeNow() {
+		if (_executor == null) {
+			return;
+		}
+
+		if (_nextRound != null) {
+			_nextRound.cancel(false);
+		}
+		schedule(0);
+	}
+
+	private void schedule(long delay) {
+		_nextRound = _executor.schedule(this::startRound, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands the trackers over to the threads of the service and schedules the
+	 * next round.
+	 */
+	private synchronized void startRound() {
+		if (_executor == null) {
+			return;
+		}
+
+		long round = ++_round;
+		for (ScrapedTracker tracker : _trackers.values()) {
+			if (tracker._unsupported) {
+				continue;
+			}
+
+			List<List<byte[]>> batches = tracker.provideBatches();
+			_executor.execute(() -> scrape(tracker, batches, round));
+		}
+		schedule(_interval);
+	}
+
+	private void scrape(ScrapedTracker tracker, List<List<byte[]>> batches, long round) {
+		int scraped = 0;
+		for (List<byte[]> batch : batches) {
+			try {
+				for (ScrapeStatistics statistics : tracker._client.scrape(batch)) {
+					update(statistics, round);
+					scraped++;
+				}
+			} catch (ScrapeNotSupportedException e) {
+				_logger.debug("Tracker {} does not support scrape", tracker._client);
+				tracker._unsupported = true;
+				return;
+			} catch (AnnounceException | IOException | RuntimeException e) {
+				_logger.debug("Could not scrape {}: {}", tracker._client, e.toString());
+			}
+		}
+		_logger.debug("Scraped {} torrents from {} in {} requests", scraped, tracker._client, batches.size());
+	}
+
+	private void update(ScrapeStatistics statistics, long round) {
+		String key = Utils.convertToHex(statistics.getInfoHash());
+		_statistics.merge(key, new RoundStatistics(statistics, round), (previous, latest) -> {
+			// The statistics of an earlier round are replaced. Within a round
+			// the largest swarm wins.
+			if (previous._round < latest._round || swarmSize(latest._statistics) > swarmSize(previous._statistics)) {
+				return latest;
+			}
+			return previous;
+		});
+	}
+
+	private static int swarmSize(ScrapeStatistics statistics) {
+		return statistics.getSeeders() + statistics.getLeechers();
+	}
+
+	private static class ScrapedTracker {
+		private final TrackerClient _client;
+		private final Map<String, byte[]> _infoHashes;
+		private volatile boolean _unsupported;
+
+		public ScrapedTracker(TrackerClient client) {
+			_client = client;
+			_infoHashes = new LinkedHashMap<String, byte[]>();
+		}
+
+		/**
+		 * Splits the torrents into batches of as many as the tracker accepts
+		 * at once. The caller must hold the lock of the service.
+		 */
+		public List<List<byte[]>> provideBatches() {
+			int batchSize = Math.max(1, _client.getMaxScrapeHashes());
+			List<List<byte[]>> batches = new ArrayList<List<byte[]>>();
+			List<byte[]> batch = null;
+			for (byte[] infoHash : _infoHashes.values()) {
+				if (batch == null || batch.size() == batchSize) {
+					batch = new ArrayList<byte[]>(batchSize);
+					batches.add(batch);
+				}
+				batch.add(infoHash);
+			}
+			return batches;
+		}
+	}
+
+	private static class RoundStatistics {
+		private final ScrapeStatistics _statistics;
+		private final long _round;
+
+		public RoundStatistics(ScrapeStatistics statistics, long round) {
+			_statistics = statistics;
+			_round = round;
+		}
+	}
+}
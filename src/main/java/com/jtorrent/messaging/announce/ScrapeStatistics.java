@@ -0,0 +1,59 @@
+package com.jtorrent.messaging.announce;
+
+import com.jtorrent.utils.Utils;
+
+/**
+ * The statistics a tracker keeps for a single torrent, as returned by a
+ * scrape request.
+ *
+ * @see <a href=
+ *      "https://wiki.theory.org/BitTorrentSpecification#Tracker_.27scrape.27_Convention">Tracker
+ *      scrape convention</a>
+ * @author Alex
+ *
+ */
+public class ScrapeStatistics {
+
+	private final byte[] _infoHash;
+	/**
+	 * The number of peers with the entire file.
+	 */
+	private final int _seeders;
+	/**
+	 * The number of times the tracker registered a completion.
+	 */
+	private final int _completed;
+	/**
+	 * The number of non-seeder peers.
+	 */
+	private final int _leechers;
+
+	public ScrapeStatistics(byte[] infoHash, int seeders, int completed, int leechers) {
+		_infoHash = infoHash;
+		_seeders = seeders;
+		_completed = completed;
+		_leechers = leechers;
+	}
+
+	public byte[] getInfoHash() {
+		return _infoHash;
+	}
+
+	public int getSeeders() {
+		return _seeders;
+	}
+
+	public int getCompleted() {
+		return _completed;
+	}
+
+	public int getLeechers() {
+		return _leechers;
+	}
+
+	@Override
+	public String toString() {
+		return Utils.convertToHex(_infoHash) + ": " + _seeders + " seeders, " + _leechers + " leechers, "
+				+ _completed + " completed";
+	}
+}
@@ -6,6 +6,7 @@ import com.jtorrent.peer.Peer;
 
 public abstract class TrackerResponseMessage {
 	public static final String INTERVAL_KEY = "interval";
+	public static final String MIN_INTERVAL_KEY = "min interval";
 	public static final String COMPLETE_KEY = "complete";
 	public static final String INCOMPLETE_KEY = "incomplete";
 	public static final String PEERS_KEY = "peers";
@@ -13,6 +14,11 @@ public abstract class TrackerResponseMessage {
 	public static final String WARNING_MESSAGE_KEY = "warning message";
 
 	private final int _interval;
+	/**
+	 * The tracker asks not to be announced to more often than that, in
+	 * seconds. 0 if it has not said.
+	 */
+	private final int _minInterval;
 	private final int _complete; // seeder for UDP BEP #12
 	private final int _incomplete; // leechers for UDP BEP #12
 	private final List<Peer> _peers;
@@ -22,7 +28,13 @@ public abstract class TrackerResponseMessage {
 
 	public TrackerResponseMessage(String failureReason, String warningMessage, int interval, int complete,
 			int incomplete, List<Peer> peers) {
+		this(failureReason, warningMessage, interval, 0, complete, incomplete, peers);
+	}
+
+	public TrackerResponseMessage(String failureReason, String warningMessage, int interval, int minInterval,
+			int complete, int incomplete, List<Peer> peers) {
 		_interval = interval;
+		_minInterval = minInterval;
 		_complete = complete;
 		_incomplete = incomplete;
 		_peers = peers;
@@ -34,6 +46,10 @@ public abstract class TrackerResponseMessage {
 		return _interval;
 	}
 
+	public int getMinInterval() {
+		return _minInterval;
+	}
+
 	public int getComplete() {
 		return _complete;
 	}
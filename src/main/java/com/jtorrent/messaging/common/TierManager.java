@@ -3,7 +3,10 @@ package com.jtorrent.messaging.common;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.jtorrent.messaging.http.HTTPTrackerClient;
 import com.jtorrent.messaging.udp.UDPTrackerClient;
@@ -11,6 +14,11 @@ import com.jtorrent.torrent.TorrentSession;
 
 /**
  * Manages the announce-list tier algorithm described in BEP #12.
+ * <p>
+ * The manager also keeps the {@link TrackerHealth} of every tracker, so that
+ * the trackers of a tier can be tried in the order of how well they have been
+ * answering.
+ * </p>
  * 
  * @see <a href="http://www.bittorrent.org/beps/bep_0012.html">Metadata
  *      Extension</a>
@@ -20,6 +28,7 @@ import com.jtorrent.torrent.TorrentSession;
 public class TierManager {
 
 	private final List<List<TrackerClient>> _tierList;
+	private final Map<TrackerClient, TrackerHealth> _health;
 	private final TorrentSession _session;
 
 	private int _tierPosition;
@@ -27,6 +36,7 @@ public class TierManager {
 
 	public TierManager(TorrentSession session) {
 		_session = session;
+		_health = new ConcurrentHashMap<TrackerClient, TrackerHealth>();
 		_tierList = provideTierList(session.getMetaInfo().getAnnounceList());
 	}
 
@@ -51,6 +61,7 @@ public class TierManager {
 					throw new UnsupportedOperationException("cannot create a tracker client from URI: " + trackerURI);
 				} else {
 					currentTierList.add(trackerClient);
+					_health.put(trackerClient, new TrackerHealth());
 				}
 			}
 			// The current tier is shuffled and then added to the tier list.
@@ -73,7 +84,7 @@ public class TierManager {
 		return trackerClient;
 	}
 
-	public void tryNextTrackerClient() {
+	public synchronized void tryNextTrackerClient() {
 		_clientPosition++;
 		if (_clientPosition >= _tierList.get(_tierPosition).size()) {
 			_clientPosition = 0;
@@ -85,7 +96,7 @@ public class TierManager {
 		}
 	}
 
-	public TrackerClient provideTrackerClient() {
+	public synchronized TrackerClient provideTrackerClient() {
 		return _tierList.get(_tierPosition).get(_clientPosition);
 	}
 
@@ -93,10 +104,38 @@ public class TierManager {
 	 * Moves the last tracker, to which the client connected to successfully, to
 	 * the front of the tier list as described in BEP #12.
 	 */
-	public void moveTrackerToFront() {
+	public synchronized void moveTrackerToFront() {
 		Collections.swap(_tierList.get(_tierPosition), _clientPosition, 0);
 	}
 
+	/**
+	 * @param tier
+	 *            The position of the tier in the tier list.
+	 * @return The trackers of the tier from the healthiest to the least
+	 *         healthy. The trackers that are backing off after a failure come
+	 *         last.
+	 */
+	public synchronized List<TrackerClient> provideTrackersByHealth(int tier) {
+		List<TrackerClient> trackers = new ArrayList<TrackerClient>(_tierList.get(tier));
+		// The sort is stable, so trackers with equal scores keep the shuffled
+		// order of the tier.
+		Collections.sort(trackers, Comparator.comparing((TrackerClient client) -> getHealth(client).isBackingOff())
+				.thenComparing(client -> -getHealth(client).getScore()));
+		return trackers;
+	}
+
+	public TrackerHealth getHealth(TrackerClient client) {
+		return _health.computeIfAbsent(client, c -> new TrackerHealth());
+	}
+
+	public void onTrackerResponded(TrackerClient client, long latencyMillis) {
+		getHealth(client).onSuccess(latencyMillis);
+	}
+
+	public void onTrackerFailed(TrackerClient client) {
+		getHealth(client).onFailure();
+	}
+
 	public List<List<TrackerClient>> getTierList() {
 		return _tierList;
 	}
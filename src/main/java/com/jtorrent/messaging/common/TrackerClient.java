@@ -2,8 +2,11 @@ package com.jtorrent.messaging.common;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 
 import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeNotSupportedException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
 import com.jtorrent.messaging.announce.TrackerRequestEvent;
 import com.jtorrent.messaging.announce.TrackerResponseMessage;
 import com.jtorrent.torrent.TorrentSession;
@@ -20,6 +23,33 @@ public abstract class TrackerClient {
 	public abstract TrackerResponseMessage queryTracker(TrackerRequestEvent event)
 			throws AnnounceException, IOException;
 	
+	/**
+	 * Asks the tracker for the statistics of several torrents at once.
+	 * 
+	 * @param infoHashes
+	 *            The info hashes of at most {@link #getMaxScrapeHashes()}
+	 *            torrents.
+	 * @return The statistics of the torrents the tracker knows.
+	 * @throws ScrapeNotSupportedException
+	 *             If the tracker does not support scraping.
+	 * @throws AnnounceException
+	 *             If the scrape has failed.
+	 */
+	public List<ScrapeStatistics> scrape(List<byte[]> infoHashes) throws AnnounceException, IOException {
+		throw new ScrapeNotSupportedException("tracker " + _trackerURI + " does not support scrape");
+	}
+	
+	/**
+	 * @return The most torrents a single scrape request may ask for.
+	 */
+	public int getMaxScrapeHashes() {
+		return 1;
+	}
+	
+	public URI getTrackerURI() {
+		return _trackerURI;
+	}
+	
 	@Override
 	public String toString() {
 		return _trackerURI.toString();
@@ -0,0 +1,91 @@
+package com.jtorrent.messaging.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Keeps score of how well a tracker has been answering. The trackers of a tier
+ * are tried in the order of their scores, so a tracker that keeps failing or
+ * is slow to answer sinks to the back of its tier.
+ * </p>
+ * <p>
+ * A tracker that has failed is given a rest before it is queried again. The
+ * rest doubles with every consecutive failure, up to an hour.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class TrackerHealth {
+
+	private static final long BASE_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+	/**
+	 * The weight of the latest response time in the average.
+	 */
+	private static final double LATENCY_WEIGHT = 0.25;
+
+	private int _successes;
+	private int _failures;
+	private int _consecutiveFailures;
+	private long _lastFailure;
+	/**
+	 * Exponential moving average of the response time, in milliseconds.
+	 */
+	private double _averageLatency;
+
+	public synchronized void onSuccess(long latencyMillis) {
+		_successes++;
+		_consecutiveFailures = 0;
+		_averageLatency = _successes == 1 ? latencyMillis
+				: LATENCY_WEIGHT * latencyMillis + (1 - LATENCY_WEIGHT) * _averageLatency;
+	}
+
+	public synchronized void onFailure() {
+		_failures++;
+		_consecutiveFailures++;
+		_lastFailure = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return <b>true</b> if the tracker has failed recently and should not be
+	 *         queried yet.
+	 */
+	public synchronized boolean isBackingOff() {
+		if (_consecutiveFailures == 0) {
+			return false;
+		}
+
+		long backoff = BASE_BACKOFF_MILLIS << Math.min(_consecutiveFailures - 1, 6);
+		return System.currentTimeMillis() < _lastFailure + Math.min(backoff, MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * @return The score of the tracker - the higher, the better. Trackers that
+	 *         have never been queried score 0.
+	 */
+	public synchronized double getScore() {
+		if (_successes + _failures == 0) {
+			return 0;
+		}
+
+		double successRate = ((double) _successes) / (_successes + _failures);
+		// Every consecutive failure weighs more than the whole success rate,
+		// and among reliable trackers the fastest wins.
+		return successRate - _consecutiveFailures - _averageLatency / TimeUnit.MINUTES.toMillis(1);
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return _consecutiveFailures;
+	}
+
+	public synchronized double getAverageLatency() {
+		return _averageLatency;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "successes: " + _successes + ", failures: " + _failures + ", consecutive failures: "
+				+ _consecutiveFailures + ", latency: " + (long) _averageLatency + " ms";
+	}
+}
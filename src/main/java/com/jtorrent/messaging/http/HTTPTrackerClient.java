@@ -1,17 +1,19 @@
 package com.jtorrent.messaging.http;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.List;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeNotSupportedException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
 import com.jtorrent.messaging.announce.TrackerRequestEvent;
 import com.jtorrent.messaging.announce.TrackerRequestMessage;
 import com.jtorrent.messaging.announce.TrackerResponseMessage;
@@ -19,41 +21,76 @@ import com.jtorrent.messaging.common.TrackerClient;
 import com.jtorrent.peer.Peer;
 import com.jtorrent.torrent.*;
 
+/**
+ * Announces to an HTTP/HTTPS tracker. The requests of all the sessions go
+ * through the shared {@link HTTPTrackerConnector}, which keeps the connections
+ * to the tracker alive between announces.
+ *
+ * @author Alex
+ *
+ */
 public class HTTPTrackerClient extends TrackerClient {
 
+	private static final Logger _logger = LoggerFactory.getLogger(HTTPTrackerClient.class);
+
+	/**
+	 * The scrape convention does not limit the number of info hashes. The
+	 * limit keeps the URL within what the trackers accept.
+	 */
+	public static final int MAX_SCRAPE_HASHES = 64;
+
+	private final HTTPTrackerConnector _connector;
+
 	public HTTPTrackerClient(TorrentSession session, URI trackerURI) {
+		this(session, trackerURI, HTTPTrackerConnector.instance());
+	}
+
+	public HTTPTrackerClient(TorrentSession session, URI trackerURI, HTTPTrackerConnector connector) {
 		super(session, trackerURI);
+		_connector = connector;
 	}
 
 	@Override
 	public TrackerResponseMessage queryTracker(TrackerRequestEvent event) throws AnnounceException, IOException {
-		InputStream in = send(event);
-		if (in == null) {
-			throw new AnnounceException("got no response from tracker");
+		ByteBuffer body;
+		try {
+			body = _connector.fetch(formAnnounceURL(event));
+		} catch (IOException e) {
+			throw new AnnounceException("could not announce to " + _trackerURI + ": " + e.getMessage());
+		}
+
+		HTTPTrackerResponseMessage response = HTTPTrackerResponseMessage.parse(body);
+		_logger.debug("Announce to {}: {}", _trackerURI, response);
+		return response;
+	}
+
+	@Override
+	public List<ScrapeStatistics> scrape(List<byte[]> infoHashes) throws AnnounceException, IOException {
+		URL scrapeURL;
+		try {
+			scrapeURL = HTTPTrackerRequestMessage.formScrapeRequest(_trackerURI.toURL(), infoHashes);
+		} catch (UnsupportedEncodingException | MalformedURLException e) {
+			throw new AnnounceException("could not create a scrape request from the parameters");
+		}
+		if (scrapeURL == null) {
+			throw new ScrapeNotSupportedException("tracker " + _trackerURI + " does not support scrape");
 		}
 
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer body;
 		try {
-			out.write(in);
-			// System.out.println(_trackerURI.toString() + out.toString());
-			ByteBuffer responseMessageBuffer = ByteBuffer.wrap(out.toByteArray());
-			HTTPTrackerResponseMessage response = HTTPTrackerResponseMessage.parse(responseMessageBuffer);
-			// FIXME
-			System.out.println("printing response...");
-			System.out.println(response.toString());
-			return response;
+			body = _connector.fetch(scrapeURL);
 		} catch (IOException e) {
-			throw e;
-		} finally {
-			try {
-				out.close();
-			} catch (IOException e) {
-				// TODO - log
-			}
+			throw new AnnounceException("could not scrape " + _trackerURI + ": " + e.getMessage());
 		}
+		return HTTPTrackerResponseMessage.parseScrape(body, infoHashes);
+	}
+
+	@Override
+	public int getMaxScrapeHashes() {
+		return MAX_SCRAPE_HASHES;
 	}
 
-	private InputStream send(TrackerRequestEvent event) throws AnnounceException {
+	private URL formAnnounceURL(TrackerRequestEvent event) throws AnnounceException {
 		Peer clientPeer = _session.getSessionInfo().getClientPeer();
 		SessionInfo sessionInfo = _session.getSessionInfo();
 		// The documentation states that there are trackers that only accept
@@ -67,20 +104,11 @@ public class HTTPTrackerClient extends TrackerClient {
 				TrackerRequestMessage.DEFAULT_COMPACT, TrackerRequestMessage.DEFAULT_NO_PEER_ID, event,
 				TrackerRequestMessage.DEFAULT_NUM_WANT, 0);
 		try {
-			URL getRequest = message.formTrackerRequest(_trackerURI.toURL());
-
-			HttpURLConnection conn = (HttpURLConnection) getRequest.openConnection();
-			if (conn == null) {
-				throw new AnnounceException("could not open connection to target traker");
-			}
-
-			return conn.getInputStream();
+			return message.formTrackerRequest(_trackerURI.toURL());
 		} catch (UnsupportedEncodingException e) {
 			throw new AnnounceException("could not bencode data");
 		} catch (MalformedURLException e) {
 			throw new AnnounceException("could not create am HTTP GET request from the parameters");
-		} catch (IOException e) {
-			throw new AnnounceException("could not build HTTP tracker request");
 		}
 	}
 
@@ -0,0 +1,514 @@
+package com.jtorrent.messaging.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * HTTPTrackerConnector fetches the responses of the HTTP trackers for all the
+ * torrent sessions of the client. The connections to a tracker are kept alive
+ * and reused by all the sessions, so announcing hundreds of torrents to the
+ * same tracker costs a handful of connections instead of one per announce.
+ * </p>
+ * <p>
+ * The trackers are asked to compress their responses with gzip. The body of a
+ * response is read in a single buffer, which the bencoded response is decoded
+ * from.
+ * </p>
+ * <p>
+ * Plain HTTP is spoken directly over the pooled sockets. HTTPS goes through
+ * {@link HttpURLConnection}, whose own keep-alive cache is reused as long as
+ * every response is read to the end.
+ * </p>
+ * <p>
+ * The number of requests in progress to the same tracker host is limited.
+ * The requests beyond the limit wait for a connection in the order in which
+ * they came, so a burst of announces does not open a connection per torrent.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class HTTPTrackerConnector {
+
+	private static final Logger _logger = LoggerFactory.getLogger(HTTPTrackerConnector.class);
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+	/**
+	 * The most requests in progress per tracker host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+	/**
+	 * The most idle connections kept per tracker host.
+	 */
+	public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+	public static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	public static final int MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+
+	private static final int MAX_REDIRECTS = 3;
+	private static final String USER_AGENT = "jtorrent/0.0.1";
+
+	private static final HTTPTrackerConnector INSTANCE = new HTTPTrackerConnector(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+	/**
+	 * Idle connections by host and port.
+	 */
+	private final Map<String, Deque<Connection>> _idle;
+	/**
+	 * The connections that may still be used, by host and port. The
+	 * semaphores are fair, so they queue the waiting requests.
+	 */
+	private final Map<String, Semaphore> _permits;
+	private final int _maxConnectionsPerHost;
+
+	private final AtomicLong _requests;
+	private final AtomicLong _openedConnections;
+	private final AtomicLong _reusedConnections;
+
+	/**
+	 * @param maxConnectionsPerHost
+	 *            The most requests in progress per tracker host.
+	 */
+	public HTTPTrackerConnector(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost <= 0) {
+			throw new IllegalArgumentException("Invalid number of connections: " + maxConnectionsPerHost);
+		}
+
+		_idle = new HashMap<String, Deque<Connection>>();
+		_permits = new ConcurrentHashMap<String, Semaphore>();
+		_maxConnectionsPerHost = maxConnectionsPerHost;
+
+		_requests = new AtomicLong();
+		_openedConnections = new AtomicLong();
+		_reusedConnections = new AtomicLong();
+	}
+
+	/**
+	 * @return The connector shared by all the torrent sessions.
+	 */
+	public static HTTPTrackerConnector instance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Fetches the response in the calling thread. If the tracker host has as
+	 * many requests in progress as allowed, the call waits its turn.
+	 *
+	 * @param url
+	 *            The announce or scrape URL with all its parameters.
+	 * @return The body of the response, uncompressed.
+	 * @throws IOException
+	 *             If the tracker could not be reached or did not answer with
+	 *             a success status.
+	 */
+	public ByteBuffer fetch(URL url) throws IOException {
+		_requests.incrementAndGet();
+		for (int redirects = 0;; redirects++) {
+			Response response = fetchLimited(url);
+			if (response._status / 100 == 2) {
+				return ByteBuffer.wrap(response._body);
+			}
+
+			if (response._status / 100 == 3 && response._location != null && redirects < MAX_REDIRECTS) {
+				url = new URL(url, response._location);
+				continue;
+			}
+			throw new IOException("tracker " + url.getHost() + " answered with status " + response._status);
+		}
+	}
+
+	/**
+	 * Sends the request once a connection to the host is allowed.
+	 */
+	private Response fetchLimited(URL url) throws IOException {
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String key = url.getHost() + ":" + port;
+		Semaphore permits = _permits.computeIfAbsent(key, k -> new Semaphore(_maxConnectionsPerHost, true));
+		try {
+			if (!permits.tryAcquire(DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				throw new IOException("too many requests in progress to tracker " + key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for tracker " + key);
+		}
+
+		try {
+			return "https".equalsIgnoreCase(url.getProtocol()) ? fetchSecure(url) : fetchPlain(url);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private Response fetchPlain(URL url) throws IOException {
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String key = host + ":" + port;
+		String file = url.getFile().isEmpty() ? "/" : url.getFile();
+
+		Connection connection = takeIdle(key);
+		boolean reused = connection != null;
+		while (true) {
+			if (connection == null) {
+				connection = open(key, host, port);
+			}
+
+			try {
+				writeRequest(connection._out, host, port, file);
+				Response response = readResponse(connection._in);
+				if (response._keepAlive) {
+					releaseIdle(connection);
+				} else {
+					connection.close();
+				}
+				return response;
+			} catch (IOException e) {
+				connection.close();
+				if (!reused) {
+					throw e;
+				}
+				// The tracker has closed the idle connection in the meantime.
+				// Try once more on a new one.
+				_logger.debug("Reused connection to {} failed: {}", key, e.getMessage());
+				connection = null;
+				reused = false;
+			}
+		}
+	}
+
+	private Response fetchSecure(URL url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS);
+		conn.setReadTimeout(DEFAULT_READ_TIMEOUT_MILLIS);
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+		conn.setRequestProperty("User-Agent", USER_AGENT);
+
+		int status = conn.getResponseCode();
+		InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+		if (in == null) {
+			return new Response(status, new byte[0], true, null);
+		}
+
+		// The stream is read to the end and closed, so the connection goes
+		// back to the keep-alive cache.
+		try {
+			byte[] body = readFully(in, conn.getContentLength());
+			if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+				body = gunzip(body);
+			}
+			return new Response(status, body, true, conn.getHeaderField("Location"));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private Connection open(String key, String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), DEFAULT_CONNECT_TIMEOUT_MILLIS);
+			socket.setSoTimeout(DEFAULT_READ_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(socket);
+			throw e;
+		}
+
+		_openedConnections.incrementAndGet();
+		_logger.debug("Opened connection to tracker {}", key);
+		return new Connection(key, socket);
+	}
+
+	private synchronized Connection takeIdle(String key) {
+		Deque<Connection> idle = _idle.get(key);
+		if (idle == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			if (now - connection._lastUsed < IDLE_TIMEOUT_MILLIS) {
+				_reusedConnections.incrementAndGet();
+				return connection;
+			}
+			connection.close();
+		}
+		return null;
+	}
+
+	private synchronized void releaseIdle(Connection connection) {
+		connection._lastUsed = System.currentTimeMillis();
+
+		Deque<Connection> idle = _idle.get(connection._key);
+		if (idle == null) {
+			idle = new ArrayDeque<Connection>();
+			_idle.put(connection._key, idle);
+		}
+
+		// The most recently used connections are the most likely to still be
+		// open on the tracker's side.
+		idle.addFirst(connection);
+		while (idle.size() > MAX_IDLE_CONNECTIONS_PER_HOST) {
+			idle.pollLast().close();
+		}
+	}
+
+	/**
+	 * Closes all the idle connections.
+	 */
+	public synchronized void closeIdle() {
+		Iterator<Deque<Connection>> it = _idle.values().iterator();
+		while (it.hasNext()) {
+			for (Connection connection : it.next()) {
+				connection.close();
+			}
+			it.remove();
+		}
+	}
+
+	private static void writeRequest(OutputStream out, String host, int port, String file) throws IOException {
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(file).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host);
+		if (port != 80) {
+			request.append(':').append(port);
+		}
+		request.append("\r\n");
+		request.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+		request.append("Accept-Encoding: gzip\r\n");
+		request.append("Connection: keep-alive\r\n");
+		request.append("\r\n");
+
+		out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+	}
+
+	private static Response readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		String[] status = statusLine.split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException("invalid status line: " + statusLine);
+		}
+
+		int statusCode;
+		try {
+			statusCode = Integer.parseInt(status[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid status line: " + statusLine);
+		}
+
+		// HTTP/1.1 connections are persistent unless told otherwise.
+		boolean keepAlive = !"HTTP/1.0".equals(status[0]);
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean gzip = false;
+		String location = null;
+
+		String line;
+		while (!(line = readLine(in)).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			switch (name) {
+			case "content-length":
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("invalid content length: " + value);
+				}
+				break;
+			case "transfer-encoding":
+				chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+				break;
+			case "content-encoding":
+				gzip = value.equalsIgnoreCase("gzip");
+				break;
+			case "connection":
+				keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+				break;
+			case "location":
+				location = value;
+				break;
+			default:
+				break;
+			}
+		}
+
+		byte[] body;
+		if (chunked) {
+			body = readChunked(in);
+		} else if (contentLength >= 0) {
+			if (contentLength > MAX_RESPONSE_SIZE) {
+				throw new IOException("response too large: " + contentLength + " bytes");
+			}
+			body = new byte[(int) contentLength];
+			IOUtils.readFully(in, body);
+		} else {
+			// The body ends when the tracker closes the connection.
+			body = readFully(in, -1);
+			keepAlive = false;
+		}
+
+		if (gzip) {
+			body = gunzip(body);
+		}
+		return new Response(statusCode, body, keepAlive, location);
+	}
+
+	private static byte[] readChunked(InputStream in) throws IOException {
+		byte[] body = new byte[0];
+		int length = 0;
+		while (true) {
+			String sizeLine = readLine(in);
+			int extension = sizeLine.indexOf(';');
+			int size;
+			try {
+				size = Integer.parseInt((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid chunk size: " + sizeLine);
+			}
+
+			if (size == 0) {
+				// Skip the trailers.
+				while (!readLine(in).isEmpty()) {
+				}
+				return length == body.length ? body : Arrays.copyOf(body, length);
+			}
+
+			if (length + size > MAX_RESPONSE_SIZE) {
+				throw new IOException("response too large");
+			}
+			if (length + size > body.length) {
+				body = Arrays.copyOf(body, Math.max(length + size, body.length * 2));
+			}
+			IOUtils.readFully(in, body, length, size);
+			length += size;
+			readLine(in);
+		}
+	}
+
+	/**
+	 * Reads the stream to its end.
+	 *
+	 * @param expected
+	 *            The expected length, or -1 if it is not known.
+	 */
+	private static byte[] readFully(InputStream in, int expected) throws IOException {
+		byte[] body = new byte[expected > 0 ? Math.min(expected, MAX_RESPONSE_SIZE) : 4096];
+		int length = 0;
+		int read;
+		while ((read = in.read(body, length, body.length - length)) != -1) {
+			length += read;
+			if (length == body.length) {
+				if (length >= MAX_RESPONSE_SIZE) {
+					throw new IOException("response too large");
+				}
+				body = Arrays.copyOf(body, Math.min(body.length * 2, MAX_RESPONSE_SIZE));
+			}
+		}
+		return length == body.length ? body : Arrays.copyOf(body, length);
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			return readFully(in, compressed.length * 4);
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int ch;
+		while ((ch = in.read()) != '\n') {
+			if (ch == -1) {
+				throw new EOFException("connection closed by the tracker");
+			}
+			if (ch != '\r') {
+				line.append((char) ch);
+			}
+		}
+		return line.toString();
+	}
+
+	public long getRequests() {
+		return _requests.get();
+	}
+
+	public long getOpenedConnections() {
+		return _openedConnections.get();
+	}
+
+	public long getReusedConnections() {
+		return _reusedConnections.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests: " + getRequests() + ", opened connections: " + getOpenedConnections()
+				+ ", reused connections: " + getReusedConnections();
+	}
+
+	private static class Connection {
+		private final String _key;
+		private final Socket _socket;
+		private final InputStream _in;
+		private final OutputStream _out;
+		private long _lastUsed;
+
+		public Connection(String key, Socket socket) throws IOException {
+			_key = key;
+			_socket = socket;
+			_in = new BufferedInputStream(socket.getInputStream());
+			_out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		public void close() {
+			IOUtils.closeQuietly(_socket);
+		}
+	}
+
+	private static class Response {
+		private final int _status;
+		private final byte[] _body;
+		private final boolean _keepAlive;
+		private final String _location;
+
+		public Response(int status, byte[] body, boolean keepAlive, String location) {
+			_status = status;
+			_body = body;
+			_keepAlive = keepAlive;
+			_location = location;
+		}
+	}
+}
@@ -4,12 +4,15 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.List;
 
 import com.jtorrent.messaging.announce.TrackerRequestEvent;
 import com.jtorrent.messaging.announce.TrackerRequestMessage;
 import com.jtorrent.torrent.TorrentSession;
 
 public class HTTPTrackerRequestMessage extends TrackerRequestMessage {
+	public static final String ANNOUNCE_PATH = "announce";
+	public static final String SCRAPE_PATH = "scrape";
 
 	public HTTPTrackerRequestMessage(byte[] infoHash, String ip, int port, String peerID, long uploaded,
 			long downloaded, long left, int compact, int noPeerID, TrackerRequestEvent event, int numWant, int key) {
@@ -44,4 +47,36 @@ public class HTTPTrackerRequestMessage extends TrackerRequestMessage {
 		// System.out.println(url.toString());
 		return new URL(url.toString());
 	}
+
+	/**
+	 * Forms the scrape URL of a tracker from its announce URL. By convention
+	 * the last part of the path of an announce URL that supports scraping
+	 * starts with 'announce', which is replaced by 'scrape'.
+	 * 
+	 * @param trackerURL
+	 *            The announce URL of the tracker.
+	 * @param infoHashes
+	 *            The info hashes of the torrents to scrape.
+	 * @return The scrape URL, or <b>null</b> if the tracker does not support
+	 *         scraping.
+	 */
+	public static URL formScrapeRequest(URL trackerURL, List<byte[]> infoHashes)
+			throws UnsupportedEncodingException, MalformedURLException {
+		String announce = trackerURL.toString();
+		int slash = announce.lastIndexOf('/');
+		if (slash < 0 || !announce.startsWith(ANNOUNCE_PATH, slash + 1)) {
+			return null;
+		}
+
+		StringBuilder url = new StringBuilder();
+		url.append(announce, 0, slash + 1).append(SCRAPE_PATH);
+		url.append(announce, slash + 1 + ANNOUNCE_PATH.length(), announce.length());
+		char separator = url.indexOf("?") >= 0 ? '&' : '?';
+		for (byte[] infoHash : infoHashes) {
+			url.append(separator).append(INFO_HASH_KEY + "=").append(URLEncoder
+					.encode(new String(infoHash, TorrentSession.BYTE_ENCODING), TorrentSession.BYTE_ENCODING));
+			separator = '&';
+		}
+		return new URL(url.toString());
+	}
 }
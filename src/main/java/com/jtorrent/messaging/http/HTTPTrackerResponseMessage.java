@@ -10,9 +10,12 @@ import java.util.List;
 import java.util.Map;
 
 import com.jtorrent.bencode.BDecoder;
+import com.jtorrent.bencode.BHandler;
 import com.jtorrent.bencode.BObject;
 import com.jtorrent.bencode.BObject.BEncodingException;
+import com.jtorrent.bencode.BParser;
 import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
 import com.jtorrent.messaging.announce.TrackerRequestMessage;
 import com.jtorrent.messaging.announce.TrackerResponseMessage;
 import com.jtorrent.peer.Peer;
@@ -26,38 +29,78 @@ public class HTTPTrackerResponseMessage extends TrackerResponseMessage {
 		super(failureReason, warningMessage, interval, complete, incomplete, peers);
 	}
 
+	public HTTPTrackerResponseMessage(String failureReason, String warningMessage, int interval, int minInterval,
+			int complete, int incomplete, List<Peer> peers) {
+		super(failureReason, warningMessage, interval, minInterval, complete, incomplete, peers);
+	}
+
 	public static final int COMPACT_PEER_LIST_VALUE_SIZE = 6;
+	
+	public static final String FILES_KEY = "files";
+	public static final String DOWNLOADED_KEY = "downloaded";
 
+	/**
+	 * Parses the response to an announce. The fields are picked out as the
+	 * response is parsed, so a long peer list is never held as a tree of
+	 * bencoded objects.
+	 */
 	public static HTTPTrackerResponseMessage parse(ByteBuffer message) throws IOException, AnnounceException {
-		BObject decodedMessage = BDecoder.instance().decode(message);
-		if (decodedMessage == null) {
-			throw new AnnounceException("the tracker response is not in Bencode");
-		}
-
-		Map<String, BObject> params = decodedMessage.asMap();
+		ResponseHandler handler = new ResponseHandler();
+		BParser.instance().parse(message.duplicate(), handler);
 		// The interval key is mandatory. Check if it has been provided.
-		if (params.get(INTERVAL_KEY) == null) {
+		if (handler._interval == null) {
 			throw new AnnounceException("tracker response message does not contains 'interval'");
 		}
 
-		return new HTTPTrackerResponseMessage(params.getOrDefault(FAILURE_REASON_KEY, new BObject("")).asString(),
-				params.getOrDefault(WARNING_MESSAGE_KEY, new BObject("")).asString(), params.get(INTERVAL_KEY).asInt(), // mandatory
-				params.getOrDefault(COMPLETE_KEY, new BObject(0)).asInt(),
-				params.getOrDefault(INCOMPLETE_KEY, new BObject(0)).asInt(), providePeerList(params));
+		return new HTTPTrackerResponseMessage(handler._failureReason, handler._warningMessage, handler._interval,
+				handler._minInterval, handler._complete, handler._incomplete, handler._peers);
 	}
 
-	private static List<Peer> providePeerList(Map<String, BObject> params)
-			throws BEncodingException, UnsupportedEncodingException, UnknownHostException {
-		BObject peers = params.get(PEERS_KEY);
+	/**
+	 * Parses the response to a scrape request.
+	 * 
+	 * @param message
+	 *            The body of the response.
+	 * @param infoHashes
+	 *            The info hashes that were scraped.
+	 * @return The statistics of the torrents the tracker knows, in the order
+	 *         in which they were scraped.
+	 */
+	public static List<ScrapeStatistics> parseScrape(ByteBuffer message, List<byte[]> infoHashes)
+			throws IOException, AnnounceException {
+		BObject decodedMessage = BDecoder.instance().decode(message);
+		if (decodedMessage == null) {
+			throw new AnnounceException("the scrape response is not in Bencode");
+		}
 
-		List<Peer> peerList = new ArrayList<Peer>();
-		if (peers instanceof List) {
-			peerList = providePeerListFromList(peers.asList());
-		} else {
-			peerList = providePeerListFromBytes(peers.asBytes());
+		Map<String, BObject> params = decodedMessage.asMap();
+		if (params.get(FAILURE_REASON_KEY) != null) {
+			throw new AnnounceException("tracker refused to scrape: " + params.get(FAILURE_REASON_KEY).asString());
+		}
+		if (params.get(FILES_KEY) == null) {
+			throw new AnnounceException("scrape response does not contain 'files'");
 		}
 
-		return peerList;
+		// The keys of the files are the raw info hashes, which the decoder
+		// turns into strings the same way as done here.
+		Map<String, BObject> files = params.get(FILES_KEY).asMap();
+		List<ScrapeStatistics> statistics = new ArrayList<ScrapeStatistics>(infoHashes.size());
+		for (byte[] infoHash : infoHashes) {
+			BObject file = files.get(new String(infoHash, BObject.BYTE_ENCODING));
+			if (file == null && infoHashes.size() == 1 && files.size() == 1) {
+				file = files.values().iterator().next();
+			}
+			if (file == null) {
+				continue;
+			}
+
+			Map<String, BObject> fileParams = file.asMap();
+			statistics.add(new ScrapeStatistics(infoHash,
+					fileParams.getOrDefault(COMPLETE_KEY, new BObject(0)).asInt(),
+					fileParams.getOrDefault(DOWNLOADED_KEY, new BObject(0)).asInt(),
+					fileParams.getOrDefault(INCOMPLETE_KEY, new BObject(0)).asInt()));
+		}
+		return statistics;
 	}
 
 	/**
@@ -73,16 +116,22 @@ public class HTTPTrackerResponseMessage extends TrackerResponseMessage {
 	 * @throws UnknownHostException
 	 * @throws AnnounceException
 	 */
-	private static List<Peer> providePeerListFromBytes(byte[] peers)
+	public static List<Peer> providePeerListFromBytes(byte[] peers)
 			throws BEncodingException, UnsupportedEncodingException, UnknownHostException {
-		if (peers.length % COMPACT_PEER_LIST_VALUE_SIZE != 0) {
+		return providePeerListFromBytes(ByteBuffer.wrap(peers));
+	}
+
+	public static List<Peer> providePeerListFromBytes(ByteBuffer peers)
+			throws BEncodingException, UnsupportedEncodingException, UnknownHostException {
+		if (peers.remaining() % COMPACT_PEER_LIST_VALUE_SIZE != 0) {
 			throw new BObject.BEncodingException("the message is not a multiple of 6");
 		}
 
 		List<Peer> peersList = new ArrayList<Peer>();
-		ByteBuffer peersBuffer = ByteBuffer.wrap(peers);
+		ByteBuffer peersBuffer = peers.duplicate();
 
-		for (int i = 0; i < peers.length / 6; i++) {
+		int count = Math.min(peers.remaining() / COMPACT_PEER_LIST_VALUE_SIZE, PeerManager.MAX_TOTAL_NUMBER_OF_PEERS);
+		for (int i = 0; i < count; i++) {
 			byte[] hostBytes = new byte[4];
 			peersBuffer.get(hostBytes);
 			InetAddress host = InetAddress.getByAddress(hostBytes);
@@ -129,6 +178,137 @@ public class HTTPTrackerResponseMessage extends TrackerResponseMessage {
 		return peersList;
 	}
 
+	/**
+	 * Picks the fields of an announce response out of the parser events. The
+	 * peers come either as a compact string or as a list of dictionaries.
+	 */
+	private static class ResponseHandler implements BHandler {
+		/**
+		 * The peer dictionaries are at this depth in the response.
+		 */
+		private static final int PEER_DEPTH = 3;
+
+		private int _depth;
+		private String _key;
+		private String _peerKey;
+
+		private String _failureReason = "";
+		private String _warningMessage = "";
+		private Integer _interval;
+		private int _minInterval;
+		private int _complete;
+		private int _incomplete;
+		private final List<Peer> _peers = new ArrayList<Peer>();
+
+		private String _peerHost;
+		private String _peerID;
+		private int _peerPort;
+
+		@Override
+		public void startDictionary() throws IOException {
+			if (++_depth == PEER_DEPTH && isInPeers()) {
+				_peerHost = null;
+				_peerID = null;
+				_peerPort = 0;
+			}
+		}
+
+		@Override
+		public void endDictionary() throws IOException {
+			if (_depth == PEER_DEPTH && isInPeers() && _peerHost != null
+					&& _peers.size() < PeerManager.MAX_TOTAL_NUMBER_OF_PEERS) {
+				_peers.add(new Peer(_peerHost, _peerPort, _peerID));
+			}
+			_depth--;
+		}
+
+		@Override
+		public void startList() throws IOException {
+			if (_depth++ == 0) {
+				throw new BEncodingException("the tracker response is not a dictionary");
+			}
+		}
+
+		@Override
+		public void endList() throws IOException {
+			_depth--;
+		}
+
+		@Override
+		public void key(String key) throws IOException {
+			if (_depth == 1) {
+				_key = key;
+			} else if (_depth == PEER_DEPTH) {
+				_peerKey = key;
+			}
+		}
+
+		@Override
+		public void integer(long value) throws IOException {
+			if (_depth == 0) {
+				throw new BEncodingException("the tracker response is not a dictionary");
+			}
+			if (_depth == PEER_DEPTH && isInPeers()) {
+				if (TrackerRequestMessage.PORT_KEY.equals(_peerKey)) {
+					_peerPort = (int) value;
+				}
+				return;
+			}
+			if (_depth != 1) {
+				return;
+			}
+
+			switch (_key) {
+			case INTERVAL_KEY:
+				_interval = (int) value;
+				break;
+			case MIN_INTERVAL_KEY:
+				_minInterval = (int) value;
+				break;
+			case COMPLETE_KEY:
+				_complete = (int) value;
+				break;
+			case INCOMPLETE_KEY:
+				_incomplete = (int) value;
+				break;
+			}
+		}
+
+		@Override
+		public void byteString(ByteBuffer value) throws IOException {
+			if (_depth == 0) {
+				throw new BEncodingException("the tracker response is not a dictionary");
+			}
+			if (_depth == PEER_DEPTH && isInPeers()) {
+				if (TrackerRequestMessage.IP_KEY.equals(_peerKey)) {
+					_peerHost = new BObject(value).asString(TorrentSession.BYTE_ENCODING);
+				} else if (TrackerRequestMessage.PEER_ID_KEY.equals(_peerKey)) {
+					_peerID = new BObject(value).asString();
+				}
+				return;
+			}
+			if (_depth != 1) {
+				return;
+			}
+
+			switch (_key) {
+			case FAILURE_REASON_KEY:
+				_failureReason = new BObject(value).asString();
+				break;
+			case WARNING_MESSAGE_KEY:
+				_warningMessage = new BObject(value).asString();
+				break;
+			case PEERS_KEY:
+				_peers.addAll(providePeerListFromBytes(value));
+				break;
+			}
+		}
+
+		private boolean isInPeers() {
+			return PEERS_KEY.equals(_key);
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
@@ -136,6 +316,7 @@ public class HTTPTrackerResponseMessage extends TrackerResponseMessage {
 		sb.append("\twarning message: " + getWarningMessage() + "\n");
 		sb.append("\tfailure reason: " + getFailureReason() + "\n");
 		sb.append("\tinterval: " + getInterval() + "\n");
+		sb.append("\tmin interval: " + getMinInterval() + "\n");
 		sb.append("\tcomplete: " + getComplete() + "\n");
 		sb.append("\tincomplete: " + getIncomplete() + "\n");
 		sb.append("\t---- Peer List ----\n");
@@ -4,6 +4,14 @@ import java.nio.ByteBuffer;
 
 public interface MessageListener {
 	
+	/**
+	 * Called when a whole message has been received.
+	 * 
+	 * @param msg
+	 *            The message. The buffer belongs to the channel's buffer pool
+	 *            and is only valid for the duration of the call - any data
+	 *            that is needed afterwards must be copied.
+	 */
 	public void onMessageReceived(ByteBuffer msg);
 	
 	public void onMessageChannelException(Exception e);
@@ -7,6 +7,11 @@ import com.jtorrent.torrent.TorrentSession;
 
 public class PieceMessage extends Message {
 
+	/**
+	 * The size of <code>&lt;len=0009+X&gt;&lt;id=7&gt;&lt;index&gt;&lt;begin&gt;</code>.
+	 */
+	public static final int HEADER_SIZE = LENGTH_FIELD_SIZE + 9;
+
 	private final int _pieceIndex;
 	private final int _begin;
 	private final ByteBuffer _block;
@@ -51,6 +56,22 @@ public class PieceMessage extends Message {
 		return message;
 	}
 
+	/**
+	 * Creates only the header of a PIECE message. It is used when the block
+	 * itself is transferred to the peer straight from the file store.
+	 * 
+	 * @return The 13 bytes <code>&lt;len=0009+X&gt;&lt;id=7&gt;&lt;index&gt;&lt;begin&gt;</code>
+	 */
+	public static ByteBuffer makeHeader(int pieceIndex, int begin, int blockLength) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(9 + blockLength);
+		header.put((byte)MessageType.PIECE.getMessageID());
+		header.putInt(pieceIndex);
+		header.putInt(begin);
+		header.rewind();
+		return header;
+	}
+
 	public int getPieceIndex() {
 		return _pieceIndex;
 	}
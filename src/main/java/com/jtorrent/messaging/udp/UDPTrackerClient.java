@@ -1,23 +1,294 @@
 package com.jtorrent.messaging.udp;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
 import com.jtorrent.messaging.announce.TrackerRequestEvent;
 import com.jtorrent.messaging.announce.TrackerResponseMessage;
 import com.jtorrent.messaging.common.TrackerClient;
+import com.jtorrent.peer.Peer;
+import com.jtorrent.torrent.SessionInfo;
 import com.jtorrent.torrent.TorrentSession;
 
+/**
+ * <p>
+ * Talks to a tracker over the UDP tracker protocol. Every exchange is a single
+ * datagram each way over a non-blocking {@link DatagramChannel}, so no
+ * connection is held between announces.
+ * </p>
+ * <p>
+ * Before announcing or scraping the client has to obtain a connection ID from
+ * the tracker. The ID is valid for a minute and is shared by all the torrents
+ * that use the same tracker, so announcing hundreds of torrents costs a single
+ * connect per minute.
+ * </p>
+ * <p>
+ * If the tracker does not answer within <b>15 * 2 ^ n</b> seconds, the request
+ * is sent again, with <b>n</b> starting at 0 and growing with every
+ * retransmission. The protocol allows up to 8 retransmissions; the client
+ * gives up earlier, so that the next tracker in the tier gets a chance.
+ * </p>
+ *
+ * @see <a href="http://www.bittorrent.org/beps/bep_0015.html">UDP Tracker
+ *      Protocol</a>
+ * @author Alex
+ *
+ */
 public class UDPTrackerClient extends TrackerClient {
 
+	private static final Logger _logger = LoggerFactory.getLogger(UDPTrackerClient.class);
+
+	public static final long DEFAULT_BASE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+	public static final int DEFAULT_MAX_RETRANSMISSIONS = 3;
+	public static final long CONNECTION_ID_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final int MAX_DATAGRAM_SIZE = 16 * 1024;
+
+	/**
+	 * The connection IDs by tracker address, shared by all the clients.
+	 */
+	private static final Map<InetSocketAddress, ConnectionID> _connectionIDs = new ConcurrentHashMap<InetSocketAddress, ConnectionID>();
+
+	private final long _baseTimeout;
+	private final int _maxRetransmissions;
+	/**
+	 * Lets the tracker recognise the client when its address changes.
+	 */
+	private final int _key;
+
 	public UDPTrackerClient(TorrentSession session, URI trackerURI) {
+		this(session, trackerURI, DEFAULT_BASE_TIMEOUT_MILLIS, DEFAULT_MAX_RETRANSMISSIONS);
+	}
+
+	/**
+	 * @param baseTimeout
+	 *            How long to wait for the first response, in milliseconds. The
+	 *            timeout doubles with every retransmission.
+	 * @param maxRetransmissions
+	 *            How many times a request is sent again before the tracker is
+	 *            given up on.
+	 */
+	public UDPTrackerClient(TorrentSession session, URI trackerURI, long baseTimeout, int maxRetransmissions) {
 		super(session, trackerURI);
-		// TODO Auto-generated constructor stub
+		if (baseTimeout <= 0 || maxRetransmissions < 0) {
+			throw new IllegalArgumentException("Invalid retransmission policy: " + baseTimeout + "x" + maxRetransmissions);
+		}
+
+		_baseTimeout = baseTimeout;
+		_maxRetransmissions = maxRetransmissions;
+		_key = ThreadLocalRandom.current().nextInt();
 	}
 
 	@Override
-	public TrackerResponseMessage queryTracker(TrackerRequestEvent event) {
-		// TODO Auto-generated method stub
-		return null;
+	public TrackerResponseMessage queryTracker(TrackerRequestEvent event) throws AnnounceException, IOException {
+		Peer clientPeer = _session.getSessionInfo().getClientPeer();
+		SessionInfo sessionInfo = _session.getSessionInfo();
+		UDPTrackerRequestMessage message = new UDPTrackerRequestMessage(_session.getMetaInfo().getInfoHash(),
+				clientPeer.getPeerID(), clientPeer.getAddress().getPort(), sessionInfo.getUploaded(),
+				sessionInfo.getDownloaded(), sessionInfo.getLeft(), event,
+				UDPTrackerRequestMessage.DEFAULT_UDP_NUM_WANT, _key);
+		return announce(message);
+	}
+
+	/**
+	 * Sends the announce request to the tracker.
+	 */
+	UDPTrackerResponseMessage announce(UDPTrackerRequestMessage message) throws AnnounceException, IOException {
+		InetSocketAddress address = resolve();
+		try (DatagramChannel channel = open(address); Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer response = exchange(channel, selector,
+					transactionID -> message.formAnnounceRequest(connectionID(channel, selector, address), transactionID));
+
+			UDPTrackerResponseMessage announce = UDPTrackerResponseMessage.parseAnnounce(response);
+			if (!announce.getFailureReason().isEmpty()) {
+				// The connection ID may be the reason the tracker refused.
+				_connectionIDs.remove(address);
+			}
+			_logger.debug("Announce to {}: {}", _trackerURI, announce);
+			return announce;
+		}
+	}
+
+	/**
+	 * Asks the tracker for the statistics of the torrents.
+	 *
+	 * @param infoHashes
+	 *            The info hashes of at most
+	 *            {@link UDPTrackerRequestMessage#MAX_SCRAPE_HASHES} torrents.
+	 * @return The statistics of the torrents, in the same order as the info
+	 *         hashes.
+	 */
+	@Override
+	public List<ScrapeStatistics> scrape(List<byte[]> infoHashes) throws AnnounceException, IOException {
+		InetSocketAddress address = resolve();
+		try (DatagramChannel channel = open(address); Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer response = exchange(channel, selector, transactionID -> UDPTrackerRequestMessage
+					.makeScrapeRequest(connectionID(channel, selector, address), transactionID, infoHashes));
+			try {
+				return UDPTrackerResponseMessage.parseScrape(response, infoHashes);
+			} catch (AnnounceException e) {
+				_connectionIDs.remove(address);
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public int getMaxScrapeHashes() {
+		return UDPTrackerRequestMessage.MAX_SCRAPE_HASHES;
+	}
+
+	private InetSocketAddress resolve() throws AnnounceException {
+		if (_trackerURI.getHost() == null || _trackerURI.getPort() < 0) {
+			throw new AnnounceException("invalid UDP tracker address: " + _trackerURI);
+		}
+
+		InetSocketAddress address = new InetSocketAddress(_trackerURI.getHost(), _trackerURI.getPort());
+		if (address.isUnresolved()) {
+			throw new AnnounceException("could not resolve tracker " + _trackerURI.getHost());
+		}
+		return address;
 	}
 
+	private static DatagramChannel open(InetSocketAddress address) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			// Only datagrams from the tracker are received.
+			channel.connect(address);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Provides a connection ID for the tracker, connecting to it only if the
+	 * cached ID has expired.
+	 */
+	private long connectionID(DatagramChannel channel, Selector selector, InetSocketAddress address)
+			throws AnnounceException, IOException {
+		ConnectionID cached = _connectionIDs.get(address);
+		if (cached != null && !cached.isExpired()) {
+			return cached._id;
+		}
+
+		// The lifetime is counted from the moment the ID is asked for.
+		long requested = System.currentTimeMillis();
+		ByteBuffer response = exchange(channel, selector, UDPTrackerRequestMessage::makeConnectRequest);
+		long id = UDPTrackerResponseMessage.parseConnect(response);
+		_connectionIDs.put(address, new ConnectionID(id, requested + CONNECTION_ID_LIFETIME_MILLIS));
+		return id;
+	}
+
+	/**
+	 * Sends a request and waits for the response with the same transaction
+	 * ID. The request is built anew for every retransmission, so that an
+	 * expired connection ID is replaced.
+	 *
+	 * @return The response, positioned at the action.
+	 * @throws AnnounceException
+	 *             If the tracker did not answer in time or is not listening.
+	 */
+	private ByteBuffer exchange(DatagramChannel channel, Selector selector, RequestFactory factory)
+			throws AnnounceException, IOException {
+		ByteBuffer response = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+		for (int n = 0; n <= _maxRetransmissions; n++) {
+			int transactionID = ThreadLocalRandom.current().nextInt();
+			ByteBuffer request = factory.make(transactionID);
+			try {
+				channel.write(request);
+				if (awaitResponse(channel, selector, response, transactionID, _baseTimeout << n)) {
+					return response;
+				}
+			} catch (PortUnreachableException e) {
+				throw new AnnounceException("tracker " + _trackerURI + " is not listening");
+			}
+
+			_logger.debug("No response from {} after {} ms", _trackerURI, _baseTimeout << n);
+		}
+
+		throw new AnnounceException("tracker " + _trackerURI + " did not respond");
+	}
+
+	/**
+	 * Waits for the response to the transaction.
+	 * 
+	 * @return <b>true</b> - if the response has been received; <b>false</b> -
+	 *         if the time ran out.
+	 * @throws InterruptedIOException
+	 *             If the thread has been interrupted. An interrupt makes
+	 *             {@link Selector#select(long)} return at once, so the wait
+	 *             would otherwise spin until the deadline.
+	 */
+	private static boolean awaitResponse(DatagramChannel channel, Selector selector, ByteBuffer response,
+			int transactionID, long timeout) throws IOException {
+
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining;
+		while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("interrupted while waiting for the tracker");
+			}
+			if (selector.select(remaining) == 0) {
+				continue;
+			}
+			selector.selectedKeys().clear();
+
+			response.clear();
+			while (channel.read(response) > 0) {
+				response.flip();
+				if (isResponseTo(response, transactionID)) {
+					return true;
+				}
+				// A late answer to an earlier retransmission.
+				response.clear();
+			}
+		}
+		return false;
+	}
+
+	private static boolean isResponseTo(ByteBuffer response, int transactionID) {
+		return response.remaining() >= UDPTrackerResponseMessage.RESPONSE_HEADER_SIZE
+				&& response.getInt(response.position() + 4) == transactionID;
+	}
+
+	@FunctionalInterface
+	private interface RequestFactory {
+		ByteBuffer make(int transactionID) throws AnnounceException, IOException;
+	}
+
+	private static class ConnectionID {
+		private final long _id;
+		private final long _expires;
+
+		public ConnectionID(long id, long expires) {
+			_id = id;
+			_expires = expires;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= _expires;
+		}
+	}
 }
@@ -0,0 +1,96 @@
+package com.jtorrent.messaging.udp;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.jtorrent.messaging.announce.TrackerRequestEvent;
+import com.jtorrent.messaging.announce.TrackerRequestMessage;
+import com.jtorrent.torrent.TorrentSession;
+
+/**
+ * The requests of the UDP tracker protocol. All the values are in network
+ * byte order.
+ *
+ * @see <a href="http://www.bittorrent.org/beps/bep_0015.html">UDP Tracker
+ *      Protocol</a>
+ * @author Alex
+ *
+ */
+public class UDPTrackerRequestMessage extends TrackerRequestMessage {
+	/**
+	 * The magic constant that identifies a connect request.
+	 */
+	public static final long PROTOCOL_ID = 0x41727101980L;
+
+	public static final int ACTION_CONNECT = 0;
+	public static final int ACTION_ANNOUNCE = 1;
+	public static final int ACTION_SCRAPE = 2;
+	public static final int ACTION_ERROR = 3;
+
+	public static final int CONNECT_REQUEST_SIZE = 16;
+	public static final int ANNOUNCE_REQUEST_SIZE = 98;
+	public static final int SCRAPE_REQUEST_HEADER_SIZE = 16;
+	/**
+	 * The most info hashes a single scrape request may carry.
+	 */
+	public static final int MAX_SCRAPE_HASHES = 74;
+
+	/**
+	 * Let the tracker choose the number of peers.
+	 */
+	public static final int DEFAULT_UDP_NUM_WANT = -1;
+
+	public UDPTrackerRequestMessage(byte[] infoHash, String peerID, int port, long uploaded, long downloaded,
+			long left, TrackerRequestEvent event, int numWant, int key) {
+		super(infoHash, null, port, peerID, uploaded, downloaded, left, DEFAULT_COMPACT, DEFAULT_NO_PEER_ID, event,
+				numWant, key);
+	}
+
+	public static ByteBuffer makeConnectRequest(int transactionID) {
+		ByteBuffer request = ByteBuffer.allocate(CONNECT_REQUEST_SIZE);
+		request.putLong(PROTOCOL_ID);
+		request.putInt(ACTION_CONNECT);
+		request.putInt(transactionID);
+		request.flip();
+		return request;
+	}
+
+	public ByteBuffer formAnnounceRequest(long connectionID, int transactionID) throws UnsupportedEncodingException {
+		TrackerRequestEvent event = getRequestEvent() != null ? getRequestEvent() : TrackerRequestEvent.NONE;
+
+		ByteBuffer request = ByteBuffer.allocate(ANNOUNCE_REQUEST_SIZE);
+		request.putLong(connectionID);
+		request.putInt(ACTION_ANNOUNCE);
+		request.putInt(transactionID);
+		request.put(getInfoHash());
+		request.put(getPeerID().getBytes(TorrentSession.BYTE_ENCODING));
+		request.putLong(getDownloaded());
+		request.putLong(getLeft());
+		request.putLong(getUploaded());
+		request.putInt(event.getID());
+		// The tracker uses the address the datagram came from.
+		request.putInt(0);
+		request.putInt(getKey());
+		request.putInt(getNumWant());
+		request.putShort((short) getPort());
+		request.flip();
+		return request;
+	}
+
+	public static ByteBuffer makeScrapeRequest(long connectionID, int transactionID, List<byte[]> infoHashes) {
+		if (infoHashes.isEmpty() || infoHashes.size() > MAX_SCRAPE_HASHES) {
+			throw new IllegalArgumentException("cannot scrape " + infoHashes.size() + " torrents at once");
+		}
+
+		ByteBuffer request = ByteBuffer.allocate(SCRAPE_REQUEST_HEADER_SIZE + infoHashes.size() * 20);
+		request.putLong(connectionID);
+		request.putInt(ACTION_SCRAPE);
+		request.putInt(transactionID);
+		for (byte[] infoHash : infoHashes) {
+			request.put(infoHash);
+		}
+		request.flip();
+		return request;
+	}
+}
@@ -0,0 +1,128 @@
+package com.jtorrent.messaging.udp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
+import com.jtorrent.messaging.announce.TrackerResponseMessage;
+import com.jtorrent.messaging.http.HTTPTrackerResponseMessage;
+import com.jtorrent.peer.Peer;
+
+/**
+ * The response of a UDP tracker to an announce request. Unlike the HTTP
+ * tracker, the UDP tracker does not count the completions in its announce
+ * response and always sends a compact list of peers.
+ *
+ * @see <a href="http://www.bittorrent.org/beps/bep_0015.html">UDP Tracker
+ *      Protocol</a>
+ * @author Alex
+ *
+ */
+public class UDPTrackerResponseMessage extends TrackerResponseMessage {
+
+	public static final int RESPONSE_HEADER_SIZE = 8;
+	public static final int CONNECT_RESPONSE_SIZE = 16;
+	public static final int ANNOUNCE_RESPONSE_HEADER_SIZE = 20;
+	public static final int SCRAPE_RESPONSE_ENTRY_SIZE = 12;
+
+	public UDPTrackerResponseMessage(String failureReason, int interval, int seeders, int leechers,
+			List<Peer> peers) {
+		super(failureReason, "", interval, seeders, leechers, peers);
+	}
+
+	/**
+	 * @param message
+	 *            The datagram the tracker sent back, starting with the action.
+	 * @return The announce response or, if the tracker sent an error, a
+	 *         response with a failure reason.
+	 */
+	public static UDPTrackerResponseMessage parseAnnounce(ByteBuffer message) throws AnnounceException, IOException {
+		int action = message.getInt(message.position());
+		if (action == UDPTrackerRequestMessage.ACTION_ERROR) {
+			return new UDPTrackerResponseMessage(parseError(message), 0, 0, 0, new ArrayList<Peer>());
+		}
+		if (action != UDPTrackerRequestMessage.ACTION_ANNOUNCE || message.remaining() < ANNOUNCE_RESPONSE_HEADER_SIZE) {
+			throw new AnnounceException("invalid announce response");
+		}
+
+		ByteBuffer response = message.duplicate();
+		response.position(response.position() + RESPONSE_HEADER_SIZE);
+		int interval = response.getInt();
+		int leechers = response.getInt();
+		int seeders = response.getInt();
+
+		// Ignore a trailing partial entry rather than the whole response.
+		byte[] peers = new byte[response.remaining()
+				- response.remaining() % HTTPTrackerResponseMessage.COMPACT_PEER_LIST_VALUE_SIZE];
+		response.get(peers);
+		return new UDPTrackerResponseMessage("", interval, seeders, leechers,
+				HTTPTrackerResponseMessage.providePeerListFromBytes(peers));
+	}
+
+	/**
+	 * @return The connection ID handed out by the tracker.
+	 */
+	public static long parseConnect(ByteBuffer message) throws AnnounceException {
+		int action = message.getInt(message.position());
+		if (action == UDPTrackerRequestMessage.ACTION_ERROR) {
+			throw new AnnounceException("tracker refused to connect: " + parseError(message));
+		}
+		if (action != UDPTrackerRequestMessage.ACTION_CONNECT || message.remaining() < CONNECT_RESPONSE_SIZE) {
+			throw new AnnounceException("invalid connect response");
+		}
+		return message.getLong(message.position() + RESPONSE_HEADER_SIZE);
+	}
+
+	/**
+	 * @param infoHashes
+	 *            The info hashes in the order in which they were scraped.
+	 */
+	public static List<ScrapeStatistics> parseScrape(ByteBuffer message, List<byte[]> infoHashes)
+			throws AnnounceException {
+		int action = message.getInt(message.position());
+		if (action == UDPTrackerRequestMessage.ACTION_ERROR) {
+			throw new AnnounceException("tracker refused to scrape: " + parseError(message));
+		}
+		if (action != UDPTrackerRequestMessage.ACTION_SCRAPE) {
+			throw new AnnounceException("invalid scrape response");
+		}
+
+		ByteBuffer response = message.duplicate();
+		response.position(response.position() + RESPONSE_HEADER_SIZE);
+		List<ScrapeStatistics> statistics = new ArrayList<ScrapeStatistics>(infoHashes.size());
+		for (byte[] infoHash : infoHashes) {
+			if (response.remaining() < SCRAPE_RESPONSE_ENTRY_SIZE) {
+				break;
+			}
+			int seeders = response.getInt();
+			int completed = response.getInt();
+			int leechers = response.getInt();
+			statistics.add(new ScrapeStatistics(infoHash, seeders, completed, leechers));
+		}
+		return statistics;
+	}
+
+	private static String parseError(ByteBuffer message) {
+		ByteBuffer response = message.duplicate();
+		response.position(response.position() + RESPONSE_HEADER_SIZE);
+		byte[] error = new byte[Math.max(0, response.remaining())];
+		response.get(error);
+		return new String(error, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("---- UDP Tracker Response ----\n");
+		sb.append("\tfailure reason: " + getFailureReason() + "\n");
+		sb.append("\tinterval: " + getInterval() + "\n");
+		sb.append("\tseeders: " + getComplete() + "\n");
+		sb.append("\tleechers: " + getIncomplete() + "\n");
+		sb.append("\tpeers: " + getPeers().size() + "\n");
+		return sb.toString();
+	}
+}
@@ -8,7 +8,6 @@ import java.util.Map;
 
 import com.jtorrent.bencode.BObject;
 import com.jtorrent.bencode.BObject.BEncodingException;
-import com.jtorrent.storage.Piece;
 
 public class InfoDictionary {
 	public static final String NAME_KEY = "name";
@@ -22,13 +21,16 @@ public class InfoDictionary {
 	private final int _pieceLength;
 	private final ByteBuffer _pieces;
 	private final long _length;
+	private final PieceTable _pieceTable;
 
 	private final List<FileDictionary> _files;
 
 	public InfoDictionary(Map<String, BObject> metaInfo) throws BEncodingException, IllegalStateException {
 		_name = metaInfo.get(NAME_KEY).asString();
 		_pieceLength = metaInfo.get(PIECE_LENGTH_KEY).asInt();
-		_pieces = ByteBuffer.wrap(metaInfo.get(PIECES_KEY).asBytes());
+		// The hashes are not copied out of the meta info. The slice makes the
+		// capacity of the buffer the length of the hashes.
+		_pieces = metaInfo.get(PIECES_KEY).asByteBuffer().slice();
 
 		// Check if the info is in single or multiple file mode.
 		if (metaInfo.containsKey(FILES_KEY)) {
@@ -40,9 +42,10 @@ public class InfoDictionary {
 			_files.add(new FileDictionary(_name, _length));
 		}
 
-		if ((long) _pieces.capacity() / Piece.HASH_SIZE * _pieceLength < _length) {
+		if ((long) _pieces.capacity() / PieceTable.HASH_SIZE * _pieceLength < _length) {
 			throw new IllegalStateException("Peices and files length do not match in size.");
 		}
+		_pieceTable = new PieceTable(_pieces, _pieceLength, _length);
 	}
 
 	private long calculateFilesLength() {
@@ -62,6 +65,10 @@ public class InfoDictionary {
 		return _pieces;
 	}
 
+	public PieceTable getPieceTable() {
+		return _pieceTable;
+	}
+
 	public int getPieceLength() {
 		return _pieceLength;
 	}
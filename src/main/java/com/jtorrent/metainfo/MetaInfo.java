@@ -1,12 +1,10 @@
 package com.jtorrent.metainfo;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -61,16 +59,16 @@ public class MetaInfo {
 	public MetaInfo(File torrentFile)
 			throws IOException, NoSuchAlgorithmException, URISyntaxException, InvalidAlgorithmParameterException {
 		byte[] metaInfo = FileUtils.readFileToByteArray(torrentFile);
-		InputStream inputStream = new ByteArrayInputStream(metaInfo);
 
-		// Decode the meta info and extract the required components.
-		_decodedMetaInfo = BDecoder.instance().decode(inputStream).asMap();
+		// Decode the meta info and extract the required components. The byte
+		// strings, such as the piece hashes, stay in the array of the file.
+		_decodedMetaInfo = BDecoder.instance().decode(ByteBuffer.wrap(metaInfo)).asMap();
 
 		if (!_decodedMetaInfo.containsKey(INFO_KEY)) {
 			throw new InvalidAlgorithmParameterException("the meta info file does not contain 'info'key");
 		}
 		_info = _decodedMetaInfo.get(INFO_KEY).asMap();
-		_infoHash = provideInfoHash();
+		_infoHash = provideInfoHash(ByteBuffer.wrap(metaInfo));
 		_infoHashHex = Utils.convertToHex(_infoHash);
 		_announceList = provideAnnounceList();
 		_creationDate = provideCreationDate();
@@ -80,19 +78,87 @@ public class MetaInfo {
 		_infoDictionary = new InfoDictionary(_info);
 	}
 
-	private byte[] provideInfoHash() throws IOException, NoSuchAlgorithmException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		// First the info from the meta file needs to be encoded.
-		BEncoder.instance().encode(_info, out);
+	/**
+	 * The hash is taken over the info dictionary exactly as it is in the file.
+	 * Encoding the decoded dictionary again would give other bytes whenever
+	 * the file does not follow the canonical form, e.g. has unsorted keys.
+	 */
+	private byte[] provideInfoHash(ByteBuffer metaInfo)
+			throws IOException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		InfoSpanHandler span = new InfoSpanHandler(metaInfo);
+		BParser.instance().parse(metaInfo, span);
+		ByteBuffer info = span.provideInfo();
+		if (info == null) {
+			throw new InvalidAlgorithmParameterException("the meta info file does not contain an 'info' dictionary");
+		}
 
-		// The encoded date is encrypted using the sha1 hashing algorithm.
 		MessageDigest encryptedInfo = MessageDigest.getInstance(HASHING_ALGORITHM);
 		encryptedInfo.reset();
-		encryptedInfo.update(out.toByteArray());
+		encryptedInfo.update(info);
 
 		return encryptedInfo.digest();
 	}
 
+	/**
+	 * Finds where the info dictionary begins and ends in the meta info file.
+	 * The position of the parsed buffer is right after the reported item
+	 * during every event.
+	 */
+	private static class InfoSpanHandler implements BHandler {
+		private final ByteBuffer _metaInfo;
+		private int _depth;
+		private int _begin = -1;
+		private int _end = -1;
+
+		public InfoSpanHandler(ByteBuffer metaInfo) {
+			_metaInfo = metaInfo;
+		}
+
+		@Override
+		public void key(String key) throws IOException {
+			if (_depth == 1 && _begin < 0 && INFO_KEY.equals(key)) {
+				_begin = _metaInfo.position();
+			}
+		}
+
+		@Override
+		public void startDictionary() throws IOException {
+			_depth++;
+		}
+
+		@Override
+		public void endDictionary() throws IOException {
+			if (--_depth == 1 && _begin >= 0 && _end < 0) {
+				_end = _metaInfo.position();
+			}
+		}
+
+		@Override
+		public void startList() throws IOException {
+			_depth++;
+		}
+
+		@Override
+		public void endList() throws IOException {
+			_depth--;
+		}
+
+		/**
+		 * @return The bytes of the info dictionary, or <b>null</b> if there is
+		 *         none.
+		 */
+		public ByteBuffer provideInfo() {
+			if (_begin < 0 || _end < 0) {
+				return null;
+			}
+
+			ByteBuffer info = _metaInfo.duplicate();
+			info.limit(_end);
+			info.position(_begin);
+			return info;
+		}
+	}
+
 	/**
 	 * The announce-list extension is supported in our implementation. <br/>
 	 * For ease of use, if the meta info file provides only an announce key,
@@ -0,0 +1,109 @@
+package com.jtorrent.metainfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * The meta data of all the pieces of a torrent. The hashes stay in a single
+ * buffer - the one in which they were read from the meta info file - and where
+ * a piece begins and how long it is follows from its index. Nothing is kept
+ * per piece, so the table costs the same for a torrent of 200 pieces as for
+ * one of 200 thousand, apart from the hashes themselves.
+ * </p>
+ * <p>
+ * The table is immutable and safe to be used by several threads.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class PieceTable {
+
+	/**
+	 * The size of a SHA-1 hash of a piece.
+	 */
+	public static final int HASH_SIZE = 20;
+
+	private final ByteBuffer _hashes;
+	private final int _pieceLength;
+	private final long _length;
+	private final int _size;
+
+	/**
+	 * @param hashes
+	 *            The hashes of the pieces, one after another. The buffer is not
+	 *            copied and is only read with absolute gets.
+	 * @param pieceLength
+	 *            The length of every piece but the last.
+	 * @param length
+	 *            The length of the whole torrent.
+	 */
+	public PieceTable(ByteBuffer hashes, int pieceLength, long length) {
+		if (pieceLength <= 0) {
+			throw new IllegalArgumentException("Invalid piece length: " + pieceLength);
+		}
+
+		_hashes = hashes.slice();
+		_pieceLength = pieceLength;
+		_length = length;
+		_size = (int) ((length + pieceLength - 1) / pieceLength);
+		if ((long) _size * HASH_SIZE > _hashes.remaining()) {
+			throw new IllegalStateException("Peices and files length do not match in size.");
+		}
+	}
+
+	/**
+	 * @return The number of pieces.
+	 */
+	public int size() {
+		return _size;
+	}
+
+	public int getPieceLength() {
+		return _pieceLength;
+	}
+
+	/**
+	 * @return Where the piece begins in the torrent.
+	 */
+	public long provideBegin(int index) {
+		return ((long) index) * _pieceLength;
+	}
+
+	/**
+	 * @return The size of the piece. The last piece may be shorter than the
+	 *         others.
+	 */
+	public int provideSize(int index) {
+		return (int) Math.min(_pieceLength, _length - provideBegin(index));
+	}
+
+	/**
+	 * Compares a digest to the hash of the piece in place. Every byte is
+	 * compared, so the time taken does not depend on where they differ.
+	 */
+	public boolean matches(int index, byte[] digest) {
+		if (digest == null || digest.length != HASH_SIZE) {
+			return false;
+		}
+
+		int offset = index * HASH_SIZE;
+		int difference = 0;
+		for (int i = 0; i < HASH_SIZE; i++) {
+			difference |= _hashes.get(offset + i) ^ digest[i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * @return A copy of the hash of the piece.
+	 */
+	public byte[] provideHash(int index) {
+		byte[] hash = new byte[HASH_SIZE];
+		int offset = index * HASH_SIZE;
+		for (int i = 0; i < hash.length; i++) {
+			hash[i] = _hashes.get(offset + i);
+		}
+		return hash;
+	}
+}
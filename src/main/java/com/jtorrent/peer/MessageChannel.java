@@ -4,16 +4,14 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -21,224 +19,466 @@ import org.slf4j.LoggerFactory;
 
 import com.jtorrent.messaging.message.KeepAliveMessage;
 import com.jtorrent.messaging.message.Message;
-import com.jtorrent.messaging.message.MessageExchangeException;
 import com.jtorrent.messaging.message.MessageListener;
-import com.jtorrent.messaging.message.Messages;
+import com.jtorrent.storage.FileStore;
 import com.jtorrent.torrent.TorrentSession;
 
-// TODO - add documentation
+/**
+ * <p>
+ * MessageChannel frames the peer wire protocol messages exchanged over a
+ * single socket channel. The channel itself owns no threads - it is driven by
+ * one of the selector loops of the {@link MessageReactor}, which calls back
+ * into the channel whenever the socket is readable or writable.
+ * </p>
+ * <p>
+ * Outgoing messages are queued and written in the order they were sent.
+ * Should no message be sent during a 2 minute period, a keep-alive message is
+ * sent so that the connection with the peer is kept open.
+ * </p>
+ * <p>
+ * The blocks uploaded to the peer are transferred from the file store by the
+ * upload threads of the reactor. While a block is being transferred the loop
+ * stops writing to the channel, and it resumes once the upload thread hands
+ * the channel back.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
 public class MessageChannel {
-	
+
 	private static final Logger _logger = LoggerFactory.getLogger(MessageChannel.class);
-	
+
+	private static final long KEEP_ALIVE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+	/**
+	 * No valid message is bigger than this. A peer announcing a bigger message
+	 * is treated as a protocol violation.
+	 */
+	public static final int MAX_MESSAGE_SIZE = 1 * 1024 * 1024;
+
 	private final SocketChannel _socketChannel;
-	
-	private BlockingQueue<ByteBuffer> _messageQueue;
-	
-	private List<MessageListener> _listeners;
-	
-	private ExecutorService _messageService;
-	
-	private boolean _closed;
-	
-	private final TorrentSession _torrentSession;
+
+	private final Queue<OutgoingMessage> _messageQueue;
+	private final AtomicBoolean _writeScheduled;
+
+	private final List<MessageListener> _listeners;
+
+	private volatile boolean _closed;
+
 	private final Peer _peer;
-	
+	private final MessageReactor.SelectorLoop _loop;
+	private final ReceiveBufferPool _bufferPool;
+	private final Executor _uploadExecutor;
+	private SelectionKey _selectionKey;
+
+	// Receive state. Only ever touched from the loop thread.
+	private final ByteBuffer _lengthBuffer;
+	private ByteBuffer _message;
+
+	private long _lastSent;
+	// Set while an upload thread is writing a block to the socket. Only ever
+	// touched from the loop thread.
+	private boolean _transferInFlight;
+
 	private MessageChannel(SocketChannel socketChannel, TorrentSession torrentSession, Peer peer) throws IOException {
 		_socketChannel = socketChannel;
-		
-		_messageQueue = new LinkedBlockingQueue<ByteBuffer>();
-		
-		_listeners = new LinkedList<MessageListener>();
-		
-		_torrentSession = torrentSession;
+
+		_messageQueue = new ConcurrentLinkedQueue<OutgoingMessage>();
+		_writeScheduled = new AtomicBoolean();
+
+		_listeners = new CopyOnWriteArrayList<MessageListener>();
+
 		_peer = peer;
-		
-		MessageReceiveTask recv = new MessageReceiveTask();
-		MessageSendTask send = new MessageSendTask();		
-		_messageService = Executors.newCachedThreadPool();
-		_messageService.execute(send);
-		_messageService.execute(recv);		
+
+		_lengthBuffer = ByteBuffer.allocate(Message.LENGTH_FIELD_SIZE);
+		_lastSent = System.currentTimeMillis();
+
+		MessageReactor reactor = torrentSession.getConnectionService().getMessageReactor();
+		_bufferPool = reactor.getBufferPool();
+		_loop = reactor.nextLoop();
+		_uploadExecutor = reactor.getUploadExecutor();
 	}
-	
+
 	public static MessageChannel open(SocketChannel socketChannel, TorrentSession torrentSession, Peer peer) throws IOException {
 		return new MessageChannel(socketChannel, torrentSession, peer);
 	}
 
+	/**
+	 * Binds the channel to its selector loop so that the loop starts reading
+	 * messages from the peer. The listeners should be added before the channel
+	 * is started, or else the first messages of the peer may be missed.
+	 */
+	public void start() {
+		if (_closed) {
+			return;
+		}
+
+		_loop.register(this);
+	}
+
+	/**
+	 * Closes the channel. Any messages that are still queued are flushed on a
+	 * best effort basis before the socket is closed.
+	 */
 	public void close() {
-		_closed = true;		
-		_messageService.shutdownNow();
-		if(_socketChannel.isConnected()) {
-			IOUtils.closeQuietly(_socketChannel);
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+
+		if (_loop.inLoop() || !_loop.isRunning()) {
+			closeInLoop();
+		} else {
+			_loop.execute(this::closeInLoop);
 		}
 	}
-	
-	public void send(ByteBuffer msg) {
+
+	private void closeInLoop() {
 		try {
-			_messageQueue.put(msg);
-		} catch (InterruptedException e) {
-			_logger.warn("MESSAGE QUEUE BUSTED!!");
+			if (_socketChannel.isConnected()) {
+				flush();
+			}
+		} catch (IOException e) {
+			// Ignore - the channel is going away anyway.
+		}
+
+		if (_selectionKey != null) {
+			_selectionKey.cancel();
+		}
+		IOUtils.closeQuietly(_socketChannel);
+		_messageQueue.clear();
+		
+		if (_message != null) {
+			_bufferPool.release(_message);
+			_message = null;
 		}
+		_logger.debug("Channel for peer {} closed...", _peer.getHostAddress());
 	}
-	
+
+	/**
+	 * Runs the task in the selector loop that drives the channel. This way a
+	 * task posted from another thread, which may hold locks of its own, is run
+	 * along with the messages of the peer.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 */
+	void execute(Runnable task) {
+		if (_closed) {
+			return;
+		}
+
+		_loop.execute(task);
+	}
+
+	public void send(ByteBuffer msg) {
+		if (_closed) {
+			return;
+		}
+
+		// The same message might be broadcast to many peers (e.g. HAVE), so
+		// every channel needs its own position in the buffer.
+		ByteBuffer out = msg.duplicate();
+		out.rewind();
+		enqueue(new BufferMessage(out));
+	}
+
+	/**
+	 * Sends a PIECE message whose block is transferred straight from the file
+	 * store to the socket, without being copied through the heap.
+	 * 
+	 * @param header
+	 *            The header of the PIECE message.
+	 * @param store
+	 *            The file store that holds the block.
+	 * @param begin
+	 *            Where the block begins in the file store.
+	 * @param length
+	 *            The length of the block.
+	 */
+	public void sendFileRegion(ByteBuffer header, FileStore store, long begin, long length) {
+		if (_closed) {
+			return;
+		}
+
+		ByteBuffer out = header.duplicate();
+		out.rewind();
+		enqueue(new FileRegionMessage(out, store, begin, length));
+	}
+
+	private void enqueue(OutgoingMessage msg) {
+		_messageQueue.add(msg);
+
+		if (_writeScheduled.compareAndSet(false, true)) {
+			_loop.execute(this::enableWriteInterest);
+		}
+	}
+
 	public boolean isConnected() {
 		return _socketChannel.isConnected();
 	}
-	
+
 	public void addMessageListener(MessageListener listener) {
 		_listeners.add(listener);
 	}
-	
+
+	SocketChannel getSocketChannel() {
+		return _socketChannel;
+	}
+
 	private void notifyExceptionListeners(Exception e) {
-		for(MessageListener l : _listeners) {
+		for (MessageListener l : _listeners) {
 			l.onMessageChannelException(e);
 		}
 	}
-	
+
 	private void notifyMessageListeners(ByteBuffer msg) {
-		for(MessageListener l : _listeners) {
+		for (MessageListener l : _listeners) {
 			l.onMessageReceived(msg);
 		}
 	}
-	
+
+	///////////////////////// SELECTOR LOOP CALLBACKS
+
+	void onRegistered(SelectionKey key) {
+		_selectionKey = key;
+		if (_closed) {
+			closeInLoop();
+			return;
+		}
+
+		// Messages sent before the channel was registered are waiting for
+		// the socket to become writable.
+		if (_writeScheduled.get()) {
+			enableWriteInterest();
+		}
+	}
+
+	void onFailure(Exception e) {
+		if (_closed) {
+			return;
+		}
+		_logger.trace("Channel for peer {} failed: {}", _peer.getHostAddress(), e.toString());
+		notifyExceptionListeners(e);
+		close();
+	}
+
 	/**
-	 * <p>MessageSendTask has the job of sending the messages that it receives on the 
-	 * message queue. This process is done by immediately forwarding the messages in 
-	 * the order they arrived at the message channel.</p>
-	 * 
-	 * <p>Should no message arrive during a 2 minute period, a keep-alive message is sent
-	 * so that the connection with the peer is kept open</p>
-	 * @author Alex
-	 *
+	 * Reads as much as the socket has to offer. Every time a whole message has
+	 * been framed, it is handed over to the listeners.
 	 */
-	private class MessageSendTask implements Runnable {
+	void onReadable() throws IOException {
+		while (!_closed) {
+			if (_message == null) {
+				if (read(_lengthBuffer) == 0 || _lengthBuffer.hasRemaining()) {
+					return;
+				}
 
-		private static final int KEEP_ALIVE_TIMEOUT = 2;
-		
-		@Override
-		public void run() {
-			while(!_closed || (_closed && _messageQueue.size() > 0)) {
-				try {
-					ByteBuffer msg = _messageQueue.poll(KEEP_ALIVE_TIMEOUT, TimeUnit.MINUTES);
-					if (msg == null) {
-						msg = KeepAliveMessage.make();
-					}
-										
-					String message = null;
-					try {
-						ByteBuffer dup = msg.duplicate();
-						dup.rewind();
-						message = Messages.parse(_torrentSession, dup).getMessageType().toString();
-						_logger.trace("Peer {} is trying to send {} bytes {} message", _peer.getHostAddress(), msg.capacity(), message);
-					} catch (MessageExchangeException e1) {
-						// TODO Auto-generated catch block
-						e1.printStackTrace();
-					}
-					msg.rewind();
-					// Send the message on the socket channel.
-					while(!_closed && msg.hasRemaining()) {
-						int sent = _socketChannel.write(msg);
-						if(sent < 0) {
-							_logger.trace("DAMN IT!!! could not send message {}", message);
-							EOFException e = new EOFException("unexpected end of stream while sending " + message);
-							notifyExceptionListeners(e);
-							return;
-						} else {
-							_logger.trace("Sent {} bytes {} to peer {}", sent, message, _peer.getHostAddress());
-						}
-						
-					}
-				} catch (InterruptedException | IOException e) {
-					notifyExceptionListeners(e);
+				int length = _lengthBuffer.getInt(0);
+				if (length < 0 || length > MAX_MESSAGE_SIZE) {
+					throw new IllegalArgumentException("invalid message length " + length);
 				}
+				_logger.trace("Trying to read message with <len={}> from peer {}", length, _peer.getHostAddress());
+
+				_message = _bufferPool.acquire(Message.LENGTH_FIELD_SIZE + length);
+				_message.putInt(length);
+				_lengthBuffer.clear();
+			}
+
+			if (_message.hasRemaining() && (read(_message) == 0 || _message.hasRemaining())) {
+				return;
+			}
+
+			// Now rewind the buffer and send the newly arrived message to
+			// all interested listeners. The listeners handle the message
+			// synchronously, so the buffer goes straight back to the pool.
+			ByteBuffer message = _message;
+			_message = null;
+			message.rewind();
+			try {
+				notifyMessageListeners(message);
+			} finally {
+				_bufferPool.release(message);
+			}
+		}
+	}
+
+	private int read(ByteBuffer buffer) throws IOException {
+		int bytes = _socketChannel.read(buffer);
+		if (bytes < 0) {
+			throw new EOFException("unexpected end of stream from peer " + _peer.getHostAddress());
+		}
+		return bytes;
+	}
+
+	void onWritable() throws IOException {
+		if (!flush()) {
+			if (_transferInFlight) {
+				// The upload thread owns the socket until the block is
+				// transferred - there is no point in polling it.
+				_selectionKey.interestOps(SelectionKey.OP_READ);
+			}
+			return;
+		}
+
+		// Everything has been written - stop listening for writability until
+		// a new message is sent. A message might have been queued in between,
+		// so the queue is checked again after the flag is cleared.
+		_selectionKey.interestOps(SelectionKey.OP_READ);
+		_writeScheduled.set(false);
+		if (!_messageQueue.isEmpty() && _writeScheduled.compareAndSet(false, true)) {
+			enableWriteInterest();
+		}
+	}
+
+	/**
+	 * Writes the queued messages until the socket buffer is full.
+	 *
+	 * @return <b>true</b> if the queue has been drained; <b>false</b> - the
+	 *         socket cannot accept more data at the moment.
+	 */
+	private boolean flush() throws IOException {
+		if (_transferInFlight) {
+			return false;
+		}
+
+		OutgoingMessage msg;
+		while ((msg = _messageQueue.peek()) != null) {
+			if (!msg.writeTo(_socketChannel)) {
+				return false;
+			}
+			_messageQueue.poll();
+			_lastSent = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	private void enableWriteInterest() {
+		if (_selectionKey == null || !_selectionKey.isValid()) {
+			return;
+		}
+		_selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Hands the transfer of a block over to an upload thread, so that the loop
+	 * never waits for the disk.
+	 */
+	private void transferInBackground(FileRegionMessage region) {
+		_transferInFlight = true;
+		_uploadExecutor.execute(() -> {
+			Exception failure = null;
+			try {
+				region.transfer(_socketChannel);
+			} catch (IOException | RuntimeException e) {
+				failure = e;
 			}
-			
-			_logger.debug("Closed send task");
-		}		
+
+			Exception result = failure;
+			_loop.execute(() -> onTransferred(result));
+		});
+	}
+
+	private void onTransferred(Exception failure) {
+		_transferInFlight = false;
+		if (_closed) {
+			return;
+		}
+		if (failure != null) {
+			onFailure(failure);
+			return;
+		}
+
+		// Whatever is left of the block is written once the socket can take
+		// more data.
+		enableWriteInterest();
 	}
-	
-	private class MessageReceiveTask implements Runnable {
 
+	void onIdleCheck(long now) {
+		if (now - _lastSent >= KEEP_ALIVE_TIMEOUT_MILLIS && _messageQueue.isEmpty()) {
+			_lastSent = now;
+			send(KeepAliveMessage.make());
+		}
+	}
+
+	///////////////////////// OUTGOING MESSAGES
+
+	/**
+	 * A message waiting in the send queue. It is written to the socket in as
+	 * many steps as the socket needs.
+	 */
+	private interface OutgoingMessage {
 		/**
-		 * Used for determining the state of the socket channel.
+		 * @return <b>true</b> when the entire message has been written.
 		 */
-		private Selector _selector;
-		
+		public boolean writeTo(SocketChannel channel) throws IOException;
+	}
+
+	private static class BufferMessage implements OutgoingMessage {
+		private final ByteBuffer _buffer;
+
+		public BufferMessage(ByteBuffer buffer) {
+			_buffer = buffer;
+		}
+
 		@Override
-		public void run() {
-			// Allocate 1 MB for the buffer.
-			ByteBuffer message = ByteBuffer.allocateDirect(1*1024*1024);
-			try {
-				_selector = Selector.open();
-				_socketChannel.register(_selector, SelectionKey.OP_READ);
-				
-				while(!_closed) {
-					_logger.trace("Trying to read from peer {}...", _peer.getHostAddress());
-					message.rewind();
-					// Read the length of the message first.
-					message.limit(Message.LENGTH_FIELD_SIZE);
-					while(!_closed && message.hasRemaining()) {
-						read(message);
-					}
-										
-					// Get ready to accept the entire message.
-					int length = message.getInt(0);
-					_logger.trace("Trying to read message with <len={}> from peer {}", length, _peer.getHostAddress());
-
-					message.limit(Message.LENGTH_FIELD_SIZE + length);
-					while(!_closed && message.hasRemaining()) {
-						read(message);
-					}
-															
-					// Now rewind the buffer and send the newly arrived message to
-					// all interested listeners.
-					message.rewind();
-					
-					if(_closed) {
-						break;
-					}
-					
-					notifyMessageListeners(message);
-				}
-			} catch (IOException | IllegalArgumentException e) {
-				notifyExceptionListeners(e);
-			} finally{
-				if(_selector != null) {
-					try {
-						_selector.close();
-					} catch (IOException e) {
-						notifyExceptionListeners(e);
-					}
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			channel.write(_buffer);
+			return !_buffer.hasRemaining();
+		}
+	}
+
+	/**
+	 * A PIECE message whose header is in memory and whose block is still in
+	 * the file store. The header is written by the loop, the block - by an
+	 * upload thread.
+	 */
+	private class FileRegionMessage implements OutgoingMessage {
+		private final ByteBuffer _header;
+		private final FileStore _store;
+		private final long _begin;
+		private final long _length;
+		private long _transferred;
+
+		public FileRegionMessage(ByteBuffer header, FileStore store, long begin, long length) {
+			_header = header;
+			_store = store;
+			_begin = begin;
+			_length = length;
+		}
+
+		@Override
+		public boolean writeTo(SocketChannel channel) throws IOException {
+			if (_header.hasRemaining()) {
+				channel.write(_header);
+				if (_header.hasRemaining()) {
+					return false;
 				}
 			}
-			
-			_logger.info("Read channel for peer {} closed...", _peer.getHostAddress());
-			
-		}
-		
-		private long read(ByteBuffer message) throws IOException {
-			if(_selector.select() == 0 || !message.hasRemaining()) {
-				return 0;
+
+			if (_transferred == _length) {
+				return true;
 			}
-			
-			long read = 0;
-			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
-			// Traverse all the keys.
-			// In fact we only have one channel registered with this selector,
-			// but the code below is written like that for consistency.
-
-			while(it.hasNext()) {
-				SelectionKey selectionKey = (SelectionKey) it.next();
-				if(selectionKey.isValid() & selectionKey.isReadable()) {
-					int bytes = _socketChannel.read(message);
-					if (bytes < 0) {
-						throw new IOException("unexpected end of stream while reading with " + read + " read so far / reamining = " + message.remaining());
-					}
-					read += bytes;
-				}				
-				it.remove();
+
+			if (!_closed) {
+				transferInBackground(this);
+			}
+			return false;
+		}
+
+		/**
+		 * Transfers as much of the block as the socket accepts. Called from an
+		 * upload thread.
+		 */
+		void transfer(SocketChannel channel) throws IOException {
+			while (_transferred < _length) {
+				long sent = _store.transferTo(_begin + _transferred, _length - _transferred, channel);
+				if (sent <= 0) {
+					return;
+				}
+				_transferred += sent;
 			}
-			return read;			
 		}
 	}
 }
@@ -0,0 +1,292 @@
+package com.jtorrent.peer;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * MessageReactor is the event loop that drives the socket channels of every
+ * connected peer. Instead of dedicating a send and a receive thread to each
+ * peer, a small fixed set of selector loops multiplexes all the peer sockets of
+ * all the torrent sessions in the client.
+ * </p>
+ * <p>
+ * Every {@link MessageChannel} is bound to exactly one loop for its entire
+ * lifetime. The loop reads from the channel when the socket becomes readable
+ * and writes the queued messages when the socket becomes writable, so no
+ * thread ever blocks on a single peer.
+ * </p>
+ * <p>
+ * The blocks that are uploaded to the peers are read from the disk by a
+ * separate pool of upload threads, so that a slow disk never stalls the
+ * loops.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class MessageReactor {
+
+	private static final Logger _logger = LoggerFactory.getLogger(MessageReactor.class);
+
+	public static final int DEFAULT_LOOP_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * How often the loops wake up, even if no socket is ready, in order to
+	 * perform housekeeping such as sending keep-alive messages.
+	 */
+	private static final long SELECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	private final SelectorLoop[] _loops;
+	private final AtomicInteger _nextLoop;
+	private final ReceiveBufferPool _bufferPool;
+	private ExecutorService _uploadExecutor;
+
+	private volatile boolean _running;
+
+	public MessageReactor() {
+		this(DEFAULT_LOOP_THREADS);
+	}
+
+	public MessageReactor(int loopThreads) {
+		if (loopThreads <= 0) {
+			throw new IllegalArgumentException("The reactor needs at least one loop thread, got " + loopThreads);
+		}
+
+		_loops = new SelectorLoop[loopThreads];
+		_nextLoop = new AtomicInteger();
+		_bufferPool = new ReceiveBufferPool();
+	}
+
+	public synchronized void start() throws IOException {
+		if (_running) {
+			return;
+		}
+
+		for (int i = 0; i < _loops.length; i++) {
+			_loops[i] = new SelectorLoop(Selector.open());
+			Thread thread = new Thread(_loops[i], "jtorrent-io-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		final AtomicInteger uploadThreads = new AtomicInteger();
+		_uploadExecutor = Executors.newFixedThreadPool(_loops.length, runnable -> {
+			Thread thread = new Thread(runnable, "jtorrent-upload-" + uploadThreads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		_running = true;
+		_logger.debug("Message reactor started with {} loops", _loops.length);
+	}
+
+	public synchronized void stop() {
+		if (!_running) {
+			return;
+		}
+
+		_running = false;
+		for (SelectorLoop loop : _loops) {
+			loop.stop();
+		}
+		_uploadExecutor.shutdown();
+		_logger.debug("Message reactor stopped");
+	}
+
+	public boolean isRunning() {
+		return _running;
+	}
+
+	public int getLoopThreads() {
+		return _loops.length;
+	}
+
+	/**
+	 * @return The pool from which the channels take the buffers for the
+	 *         inbound messages.
+	 */
+	public ReceiveBufferPool getBufferPool() {
+		return _bufferPool;
+	}
+
+	/**
+	 * @return The executor on which the blocks uploaded to the peers are
+	 *         transferred from the file stores.
+	 */
+	ExecutorService getUploadExecutor() {
+		return _uploadExecutor;
+	}
+
+	/**
+	 * Picks the selector loop that is to drive a new message channel. The
+	 * loops are assigned in a round robin manner so that the peers are evenly
+	 * spread. The channel is not bound to the loop until it is registered with
+	 * {@link SelectorLoop#register(MessageChannel)}.
+	 *
+	 * @return The loop that is to drive the channel.
+	 * @throws IOException
+	 *             If the reactor is not running.
+	 */
+	SelectorLoop nextLoop() throws IOException {
+		if (!_running) {
+			throw new IOException("the message reactor is not running");
+		}
+
+		return _loops[Math.abs(_nextLoop.getAndIncrement() % _loops.length)];
+	}
+
+	/**
+	 * A single selector thread. All the operations on the selection keys of
+	 * the loop are done from within the loop thread itself. Other threads hand
+	 * work over to the loop via {@link #execute(Runnable)}.
+	 *
+	 * @author Alex
+	 *
+	 */
+	class SelectorLoop implements Runnable {
+
+		private final Selector _selector;
+		private final Queue<Runnable> _tasks;
+		private volatile boolean _stop;
+		private volatile Thread _thread;
+
+		private long _lastIdleCheck;
+
+		SelectorLoop(Selector selector) {
+			_selector = selector;
+			_tasks = new ConcurrentLinkedQueue<Runnable>();
+		}
+
+		void execute(Runnable task) {
+			_tasks.add(task);
+			if (Thread.currentThread() != _thread) {
+				_selector.wakeup();
+			}
+		}
+
+		boolean inLoop() {
+			return Thread.currentThread() == _thread;
+		}
+
+		boolean isRunning() {
+			return !_stop;
+		}
+
+		void stop() {
+			_stop = true;
+			_selector.wakeup();
+		}
+
+		/**
+		 * Binds the message channel to the loop. From then on the loop reads
+		 * from the channel whenever the socket becomes readable.
+		 */
+		void register(MessageChannel channel) {
+			execute(() -> bind(channel));
+		}
+
+		private void bind(MessageChannel channel) {
+			SocketChannel socketChannel = channel.getSocketChannel();
+			try {
+				if (!socketChannel.isOpen()) {
+					throw new ClosedChannelException();
+				}
+				socketChannel.configureBlocking(false);
+				channel.onRegistered(socketChannel.register(_selector, SelectionKey.OP_READ, channel));
+			} catch (IOException e) {
+				channel.onFailure(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			_thread = Thread.currentThread();
+			_lastIdleCheck = System.currentTimeMillis();
+			while (!_stop) {
+				try {
+					_selector.select(SELECT_TIMEOUT_MILLIS);
+				} catch (IOException e) {
+					_logger.warn("Selector failed: {}", e.getMessage());
+					break;
+				}
+
+				runTasks();
+				processSelectedKeys();
+				checkIdleChannels();
+			}
+
+			closeAll();
+			_logger.debug("Selector loop {} closed", _thread.getName());
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = _tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					_logger.warn("Selector loop task failed: {}", e.toString());
+				}
+			}
+		}
+
+		private void processSelectedKeys() {
+			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				MessageChannel channel = (MessageChannel) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						channel.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						channel.onWritable();
+					}
+				} catch (IOException | RuntimeException e) {
+					// A misbehaving peer must never take down the whole loop.
+					channel.onFailure(e);
+				}
+			}
+		}
+
+		private void checkIdleChannels() {
+			long now = System.currentTimeMillis();
+			if (now - _lastIdleCheck < SELECT_TIMEOUT_MILLIS) {
+				return;
+			}
+
+			_lastIdleCheck = now;
+			for (SelectionKey key : _selector.keys()) {
+				if (key.isValid()) {
+					((MessageChannel) key.attachment()).onIdleCheck(now);
+				}
+			}
+		}
+
+		private void closeAll() {
+			for (SelectionKey key : _selector.keys()) {
+				((MessageChannel) key.attachment()).close();
+			}
+			runTasks();
+			try {
+				_selector.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+}
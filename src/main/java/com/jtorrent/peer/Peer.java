@@ -7,9 +7,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +27,9 @@ import com.jtorrent.messaging.message.PieceMessage;
 import com.jtorrent.messaging.message.RequestMessage;
 import com.jtorrent.messaging.message.UnchokeMessage;
 import com.jtorrent.messaging.rate.RateAccumulator;
+import com.jtorrent.storage.DiskWriter;
 import com.jtorrent.storage.Piece;
+import com.jtorrent.storage.PieceBufferPool;
 import com.jtorrent.storage.PieceRepository;
 import com.jtorrent.storage.PieceRepository.Block;
 import com.jtorrent.torrent.SessionInfo;
@@ -57,9 +58,22 @@ public class Peer implements MessageListener {
 	// Download and Upload rates
 	private RateAccumulator _downloadRate;
 	private RateAccumulator _uploadRate;
+	/**
+	 * Decides how many block requests are outstanding at the peer.
+	 */
+	private final RequestPipeline _requestPipeline;
 	
 	private List<PeerStateListener> _listeners;
 	
+	/**
+	 * Set while no blocks are requested, because the disk cannot keep up.
+	 */
+	private final AtomicBoolean _awaitingDisk;
+	/**
+	 * Set while no piece is chosen, because there is no memory to assemble it.
+	 */
+	private final AtomicBoolean _awaitingBuffer;
+	
 	public Peer(String host, int port) {
 		this(host, port, null);
 	}
@@ -73,6 +87,9 @@ public class Peer implements MessageListener {
 		_peerChoking = true;
 		
 		_listeners = new ArrayList<PeerStateListener>();
+		_awaitingDisk = new AtomicBoolean();
+		_awaitingBuffer = new AtomicBoolean();
+		_requestPipeline = new RequestPipeline();
 	}
 
 	public Peer(Socket socket, String peerID) {
@@ -139,6 +156,18 @@ public class Peer implements MessageListener {
 		return _uploadRate;
 	}
 	
+	public RequestPipeline getRequestPipeline() {
+		return _requestPipeline;
+	}
+	
+	/**
+	 * @return The number of block requests that can currently be outstanding
+	 *         at the peer.
+	 */
+	public int getRequestDepth() {
+		return _requestPipeline.getDepth();
+	}
+	
 	public void addStateListener(PeerStateListener listener) {
 		_listeners.add(listener);
 	}
@@ -182,6 +211,10 @@ public class Peer implements MessageListener {
 		unbind(true);
 		_messageChannel = MessageChannel.open(socketChannel, _torrentSession, this);
 		_messageChannel.addMessageListener(this);
+		// The waiters registered for the previous channel never run.
+		_awaitingDisk.set(false);
+		_awaitingBuffer.set(false);
+		_messageChannel.start();
 		PieceRepository repo = _torrentSession.getPieceRepository();
 
 		// If there is anything from the file on disk - send it to the peer.
@@ -196,6 +229,9 @@ public class Peer implements MessageListener {
 		
 		_uploadRate = new RateAccumulator();
 		_downloadRate.reset();
+		
+		_requestPipeline.setMaxDepth(_torrentSession.getPeerManager().getMaxRequestDepth());
+		_requestPipeline.pause();
 	}
 
 	public synchronized boolean isConnected() {
@@ -225,7 +261,7 @@ public class Peer implements MessageListener {
 	public void cancelAllRequests() {
 		PieceRepository repo = _torrentSession.getPieceRepository();
 		if(repo.isDownloadingPiece(this)) {
-			BlockingQueue<Block> blocksInFlight = repo.getBlocksInFlight(this);
+			List<Block> blocksInFlight = repo.getBlocksInFlight(this);
 			
 			if(blocksInFlight == null) {
 				return;
@@ -241,25 +277,27 @@ public class Peer implements MessageListener {
 		}
 	}
 	
-	public void cancelPiece(int pieceIndex, int blockBegin, ByteBuffer block) {
-		PieceRepository repo = _torrentSession.getPieceRepository();
-		if(repo.isDownloadingPiece(this)) {
-			// Form the cancel message
-			block.rewind();
-			byte[] bb = new byte[block.remaining()];
-			block.get(bb);
-			ByteBuffer msg = CancelMessage.make(pieceIndex, blockBegin, bb.length);
-			
-			// Send the cancel message to the other peers.
-			// NOTE: it is important to get the connected peers.
-			Set<Peer> peers = _torrentSession.getPeerManager().getConnectedPeers();			
-			for(Peer peer : peers) {
-				if(!peer.getHexPeerID().equals(getHexPeerID())) {
-					peer.getMessageChannel().send(msg);
-					repo.markBlockCompleted(peer, blockBegin);
-				}
-			}
+	/**
+	 * Cancels a block requested from the peer in end game, once the block has
+	 * arrived from another peer. The request has already been dropped from
+	 * the repository. The peer refills its requests in its own thread.
+	 */
+	public void cancelRequest(int pieceIndex, int blockBegin, int length) {
+		MessageChannel channel = _messageChannel;
+		if(channel == null) {
+			return;
 		}
+		
+		channel.send(CancelMessage.make(pieceIndex, blockBegin, length));
+		channel.execute(this::onRequestCancelled);
+	}
+	
+	private void onRequestCancelled() {
+		if(_torrentSession.isStopped() || _peerChoking || !isConnected()) {
+			return;
+		}
+		
+		sendBlockRequests(_torrentSession.getPieceRepository());
 	}
 
 	@Override
@@ -302,7 +340,7 @@ public class Peer implements MessageListener {
 				onBitfield(repo, msg);
 				break;
 			case REQUEST:
-				//onRequest(repo, msg);
+				onRequest(repo, msg);
 				break;
 			case PIECE:
 				onPiece(repo, msg);
@@ -319,9 +357,11 @@ public class Peer implements MessageListener {
 		_logger.debug("received CHOKE from peer {}", getHostAddress());
 	
 		_peerChoking = true;
-		Piece piece = repo.getDownloadingPiece(this);
-		if(piece != null) {
-			repo.setPeerHavePiece(this, piece.getIndex(), false);
+		_requestPipeline.pause();
+		// A choke says nothing about the pieces the peer has, so the
+		// availability stays as it is. Only the requests are dropped.
+		List<Piece> pieces = repo.getDownloadingPieces(this);
+		if(!pieces.isEmpty()) {
 			cancelAllRequests();
 		}
 	}
@@ -330,11 +370,12 @@ public class Peer implements MessageListener {
 		_logger.debug("received UNCHOKE from peer {}", getHostAddress());
 			
 		_peerChoking = false;
+		_requestPipeline.pause();
 		askForNewPiece(repo);
 	}
 
 	private void askForNewPiece(PieceRepository repo) {
-		if(repo.isDownloadingPiece(this)) {
+		if(!repo.needsAnotherPiece(this)) {
 			return;
 		}
 		
@@ -343,17 +384,73 @@ public class Peer implements MessageListener {
 		Piece piece = repo.selectNextPiece(this);
 		if(piece != null) {
 			sendBlockRequests(repo);
+			return;
+		}
+		
+		PieceBufferPool bufferPool = repo.getBufferPool();
+		MessageChannel channel = _messageChannel;
+		if(channel != null && bufferPool.isExhausted() && _awaitingBuffer.compareAndSet(false, true)) {
+			// Ask again once another piece gives its buffer back. The buffer
+			// is released by whichever thread holds the piece, so the peer
+			// resumes in its own selector loop - through the channel it has
+			// now, as it may be unbound by then.
+			_logger.debug("Peer {} waiting for a piece buffer", getHostAddress());
+			bufferPool.awaitBuffer(() -> channel.execute(this::onBufferReleased));
 		}
 	}
 	
 	private void sendBlockRequests(PieceRepository repo) {
+		DiskWriter diskWriter = repo.getDiskWriter();
+		if(diskWriter.isCongested()) {
+			// Stop requesting blocks until the disk catches up. The peer may
+			// be unbound by the time the disk drains, so the waiter keeps the
+			// channel it is to resume in.
+			MessageChannel channel = _messageChannel;
+			if(channel != null && _awaitingDisk.compareAndSet(false, true)) {
+				_logger.debug("Peer {} waiting for the disk writer", getHostAddress());
+				// The drain is signalled by the disk writer thread - the peer
+				// resumes in its own selector loop.
+				diskWriter.awaitDrain(() -> channel.execute(this::onDiskDrained));
+			}
+			return;
+		}
+		
 		LinkedBlockingQueue<ByteBuffer> blockRequests = repo.requestBlocks(this);
-		if(blockRequests == null) {
+		if(blockRequests != null) {
+			for(ByteBuffer msg : blockRequests) {
+				_messageChannel.send(msg);
+			}
+		}
+		
+		// Once all the blocks of its pieces have been requested, a fast peer
+		// starts on another piece while the last blocks are arriving.
+		if(repo.needsAnotherPiece(this)) {
+			askForNewPiece(repo);
+		}
+	}
+	
+	private void onDiskDrained() {
+		_awaitingDisk.set(false);
+		_awaitingBuffer.set(false);
+		if(_torrentSession.isStopped() || _peerChoking || !isConnected()) {
 			return;
 		}
-		for(ByteBuffer msg : blockRequests) {
-			_messageChannel.send(msg);
+		
+		PieceRepository repo = _torrentSession.getPieceRepository();
+		if(repo.isDownloadingPiece(this)) {
+			sendBlockRequests(repo);
+		} else {
+			askForNewPiece(repo);
+		}
+	}
+	
+	private void onBufferReleased() {
+		_awaitingBuffer.set(false);
+		if(_torrentSession.isStopped() || _peerChoking || !isConnected()) {
+			return;
 		}
+		
+		askForNewPiece(_torrentSession.getPieceRepository());
 	}
 	
 	private void onInterested() {
@@ -381,11 +478,11 @@ public class Peer implements MessageListener {
 		
 		// Update the piece repository.
 		repo.setPeerHavePiece(this, haveMessage.getPieceIndex(), true);
-		// If the peer has not started downloading a piece - ask for one.
+		// If the peer can download another piece - ask for one.
 		// Some peers send an incomplete bit field and the follow it up
 		// with have messages. This is why it is a good idea to ask for
 		// a new piece, if possible, when a HAVE message arrives.
-		if(!_peerChoking && _amInterested && !repo.isDownloadingPiece(this)) {
+		if(!_peerChoking && _amInterested && repo.needsAnotherPiece(this)) {
 			askForNewPiece(repo);
 		}		
 	}
@@ -410,32 +507,36 @@ public class Peer implements MessageListener {
 	private void onPiece(PieceRepository repo, Message msg) {		
 		PieceMessage pieceMessage = (PieceMessage) msg;
 		Piece piece = repo.get(pieceMessage.getPieceIndex());
-		repo.markBlockCompleted(this, pieceMessage.getBegin());
-		// Update the downloaded data rate.
+		Block requested = repo.markBlockCompleted(this, pieceMessage.getPieceIndex(), pieceMessage.getBegin());
+		// Update the downloaded data rate and with it the request depth.
 		_downloadRate.accumulate(pieceMessage.getBlock().capacity());
+		_requestPipeline.onBlockReceived(pieceMessage.getBlock().capacity(),
+				requested != null ? requested.getRequestedAt() : 0);
+		// In end game the block may also be requested from other peers, which
+		// are told not to send it.
+		for(Peer holder : repo.cancelDuplicateRequests(this, pieceMessage.getPieceIndex(), pieceMessage.getBegin())) {
+			holder.cancelRequest(pieceMessage.getPieceIndex(), pieceMessage.getBegin(),
+					pieceMessage.getBlock().capacity());
+		}
 		
 		if(piece.isOnDisk()) {
 			// If the piece is already on disk request to download a new one
 			// by removing the current requested piece in the repository and
 			// all the existing block requests.
-			if (piece.equals(repo.getDownloadingPiece(this))) {
-				repo.removeCurrentRequestedPiece(this);
-				askForNewPiece(repo);
+			if (repo.isDownloadingPiece(this, piece.getIndex())) {
+				repo.removeRequestedPiece(this, piece.getIndex());
+				sendBlockRequests(repo);
 			}
 			return;
 		}
 		
 		try {
 			try {
-				if(repo.hasReachedEndgame()) {
-					handleEndgameBlock(repo, pieceMessage);
-				} else {
-					repo.writeBlock(piece.getIndex(), pieceMessage.getBlock(),
-							pieceMessage.getBegin());
-				}
+				repo.writeBlock(piece.getIndex(), pieceMessage.getBlock(),
+						pieceMessage.getBegin());
 			} catch (IllegalStateException e){
-				repo.removeCurrentRequestedPiece(this);
-				askForNewPiece(repo);
+				repo.removeRequestedPiece(this, piece.getIndex());
+				sendBlockRequests(repo);
 				return;
 			}
 			
@@ -446,40 +547,21 @@ public class Peer implements MessageListener {
 				_logger.debug("Received block {}; asking for more blocks from peer {}...", pieceMessage.getBegin(), getHostAddress());
 				sendBlockRequests(repo);
 			}
-			// Check if the torrent has been completely downloaded.
-			if(repo.size() == repo.getNumberOfcompletedPieces() &&
-					!_torrentSession.isFinilizing()) {
-				_torrentSession.onTorrentDownloaded(repo);
-			}
+			// The HAVE messages are sent and the completion of the torrent is
+			// checked by the session once the piece is on disk.
 		} catch (IOException | IllegalStateException e) {
 			_logger.warn("{} in peer {}", e, getHexPeerID());
 		}
 		
 	}
 	
-	private void handleEndgameBlock(PieceRepository repo, PieceMessage pieceMessage) throws IllegalStateException, IOException {
-		Piece piece = repo.get(pieceMessage.getPieceIndex());
-		if(piece.hasBlock(pieceMessage.getBegin())) {
-			_logger.debug("Piece {} already has block {}", piece.getIndex(),
-					pieceMessage.getBegin());
-		} else {
-			repo.writeBlock(piece.getIndex(), pieceMessage.getBlock(),
-					pieceMessage.getBegin());
-		}
-	}
-	
 	private void onPieceComplete(PieceRepository repo, Piece piece) {
-		// Send a HAVE message to all other peers.
 		_logger.debug("completed piece {} for peer {}", piece.getIndex(), getHostAddress());
 		
-		ByteBuffer haveMessage = HaveMessage.make(piece.getIndex());
-		PeerManager peerManager = _torrentSession.getPeerManager();
-		for(Peer peer: peerManager.getConnectedPeers()) {
-			peer.getMessageChannel().send(haveMessage);
-		}
-		// Ask for the next piece after this one has been completed.
-		repo.removeCurrentRequestedPiece(this);
-		askForNewPiece(repo);
+		// Refill the requests from the other pieces and ask for the next piece
+		// after this one has been completed.
+		repo.removeRequestedPiece(this, piece.getIndex());
+		sendBlockRequests(repo);
 	}
 	
 	private void onRequest(PieceRepository repo, Message msg) {
@@ -510,24 +592,34 @@ public class Peer implements MessageListener {
 			return;
 		}
 		
+		// Check that the block lies within the piece. The sum is computed in
+		// long, so a huge offset does not wrap around.
+		if(reqMsg.getBegin() < 0 || reqMsg.getLength() <= 0
+				|| (long) reqMsg.getBegin() + reqMsg.getLength() > piece.getSize()) {
+			_logger.warn("Peer {} requested block {}+{} outside of piece {}", getHostAddress(), reqMsg.getBegin(),
+					reqMsg.getLength(), reqMsg.getPieceIndex());
+			unbind(true);
+			return;
+		}
+		
 		// All the checks are OK. Sent a PIECE message to the peer.
 		sendPieceResponse(repo, reqMsg);
 	}
 	
 	private void sendPieceResponse(PieceRepository repo, RequestMessage reqMsg) {
 		try {
-			ByteBuffer block = repo.readBlock(reqMsg.getPieceIndex(), reqMsg.getBegin(), reqMsg.getLength());
-			ByteBuffer pieceMessage = PieceMessage.make(reqMsg.getPieceIndex(), reqMsg.getBegin(), block);
-			_messageChannel.send(pieceMessage);
+			// The block is not read in memory. Only the header of the PIECE
+			// message is built and the block is transferred straight from the
+			// file store to the socket when the channel gets to it.
+			long offset = repo.provideBlockOffset(reqMsg.getPieceIndex(), reqMsg.getBegin(), reqMsg.getLength());
+			ByteBuffer header = PieceMessage.makeHeader(reqMsg.getPieceIndex(), reqMsg.getBegin(), reqMsg.getLength());
+			_messageChannel.sendFileRegion(header, repo.getFileStore(), offset, reqMsg.getLength());
 			
-			_uploadRate.accumulate(block.capacity());
+			_uploadRate.accumulate(reqMsg.getLength());
 			SessionInfo sessionInfo = _torrentSession.getSessionInfo();
-			sessionInfo.setUploaded(sessionInfo.getDownloaded() 
-					+ repo.get(reqMsg.getPieceIndex()).getSize());
-		} catch (IllegalStateException e) {
+			sessionInfo.setUploaded(sessionInfo.getUploaded() + reqMsg.getLength());
+		} catch (IllegalStateException | IllegalArgumentException e) {
 			_logger.warn("Peer {} has illegal state {}", getHostAddress(), e.getMessage());
-		} catch (IOException e) {
-			_logger.warn("IO exception while sending block to peer {}: {}", getHostAddress(), e.getMessage());
 		}
 	}
 }
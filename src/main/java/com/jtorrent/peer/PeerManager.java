@@ -75,6 +75,10 @@ public class PeerManager implements PeerStateListener {
 	private final Thread _chokerThread;
 	
 	private volatile boolean _stop;
+	/**
+	 * The most block requests that may be outstanding at a single peer.
+	 */
+	private volatile int _maxRequestDepth;
 	
 	private final List<Future<HandshakeResponse>> _connectionFutures;
 
@@ -91,6 +95,7 @@ public class PeerManager implements PeerStateListener {
 		_chokerThread = new Thread(new ChokerTask());
 		
 		_connectionFutures = new ArrayList<Future<HandshakeResponse>>();
+		_maxRequestDepth = RequestPipeline.DEFAULT_MAX_DEPTH;
 	}
 
 	public void cleanup() {
@@ -255,6 +260,25 @@ public class PeerManager implements PeerStateListener {
 			return new HashSet<Peer>(_connectedPeersMap.values());
 		}
 	}
+	
+	public int getMaxRequestDepth() {
+		return _maxRequestDepth;
+	}
+	
+	/**
+	 * Bounds the number of block requests outstanding at every peer, including
+	 * the peers that are already connected.
+	 */
+	public void setMaxRequestDepth(int maxRequestDepth) {
+		if(maxRequestDepth <= 0) {
+			throw new IllegalArgumentException("Invalid request depth: " + maxRequestDepth);
+		}
+		
+		_maxRequestDepth = maxRequestDepth;
+		for(Peer peer : getConnectedPeers()) {
+			peer.getRequestPipeline().setMaxDepth(maxRequestDepth);
+		}
+	}
 
 	/**
 	 * This task receives a result of sending a handshake message to a peer. It
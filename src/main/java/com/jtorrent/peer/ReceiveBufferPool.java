@@ -0,0 +1,223 @@
+package com.jtorrent.peer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jtorrent.messaging.message.PieceMessage;
+import com.jtorrent.messaging.message.RequestMessage;
+
+/**
+ * <p>
+ * A pool of direct buffers into which the inbound peer messages are read.
+ * </p>
+ * <p>
+ * The buffers are grouped in power-of-two size classes, starting from
+ * {@link #MIN_CLASS_SIZE} up to the size of the biggest PIECE message a peer is
+ * allowed to send. A message is read into the smallest buffer that can hold
+ * it, so a HAVE message takes 64 bytes - not the size of the biggest possible
+ * message. Messages that do not fit in any class (e.g. the bitfield of a huge
+ * torrent) are read into a plain heap buffer that is not pooled and are
+ * counted as misses.
+ * </p>
+ * <p>
+ * Almost all the traffic is PIECE messages carrying a 16 kB block. Such a
+ * message is 13 bytes bigger than 16 kB, so a power-of-two class would double
+ * its footprint. It has a class of its own, {@link #BLOCK_CLASS_SIZE} bytes,
+ * that takes the messages between 16 kB and that size.
+ * </p>
+ * <p>
+ * Each class keeps at most {@link #DEFAULT_BUFFERS_PER_CLASS} idle buffers so
+ * that a burst of traffic does not pin native memory forever.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class ReceiveBufferPool {
+
+	public static final int MIN_CLASS_SIZE = 64;
+	/**
+	 * The largest pooled buffer fits a PIECE message carrying the largest
+	 * allowed block.
+	 */
+	public static final int MAX_CLASS_SIZE = Integer.highestOneBit(RequestMessage.MAX_REQUEST_SIZE) << 1;
+	/**
+	 * A PIECE message carrying a block of the default request size, with its
+	 * length prefix.
+	 */
+	public static final int BLOCK_CLASS_SIZE = PieceMessage.HEADER_SIZE + RequestMessage.DEFAULT_REQUEST_SIZE;
+	/**
+	 * The messages bigger than that and at most {@link #BLOCK_CLASS_SIZE} go
+	 * to the block class.
+	 */
+	private static final int BLOCK_CLASS_FLOOR = Integer.highestOneBit(BLOCK_CLASS_SIZE);
+	public static final int DEFAULT_BUFFERS_PER_CLASS = 256;
+
+	/**
+	 * The power-of-two classes, by size, followed by the block class.
+	 */
+	private final SizeClass[] _classes;
+	private final SizeClass _blockClass;
+	private final AtomicLong _hits;
+	private final AtomicLong _misses;
+
+	public ReceiveBufferPool() {
+		this(DEFAULT_BUFFERS_PER_CLASS);
+	}
+
+	public ReceiveBufferPool(int buffersPerClass) {
+		int numClasses = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE) + 1;
+		_classes = new SizeClass[numClasses + 1];
+		for (int i = 0; i < numClasses; i++) {
+			_classes[i] = new SizeClass(MIN_CLASS_SIZE << i, buffersPerClass);
+		}
+		_blockClass = new SizeClass(BLOCK_CLASS_SIZE, buffersPerClass);
+		_classes[numClasses] = _blockClass;
+
+		_hits = new AtomicLong();
+		_misses = new AtomicLong();
+	}
+
+	/**
+	 * Provides a buffer with exactly <b>size</b> bytes remaining.
+	 *
+	 * @param size
+	 *            The number of bytes the buffer has to hold.
+	 * @return A cleared buffer whose limit is set to <b>size</b>.
+	 */
+	public ByteBuffer acquire(int size) {
+		SizeClass sizeClass = provideClass(size);
+		if (sizeClass == null) {
+			_misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		ByteBuffer buffer = sizeClass._idle.poll();
+		if (buffer == null) {
+			_misses.incrementAndGet();
+			buffer = ByteBuffer.allocateDirect(sizeClass._size);
+		} else {
+			sizeClass._idleCount.decrementAndGet();
+			_hits.incrementAndGet();
+		}
+		sizeClass._inUse.incrementAndGet();
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not handed out by the pool
+	 * are ignored. The caller must not touch the buffer after it is released.
+	 *
+	 * @param buffer
+	 *            The buffer to return.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+
+		SizeClass sizeClass = provideClass(buffer.capacity());
+		if (sizeClass == null || sizeClass._size != buffer.capacity()) {
+			return;
+		}
+
+		sizeClass._inUse.decrementAndGet();
+		if (sizeClass._idleCount.incrementAndGet() > sizeClass._maxIdle) {
+			// Let the garbage collector free the native memory.
+			sizeClass._idleCount.decrementAndGet();
+			return;
+		}
+		sizeClass._idle.add(buffer);
+	}
+
+	private SizeClass provideClass(int size) {
+		if (size > MAX_CLASS_SIZE) {
+			return null;
+		}
+		if (size > BLOCK_CLASS_FLOOR && size <= BLOCK_CLASS_SIZE) {
+			return _blockClass;
+		}
+
+		int classSize = size <= MIN_CLASS_SIZE ? MIN_CLASS_SIZE : Integer.highestOneBit(size - 1) << 1;
+		return _classes[Integer.numberOfTrailingZeros(classSize) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE)];
+	}
+
+	/**
+	 * @return The number of buffers currently handed out to the channels.
+	 */
+	public int getBuffersInUse() {
+		int inUse = 0;
+		for (SizeClass sizeClass : _classes) {
+			inUse += sizeClass._inUse.get();
+		}
+		return inUse;
+	}
+
+	/**
+	 * @return The number of idle buffers kept by the pool.
+	 */
+	public int getIdleBuffers() {
+		int idle = 0;
+		for (SizeClass sizeClass : _classes) {
+			idle += sizeClass._idleCount.get();
+		}
+		return idle;
+	}
+
+	/**
+	 * @return The native memory held by the pool, both idle and in use, in
+	 *         bytes.
+	 */
+	public long getPooledBytes() {
+		long bytes = 0;
+		for (SizeClass sizeClass : _classes) {
+			bytes += (long) sizeClass._size * (sizeClass._idleCount.get() + sizeClass._inUse.get());
+		}
+		return bytes;
+	}
+
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * @return The number of times a buffer had to be allocated because none
+	 *         was idle in its class or the message was too big to be pooled.
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("in use: ").append(getBuffersInUse());
+		sb.append(", idle: ").append(getIdleBuffers());
+		sb.append(", pooled bytes: ").append(getPooledBytes());
+		sb.append(", hits: ").append(getHits());
+		sb.append(", misses: ").append(getMisses());
+		return sb.toString();
+	}
+
+	private static class SizeClass {
+		private final int _size;
+		private final int _maxIdle;
+		private final Queue<ByteBuffer> _idle;
+		private final AtomicInteger _idleCount;
+		private final AtomicInteger _inUse;
+
+		public SizeClass(int size, int maxIdle) {
+			_size = size;
+			_maxIdle = maxIdle;
+			_idle = new ConcurrentLinkedQueue<ByteBuffer>();
+			_idleCount = new AtomicInteger();
+			_inUse = new AtomicInteger();
+		}
+	}
+}
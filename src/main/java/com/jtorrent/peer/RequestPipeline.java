@@ -0,0 +1,171 @@
+package com.jtorrent.peer;
+
+import java.util.concurrent.TimeUnit;
+
+import com.jtorrent.messaging.message.RequestMessage;
+
+/**
+ * <p>
+ * Decides how many block requests can be outstanding at a peer. Too few
+ * requests leave the connection idle while the requests travel to the peer
+ * and the blocks travel back, so the throughput of a distant peer is capped
+ * regardless of its bandwidth. Too many make the peer hold on to requests the
+ * client may later want to send elsewhere.
+ * </p>
+ * <p>
+ * The depth follows the bandwidth-delay product of the peer - the bytes that
+ * fit in the round trip at the current download rate - plus
+ * {@link #QUEUE_TIME_MILLIS} worth of blocks, so that the peer always has
+ * requests queued. As long as the round trip is what limits the rate, the
+ * extra requests raise the rate and with it the depth. Once the bandwidth of
+ * the peer is reached, the depth stays put.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class RequestPipeline {
+
+	public static final int BLOCK_SIZE = RequestMessage.DEFAULT_REQUEST_SIZE;
+	public static final int MIN_DEPTH = 2;
+	/**
+	 * The depth until the rate of the peer has been measured.
+	 */
+	public static final int INITIAL_DEPTH = 5;
+	public static final int DEFAULT_MAX_DEPTH = 250;
+	/**
+	 * How long the peer is kept busy by the queued requests beyond the round
+	 * trip.
+	 */
+	public static final long QUEUE_TIME_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	/**
+	 * The rate is sampled at most this often.
+	 */
+	private static final long SAMPLE_MILLIS = 500;
+	/**
+	 * The weight of the latest sample in the averaged rate.
+	 */
+	private static final double RATE_WEIGHT = 0.3;
+	/**
+	 * How fast the round trip estimate rises towards longer round trips, so
+	 * that it recovers from a route that got slower.
+	 */
+	private static final double RTT_DRIFT = 0.01;
+
+	private int _maxDepth;
+	private int _depth;
+	/**
+	 * The download rate in bytes per millisecond.
+	 */
+	private double _rate;
+	/**
+	 * The shortest time it took a block to arrive, in milliseconds. The time
+	 * a request waits behind the other requests of the queue is left out this
+	 * way.
+	 */
+	private double _roundTrip;
+	private long _sampleStart;
+	private long _sampleBytes;
+
+	public RequestPipeline() {
+		this(DEFAULT_MAX_DEPTH);
+	}
+
+	public RequestPipeline(int maxDepth) {
+		setMaxDepth(maxDepth);
+		_depth = Math.min(INITIAL_DEPTH, _maxDepth);
+		_sampleStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records a block that has arrived.
+	 *
+	 * @param length
+	 *            The length of the block.
+	 * @param requestedAt
+	 *            When the block was requested, in milliseconds; 0 if it is not
+	 *            known.
+	 */
+	public synchronized void onBlockReceived(int length, long requestedAt) {
+		long now = System.currentTimeMillis();
+		if (requestedAt > 0) {
+			long roundTrip = Math.max(1, now - requestedAt);
+			if (_roundTrip == 0 || roundTrip < _roundTrip) {
+				_roundTrip = roundTrip;
+			} else {
+				_roundTrip += (roundTrip - _roundTrip) * RTT_DRIFT;
+			}
+		}
+
+		_sampleBytes += length;
+		long elapsed = now - _sampleStart;
+		if (elapsed < SAMPLE_MILLIS) {
+			return;
+		}
+
+		double sample = ((double) _sampleBytes) / elapsed;
+		_rate = _rate == 0 ? sample : RATE_WEIGHT * sample + (1 - RATE_WEIGHT) * _rate;
+		_sampleStart = now;
+		_sampleBytes = 0;
+		adapt();
+	}
+
+	/**
+	 * Starts a new sample. Called when the peer chokes the client, so that the
+	 * time without blocks does not count against the rate.
+	 */
+	public synchronized void pause() {
+		_sampleStart = System.currentTimeMillis();
+		_sampleBytes = 0;
+	}
+
+	private void adapt() {
+		if (_roundTrip == 0) {
+			return;
+		}
+
+		double bytes = _rate * (_roundTrip + QUEUE_TIME_MILLIS);
+		int depth = (int) Math.ceil(bytes / BLOCK_SIZE);
+		_depth = Math.max(Math.min(MIN_DEPTH, _maxDepth), Math.min(depth, _maxDepth));
+	}
+
+	/**
+	 * @return The number of requests that can be outstanding at the peer.
+	 */
+	public synchronized int getDepth() {
+		return _depth;
+	}
+
+	public synchronized int getMaxDepth() {
+		return _maxDepth;
+	}
+
+	public synchronized void setMaxDepth(int maxDepth) {
+		if (maxDepth <= 0) {
+			throw new IllegalArgumentException("Invalid request depth: " + maxDepth);
+		}
+
+		_maxDepth = maxDepth;
+		_depth = Math.min(_depth, maxDepth);
+	}
+
+	/**
+	 * @return The averaged download rate in bytes per second.
+	 */
+	public synchronized double getRate() {
+		return _rate * 1000;
+	}
+
+	/**
+	 * @return The estimated round trip in milliseconds; 0 if not measured yet.
+	 */
+	public synchronized long getRoundTrip() {
+		return (long) _roundTrip;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "depth " + _depth + "/" + _maxDepth + ", rate " + (long) getRate() + " B/s, round trip "
+				+ (long) _roundTrip + " ms";
+	}
+}
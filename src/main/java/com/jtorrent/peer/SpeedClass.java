@@ -0,0 +1,57 @@
+package com.jtorrent.peer;
+
+import com.jtorrent.messaging.message.RequestMessage;
+import com.jtorrent.messaging.rate.RateAccumulator;
+
+/**
+ * <p>
+ * The class of a peer by how fast the client downloads from it. The piece
+ * picker keeps the peers of a class together - the peers share the pieces
+ * started by peers of their own class, so a fast peer never waits for a slow
+ * peer to deliver the rest of a piece.
+ * </p>
+ * <p>
+ * A peer whose rate has not been measured yet is slow until it proves
+ * otherwise.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public enum SpeedClass {
+	/**
+	 * Less than a block per second. Slow peers download whole pieces on their
+	 * own.
+	 */
+	SLOW,
+	MEDIUM,
+	/**
+	 * At least {@link #FAST_BLOCKS_PER_SECOND} blocks per second.
+	 */
+	FAST;
+
+	public static final int FAST_BLOCKS_PER_SECOND = 8;
+
+	/**
+	 * @param rate
+	 *            The download rate in bytes per second.
+	 */
+	public static SpeedClass of(double rate) {
+		if (rate < RequestMessage.DEFAULT_REQUEST_SIZE) {
+			return SLOW;
+		}
+		if (rate < FAST_BLOCKS_PER_SECOND * RequestMessage.DEFAULT_REQUEST_SIZE) {
+			return MEDIUM;
+		}
+		return FAST;
+	}
+
+	public static SpeedClass of(Peer peer) {
+		RateAccumulator rate = peer.getDownloadRate();
+		return rate != null ? of(rate.rate()) : SLOW;
+	}
+
+	public boolean isSlowerThan(SpeedClass other) {
+		return ordinal() < other.ordinal();
+	}
+}
@@ -0,0 +1,129 @@
+package com.jtorrent.storage;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A fixed size bit set whose bits can be set and cleared from many threads
+ * without locking. Every bit is changed with a compare-and-set on the word
+ * that holds it, so threads working on different bits never wait for each
+ * other.
+ * </p>
+ * <p>
+ * The number of set bits is maintained as the bits change, so asking for the
+ * cardinality is cheap. Operations that work on the whole set, such as
+ * {@link #toBitSet()}, see a snapshot that may miss bits changed while the
+ * snapshot was being taken.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class AtomicBitSet {
+
+	private final int _size;
+	private final AtomicLongArray _words;
+	private final AtomicInteger _cardinality;
+
+	public AtomicBitSet(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative bit set size: " + size);
+		}
+
+		_size = size;
+		_words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+		_cardinality = new AtomicInteger();
+	}
+
+	public boolean get(int index) {
+		checkIndex(index);
+		return (_words.get(index / Long.SIZE) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Sets the bit.
+	 *
+	 * @return <b>true</b> if the bit has been set by this call; <b>false</b> -
+	 *         if it was already set.
+	 */
+	public boolean set(int index) {
+		checkIndex(index);
+		int wordIndex = index / Long.SIZE;
+		long mask = 1L << index;
+		long word;
+		do {
+			word = _words.get(wordIndex);
+			if ((word & mask) != 0) {
+				return false;
+			}
+		} while (!_words.compareAndSet(wordIndex, word, word | mask));
+
+		_cardinality.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Clears the bit.
+	 *
+	 * @return <b>true</b> if the bit has been cleared by this call;
+	 *         <b>false</b> - if it was not set.
+	 */
+	public boolean clear(int index) {
+		checkIndex(index);
+		int wordIndex = index / Long.SIZE;
+		long mask = 1L << index;
+		long word;
+		do {
+			word = _words.get(wordIndex);
+			if ((word & mask) == 0) {
+				return false;
+			}
+		} while (!_words.compareAndSet(wordIndex, word, word & ~mask));
+
+		_cardinality.decrementAndGet();
+		return true;
+	}
+
+	public void set(int index, boolean value) {
+		if (value) {
+			set(index);
+		} else {
+			clear(index);
+		}
+	}
+
+	/**
+	 * @return The number of bits set.
+	 */
+	public int cardinality() {
+		return _cardinality.get();
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return A copy of the bits as a plain bit set.
+	 */
+	public BitSet toBitSet() {
+		long[] words = new long[_words.length()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = _words.get(i);
+		}
+		return BitSet.valueOf(words);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= _size) {
+			throw new IndexOutOfBoundsException("bit " + index + " out of " + _size);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toBitSet().toString();
+	}
+}
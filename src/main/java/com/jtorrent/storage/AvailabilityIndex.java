@@ -0,0 +1,193 @@
+package com.jtorrent.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * <p>
+ * Keeps the pieces of a torrent grouped by their availability - the number of
+ * connected peers that have them. Every availability has a bucket that holds
+ * its pieces in a doubly linked list. The links are kept in plain arrays
+ * indexed by the piece, so a piece moves to the next bucket in constant time
+ * when a peer gets or loses it, and no objects are created along the way.
+ * </p>
+ * <p>
+ * The rarest pieces are found by walking the buckets from the least available
+ * one, until enough pieces of interest have been found. The pieces that no
+ * peer has are never walked, and the completed pieces are taken out of the
+ * buckets, so the walk only touches the pieces that can still be chosen.
+ * </p>
+ * <p>
+ * The index is not thread-safe. The {@link PieceRepository} uses it under its
+ * selection lock.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class AvailabilityIndex {
+
+	private static final int NONE = -1;
+
+	private final int[] _frequency;
+	private final int[] _next;
+	private final int[] _previous;
+	/**
+	 * The pieces that are no longer linked in any bucket. Their availability
+	 * is still counted.
+	 */
+	private final BitSet _removed;
+	/**
+	 * The first piece of every bucket, by availability.
+	 */
+	private int[] _heads;
+	/**
+	 * No bucket beyond this one has any pieces.
+	 */
+	private int _maxFrequency;
+
+	/**
+	 * Creates an index in which none of the pieces is available.
+	 *
+	 * @param pieces
+	 *            The number of pieces.
+	 */
+	public AvailabilityIndex(int pieces) {
+		_frequency = new int[pieces];
+		_next = new int[pieces];
+		_previous = new int[pieces];
+		_removed = new BitSet(pieces);
+		_heads = new int[16];
+		Arrays.fill(_heads, NONE);
+		for (int piece = pieces - 1; piece >= 0; piece--) {
+			link(piece, 0);
+		}
+	}
+
+	/**
+	 * A peer has got the piece.
+	 */
+	public void increment(int piece) {
+		int frequency = _frequency[piece];
+		if (_removed.get(piece)) {
+			_frequency[piece] = frequency + 1;
+			return;
+		}
+
+		unlink(piece, frequency);
+		link(piece, frequency + 1);
+	}
+
+	/**
+	 * A peer no longer has the piece.
+	 * 
+	 * @throws IllegalStateException
+	 *             If no peer has the piece - the caller has lost count.
+	 */
+	public void decrement(int piece) throws IllegalStateException {
+		int frequency = _frequency[piece];
+		if (frequency == 0) {
+			throw new IllegalStateException("Piece #" + piece + " is not available");
+		}
+
+		if (_removed.get(piece)) {
+			_frequency[piece] = frequency - 1;
+			return;
+		}
+
+		unlink(piece, frequency);
+		link(piece, frequency - 1);
+	}
+
+	/**
+	 * Takes the piece out of the buckets, as it is not to be chosen anymore -
+	 * e.g. it has been completed. The availability of the piece is still
+	 * counted.
+	 */
+	public void remove(int piece) {
+		if (_removed.get(piece)) {
+			return;
+		}
+
+		unlink(piece, _frequency[piece]);
+		_removed.set(piece);
+	}
+
+	public int getFrequency(int piece) {
+		return _frequency[piece];
+	}
+
+	/**
+	 * Finds the rarest pieces among the candidates.
+	 *
+	 * @param candidates
+	 *            The pieces that may be chosen.
+	 * @param rarest
+	 *            Receives the pieces. Its length is the most pieces that are
+	 *            looked for - if there are more candidates, the rarest ones
+	 *            are taken.
+	 * @return The number of pieces found.
+	 */
+	public int provideRarest(BitSet candidates, int[] rarest) {
+		int found = 0;
+		// Few enough candidates are all taken, in any order - the caller
+		// chooses among them anyway.
+		if (candidates.cardinality() <= rarest.length) {
+			for (int piece = candidates.nextSetBit(0); piece >= 0
+					&& piece < _frequency.length; piece = candidates.nextSetBit(piece + 1)) {
+				rarest[found++] = piece;
+			}
+			return found;
+		}
+
+		// No peer has the pieces in the first bucket, so none of them can be
+		// a candidate.
+		for (int frequency = 1; frequency <= _maxFrequency; frequency++) {
+			for (int piece = _heads[frequency]; piece != NONE; piece = _next[piece]) {
+				if (candidates.get(piece)) {
+					rarest[found++] = piece;
+					if (found == rarest.length) {
+						return found;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private void link(int piece, int frequency) {
+		if (frequency >= _heads.length) {
+			int length = _heads.length;
+			_heads = Arrays.copyOf(_heads, Math.max(frequency + 1, length * 2));
+			Arrays.fill(_heads, length, _heads.length, NONE);
+		}
+
+		int head = _heads[frequency];
+		_next[piece] = head;
+		_previous[piece] = NONE;
+		if (head != NONE) {
+			_previous[head] = piece;
+		}
+		_heads[frequency] = piece;
+		_frequency[piece] = frequency;
+		_maxFrequency = Math.max(_maxFrequency, frequency);
+	}
+
+	private void unlink(int piece, int frequency) {
+		int next = _next[piece];
+		int previous = _previous[piece];
+		if (previous != NONE) {
+			_next[previous] = next;
+		} else {
+			_heads[frequency] = next;
+		}
+		if (next != NONE) {
+			_previous[next] = previous;
+		}
+
+		// Empty buckets at the top are no longer walked.
+		while (_maxFrequency > 0 && _heads[_maxFrequency] == NONE) {
+			_maxFrequency--;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package com.jtorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * DiskWriter is the stage between the network and the {@link FileStore}. The
+ * threads that receive the blocks from the peers only assemble and hash the
+ * pieces in memory - once a piece is complete it is queued here and written to
+ * disk by a dedicated thread, so a slow disk never stalls the network.
+ * </p>
+ * <p>
+ * The writer takes all the pieces that are waiting in the queue at once and
+ * writes the pieces that are adjacent in the file store with a single
+ * gathering write.
+ * </p>
+ * <p>
+ * When the queue grows above the high-water mark the writer is congested and
+ * the peers should stop requesting new blocks. The peers that wait for the
+ * writer via {@link #awaitDrain(Runnable)} are resumed as soon as the queue
+ * falls below the low-water mark. The blocks already in flight keep completing
+ * pieces while the writer is congested. Those pieces are queued nonetheless -
+ * a piece holds on to its buffer until it is written, so the memory of the
+ * queue is bounded by the {@link PieceBufferPool}, and the thread that submits
+ * a piece, which is the selector loop of a peer, never blocks.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class DiskWriter {
+
+	private static final Logger _logger = LoggerFactory.getLogger(DiskWriter.class);
+
+	public static final int DEFAULT_HIGH_WATER_MARK = 48;
+	public static final int DEFAULT_LOW_WATER_MARK = 16;
+
+	private static final long POLL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	private final PieceRepository _repository;
+	private final FileStore _store;
+	private final BlockingQueue<PendingPiece> _queue;
+	private final int _highWaterMark;
+	private final int _lowWaterMark;
+	private final Queue<Runnable> _drainWaiters;
+
+	private final AtomicLong _writtenPieces;
+	private final AtomicLong _writes;
+	private final AtomicLong _totalLatencyNanos;
+	private volatile long _maxLatencyNanos;
+
+	private Thread _thread;
+	private boolean _stop;
+
+	public DiskWriter(PieceRepository repository) {
+		this(repository, DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK);
+	}
+
+	public DiskWriter(PieceRepository repository, int highWaterMark, int lowWaterMark) {
+		if (lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+			throw new IllegalArgumentException("Invalid disk writer marks: " + lowWaterMark + "/" + highWaterMark);
+		}
+
+		_repository = repository;
+		_store = repository.getFileStore();
+		_queue = new LinkedBlockingQueue<PendingPiece>();
+		_highWaterMark = highWaterMark;
+		_lowWaterMark = lowWaterMark;
+		_drainWaiters = new ConcurrentLinkedQueue<Runnable>();
+
+		_writtenPieces = new AtomicLong();
+		_writes = new AtomicLong();
+		_totalLatencyNanos = new AtomicLong();
+	}
+
+	/**
+	 * Queues a complete piece to be written to disk. The writer thread is
+	 * started if it is not running. The call never blocks.
+	 *
+	 * @param piece
+	 *            The piece whose data is to be written.
+	 * @throws IOException
+	 *             If the piece could not be queued.
+	 */
+	public void submit(Piece piece) throws IOException {
+		start();
+		if (!_queue.offer(new PendingPiece(piece, piece.getData(), System.nanoTime()))) {
+			throw new IOException("could not queue piece #" + piece.getIndex());
+		}
+	}
+
+	/**
+	 * @return <b>true</b> if the queue has grown above the high-water mark and
+	 *         no new blocks should be requested.
+	 */
+	public boolean isCongested() {
+		return _queue.size() >= _highWaterMark;
+	}
+
+	/**
+	 * Runs the task once the writer is no longer congested. If the writer is
+	 * not congested, the task is run right away.
+	 *
+	 * @param task
+	 *            The task that resumes requesting blocks.
+	 */
+	public void awaitDrain(Runnable task) {
+		_drainWaiters.add(task);
+		// The queue may have drained while the task was being added.
+		if (!isCongested()) {
+			notifyDrainWaiters();
+		}
+	}
+
+	public synchronized void start() {
+		_stop = false;
+		if (_thread != null) {
+			// The thread keeps running even if it has been asked to stop.
+			return;
+		}
+
+		_thread = new Thread(this::run, "jtorrent-disk-" + _store.getParentName());
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Stops the writer once all the queued pieces have been written.
+	 */
+	public synchronized void stop() {
+		_stop = true;
+	}
+
+	/**
+	 * Stops the writer and waits until all the queued pieces have been
+	 * written.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void awaitStop() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			_stop = true;
+			thread = _thread;
+		}
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	private void run() {
+		List<PendingPiece> batch = new ArrayList<PendingPiece>();
+		while (true) {
+			PendingPiece first;
+			try {
+				first = _queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					_thread = null;
+				}
+				break;
+			}
+
+			if (first == null) {
+				if (shouldExit()) {
+					break;
+				}
+				continue;
+			}
+
+			batch.clear();
+			batch.add(first);
+			_queue.drainTo(batch);
+			writeBatch(batch);
+
+			if (_queue.size() <= _lowWaterMark) {
+				notifyDrainWaiters();
+			}
+		}
+
+		notifyDrainWaiters();
+		_logger.debug("Disk writer for {} stopped", _store.getParentName());
+	}
+
+	private synchronized boolean shouldExit() {
+		if (_stop && _queue.isEmpty()) {
+			_thread = null;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the batch in runs of pieces that are adjacent in the file store.
+	 */
+	private void writeBatch(List<PendingPiece> batch) {
+		Collections.sort(batch, Comparator.comparingLong(pending -> pending._piece.getBegin()));
+
+		int runStart = 0;
+		for (int i = 1; i <= batch.size(); i++) {
+			if (i < batch.size() && isAdjacent(batch.get(i - 1), batch.get(i))) {
+				continue;
+			}
+
+			writeRun(batch.subList(runStart, i));
+			runStart = i;
+		}
+	}
+
+	private static boolean isAdjacent(PendingPiece previous, PendingPiece next) {
+		return previous._piece.getBegin() + previous._piece.getSize() == next._piece.getBegin();
+	}
+
+	private void writeRun(List<PendingPiece> run) {
+		ByteBuffer[] data = new ByteBuffer[run.size()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = run.get(i)._data;
+		}
+
+		boolean written;
+		try {
+			_store.write(data, run.get(0)._piece.getBegin());
+			_writes.incrementAndGet();
+			written = true;
+		} catch (IOException | RuntimeException e) {
+			_logger.warn("could not write pieces #{}-#{} to disk: {}", run.get(0)._piece.getIndex(),
+					run.get(run.size() - 1)._piece.getIndex(), e.getMessage());
+			written = false;
+		}
+
+		long now = System.nanoTime();
+		for (PendingPiece pending : run) {
+			long latency = now - pending._submitted;
+			_totalLatencyNanos.addAndGet(latency);
+			if (latency > _maxLatencyNanos) {
+				_maxLatencyNanos = latency;
+			}
+			_writtenPieces.incrementAndGet();
+
+			_repository.onPieceWritten(pending._piece, written);
+		}
+	}
+
+	private void notifyDrainWaiters() {
+		// Only the tasks that are waiting now are run. A task that finds the
+		// writer congested again waits for the next drain.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		Runnable task;
+		while ((task = _drainWaiters.poll()) != null) {
+			tasks.add(task);
+		}
+		
+		for (Runnable waiting : tasks) {
+			try {
+				waiting.run();
+			} catch (RuntimeException e) {
+				_logger.warn("Resuming after disk writer drain failed: {}", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return The number of pieces waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return _queue.size();
+	}
+
+	public long getWrittenPieces() {
+		return _writtenPieces.get();
+	}
+
+	/**
+	 * @return The number of writes issued to the file store. It is smaller
+	 *         than the number of written pieces when adjacent pieces have been
+	 *         coalesced.
+	 */
+	public long getWrites() {
+		return _writes.get();
+	}
+
+	/**
+	 * @return The average time between a piece being queued and written, in
+	 *         milliseconds.
+	 */
+	public double getAverageWriteLatency() {
+		long pieces = _writtenPieces.get();
+		if (pieces == 0) {
+			return 0;
+		}
+		return _totalLatencyNanos.get() / (double) pieces / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * @return The longest time between a piece being queued and written, in
+	 *         milliseconds.
+	 */
+	public double getMaxWriteLatency() {
+		return _maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("queued: ").append(getQueueDepth());
+		sb.append(", written: ").append(getWrittenPieces());
+		sb.append(", writes: ").append(getWrites());
+		sb.append(", avg latency: ").append(getAverageWriteLatency()).append(" ms");
+		sb.append(", max latency: ").append(getMaxWriteLatency()).append(" ms");
+		return sb.toString();
+	}
+
+	private static class PendingPiece {
+		private final Piece _piece;
+		private final ByteBuffer _data;
+		private final long _submitted;
+
+		public PendingPiece(Piece piece, ByteBuffer data, long submitted) {
+			_piece = piece;
+			_data = data;
+			_submitted = submitted;
+		}
+	}
+}
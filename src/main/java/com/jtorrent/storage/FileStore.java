@@ -1,7 +1,9 @@
 package com.jtorrent.storage;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 
 /**
@@ -42,6 +44,39 @@ public interface FileStore {
 	 */
 	public int write(ByteBuffer data, long begin) throws IOException;
 
+	/**
+	 * Write consecutive blocks of data to the underlying file with a single
+	 * gathering write. The blocks are written one after the other, starting
+	 * from <b>begin</b>.
+	 * 
+	 * @param data
+	 *            The blocks of data that are to be written.
+	 * @param begin
+	 *            Where in the file should the first block be put.
+	 * @return The number of bytes written in the store.
+	 * @throws IOException
+	 *             When and I/O exception occurs while writing.
+	 */
+	public long write(ByteBuffer[] data, long begin) throws IOException;
+
+	/**
+	 * Transfers a region of the underlying file straight to the target channel
+	 * without copying the data through the heap.
+	 * 
+	 * @param begin
+	 *            Where in the file the region starts.
+	 * @param length
+	 *            The number of bytes in the region.
+	 * @param target
+	 *            The channel to which the data is to be transferred.
+	 * @return The number of bytes transferred. This can be less than
+	 *         <b>length</b> if the target channel is non-blocking and cannot
+	 *         accept any more data at the moment.
+	 * @throws IOException
+	 *             When and I/O exception occurs while transferring.
+	 */
+	public long transferTo(long begin, long length, WritableByteChannel target) throws IOException;
+
 	/**
 	 * Closes the file store.
 	 * 
@@ -66,6 +101,13 @@ public interface FileStore {
 	public boolean isComplete();
 
 	public List<String> getFileNames();
+
+	/**
+	 * @return The files on disk the store is currently working with, in the
+	 *         order in which they appear in the store. These are the partial
+	 *         files while the download is in progress.
+	 */
+	public List<File> getWorkingFiles();
 	
 	public String getParentName();
 	
@@ -0,0 +1,183 @@
+package com.jtorrent.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>
+ * MappedFileStore is a {@link SingleFileStore} that reads and writes blocks
+ * through memory mapped windows of the file instead of issuing a positional
+ * read or write for every block.
+ * </p>
+ * <p>
+ * The file is split in windows of {@link #getWindowSize()} bytes. A window is
+ * mapped the first time a block in it is accessed and is kept in a
+ * {@link MappedWindowCache}. The files of a torrent share one cache, so the
+ * limit of {@link #getMaxWindows()} windows holds for all of them together.
+ * </p>
+ * <p>
+ * The class is <b>thread-safe</b>. The data is copied on a private view of the
+ * window under the read lock of the store, so the windows are never released
+ * and the file is never swapped while a block is being copied.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class MappedFileStore extends SingleFileStore {
+
+	public static final int DEFAULT_WINDOW_SIZE = MappedWindowCache.DEFAULT_WINDOW_SIZE;
+	public static final int DEFAULT_MAX_WINDOWS = MappedWindowCache.DEFAULT_MAX_WINDOWS;
+
+	private final MappedWindowCache _windows;
+
+	public MappedFileStore(File file, long size) throws IOException {
+		this(file, size, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+	}
+
+	public MappedFileStore(File file, long size, int windowSize, int maxWindows) throws IOException {
+		this(file, size, new MappedWindowCache(windowSize, maxWindows));
+	}
+
+	/**
+	 * @param windows
+	 *            The cache of the mapped windows, which might be shared with
+	 *            other stores.
+	 */
+	public MappedFileStore(File file, long size, MappedWindowCache windows) throws IOException {
+		super(file, size);
+		if (windows == null) {
+			throw new IllegalArgumentException("No mapping window cache.");
+		}
+
+		_windows = windows;
+	}
+
+	@Override
+	public int read(ByteBuffer data, long begin) throws IOException {
+		int dataSize = data.remaining();
+		if (begin + dataSize > size()) {
+			throw new IllegalArgumentException("The block of data form the offset exceeds the file size");
+		}
+
+		int limit = data.limit();
+		long position = begin;
+		Lock lock = getFileLock().readLock();
+		lock.lock();
+		try {
+			// A block might span more than one window.
+			while (data.position() < limit) {
+				ByteBuffer window = provideWindowView(position);
+				int length = Math.min(window.remaining(), limit - data.position());
+				window.limit(window.position() + length);
+				data.limit(data.position() + length);
+				data.put(window);
+				position += length;
+			}
+		} finally {
+			data.limit(limit);
+			lock.unlock();
+		}
+
+		return dataSize;
+	}
+
+	@Override
+	public int write(ByteBuffer data, long begin) throws IOException {
+		int dataSize = data.remaining();
+		if (begin + dataSize > size()) {
+			throw new IllegalArgumentException("The block of data form the offset exceeds the file size");
+		}
+
+		int limit = data.limit();
+		long position = begin;
+		Lock lock = getFileLock().readLock();
+		lock.lock();
+		try {
+			while (data.position() < limit) {
+				ByteBuffer window = provideWindowView(position);
+				int length = Math.min(window.remaining(), limit - data.position());
+				data.limit(data.position() + length);
+				window.put(data);
+				data.limit(limit);
+				position += length;
+			}
+		} finally {
+			data.limit(limit);
+			lock.unlock();
+		}
+
+		return dataSize;
+	}
+
+	@Override
+	public long write(ByteBuffer[] data, long begin) throws IOException {
+		// The blocks are copied in the mapped windows one by one - there is
+		// no system call to save.
+		long position = begin;
+		for (ByteBuffer block : data) {
+			position += write(block, position);
+		}
+		return position - begin;
+	}
+
+	/**
+	 * The caller must hold the read lock of the store.
+	 * 
+	 * @param position
+	 *            An offset in the file.
+	 * @return A private view of the window that contains the offset. The view
+	 *         is positioned at the offset.
+	 */
+	private ByteBuffer provideWindowView(long position) throws IOException {
+		int windowSize = _windows.getWindowSize();
+		long windowIndex = position / windowSize;
+		long windowBegin = windowIndex * windowSize;
+
+		// The read lock of the store keeps the file from being swapped while
+		// it is mapped. It is always taken before the lock of the cache.
+		MappedByteBuffer window = _windows.provideWindow(this, windowIndex);
+		ByteBuffer view = window.duplicate();
+		view.position((int) (position - windowBegin));
+		return view;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		// No block is being copied while the windows are released, and no
+		// window is mapped again before the file is closed.
+		Lock lock = getFileLock().writeLock();
+		lock.lock();
+		try {
+			_windows.releaseWindows(this);
+			super.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public synchronized void complete() throws IOException {
+		// The file is about to be moved and reopened, so the windows of the
+		// partial file must not be used anymore.
+		Lock lock = getFileLock().writeLock();
+		lock.lock();
+		try {
+			_windows.releaseWindows(this);
+			super.complete();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWindowSize() {
+		return _windows.getWindowSize();
+	}
+
+	public int getMaxWindows() {
+		return _windows.getMaxWindows();
+	}
+}
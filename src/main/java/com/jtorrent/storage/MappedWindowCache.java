@@ -0,0 +1,180 @@
+package com.jtorrent.storage;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * MappedWindowCache holds the memory mapped windows of one or more
+ * {@link MappedFileStore}s. The windows of all the files share a single least
+ * recently used cache of at most {@link #getMaxWindows()} windows, so the
+ * mapped memory of a torrent does not grow with the number of its files.
+ * </p>
+ * <p>
+ * When the cache is full, the least recently used window - of whichever file -
+ * is flushed and dropped, and its mapping is released by the garbage
+ * collector. The windows are flushed after the lock of the cache is released,
+ * so that flushing one window does not hold off the blocks of all the other
+ * files.
+ * </p>
+ * <p>
+ * The class is <b>thread-safe</b>.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class MappedWindowCache {
+
+	private static final Logger _logger = LoggerFactory.getLogger(MappedWindowCache.class);
+
+	public static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_MAX_WINDOWS = 8;
+
+	private final int _windowSize;
+	private final int _maxWindows;
+	private final Map<WindowKey, MappedByteBuffer> _windows;
+	/**
+	 * The windows dropped from the cache that are still to be flushed. Only
+	 * used under the lock of the cache.
+	 */
+	private final List<MappedByteBuffer> _evicted;
+
+	public MappedWindowCache() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+	}
+
+	/**
+	 * @param windowSize
+	 *            The size of a window in bytes.
+	 * @param maxWindows
+	 *            The most windows that are mapped at the same time, for all
+	 *            the files together.
+	 */
+	public MappedWindowCache(int windowSize, int maxWindows) {
+		if (windowSize <= 0 || maxWindows <= 0) {
+			throw new IllegalArgumentException("Invalid mapping window configuration: " + windowSize + "x" + maxWindows);
+		}
+
+		_windowSize = windowSize;
+		_maxWindows = maxWindows;
+		_evicted = new ArrayList<MappedByteBuffer>();
+		// An access ordered map is all that is needed for an LRU cache.
+		_windows = new LinkedHashMap<WindowKey, MappedByteBuffer>(maxWindows, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<WindowKey, MappedByteBuffer> eldest) {
+				if (size() > _maxWindows) {
+					// The dirty pages are flushed once the lock is released.
+					_evicted.add(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param store
+	 *            The store whose window is needed.
+	 * @param windowIndex
+	 *            The index of the window in the file of the store.
+	 * @return The window, mapped if it is not in the cache.
+	 */
+	MappedByteBuffer provideWindow(MappedFileStore store, long windowIndex) throws IOException {
+		WindowKey key = new WindowKey(store, windowIndex);
+		MappedByteBuffer window;
+		List<MappedByteBuffer> evicted;
+		synchronized (this) {
+			window = _windows.get(key);
+			if (window != null) {
+				return window;
+			}
+
+			long windowBegin = windowIndex * _windowSize;
+			long length = Math.min(_windowSize, store.size() - windowBegin);
+			window = store.getChannel().map(FileChannel.MapMode.READ_WRITE, windowBegin, length);
+			_windows.put(key, window);
+			_logger.trace("Mapped window #{} of {}", windowIndex, store.getFile().getName());
+
+			evicted = new ArrayList<MappedByteBuffer>(_evicted);
+			_evicted.clear();
+		}
+
+		// Make sure that the dirty pages hit the disk before the window is
+		// released.
+		force(evicted);
+		return window;
+	}
+
+	/**
+	 * Flushes and drops all the windows of the store.
+	 */
+	void releaseWindows(MappedFileStore store) {
+		List<MappedByteBuffer> released = new ArrayList<MappedByteBuffer>();
+		synchronized (this) {
+			for (Iterator<Map.Entry<WindowKey, MappedByteBuffer>> it = _windows.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<WindowKey, MappedByteBuffer> entry = it.next();
+				if (entry.getKey()._store == store) {
+					released.add(entry.getValue());
+					it.remove();
+				}
+			}
+		}
+
+		force(released);
+	}
+
+	private static void force(List<MappedByteBuffer> windows) {
+		for (MappedByteBuffer window : windows) {
+			window.force();
+		}
+	}
+
+	public int getWindowSize() {
+		return _windowSize;
+	}
+
+	public int getMaxWindows() {
+		return _maxWindows;
+	}
+
+	/**
+	 * Identifies a window by its store and index. The stores are compared by
+	 * identity.
+	 */
+	private static final class WindowKey {
+		private final MappedFileStore _store;
+		private final long _index;
+
+		private WindowKey(MappedFileStore store, long index) {
+			_store = store;
+			_index = index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof WindowKey)) {
+				return false;
+			}
+
+			WindowKey other = (WindowKey) obj;
+			return _store == other._store && _index == other._index;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(_store) + Long.hashCode(_index);
+		}
+	}
+}
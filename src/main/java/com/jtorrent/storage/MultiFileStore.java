@@ -3,6 +3,7 @@ package com.jtorrent.storage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -39,6 +40,41 @@ public class MultiFileStore implements FileStore {
 	private final List<String> _fileNames;
 
 	public MultiFileStore(List<FileDictionary> files, String parentDir) throws IOException {
+		this(files, parentDir, StoreMode.DEFAULT);
+	}
+
+	/**
+	 * @param files
+	 *            The files described in the meta info file.
+	 * @param parentDir
+	 *            The directory in which the files are to be stored.
+	 * @param mode
+	 *            Determines which kind of file store is created for each
+	 *            file.
+	 * @throws IOException
+	 */
+	public MultiFileStore(List<FileDictionary> files, String parentDir, StoreMode mode) throws IOException {
+		this(files, parentDir, mode, MappedWindowCache.DEFAULT_WINDOW_SIZE, MappedWindowCache.DEFAULT_MAX_WINDOWS);
+	}
+
+	/**
+	 * @param files
+	 *            The files described in the meta info file.
+	 * @param parentDir
+	 *            The directory in which the files are to be stored.
+	 * @param mode
+	 *            Determines which kind of file store is created for each
+	 *            file.
+	 * @param windowSize
+	 *            The size of a mapped window in bytes. Used in
+	 *            {@link StoreMode#MEMORY_MAPPED} only.
+	 * @param maxWindows
+	 *            The most windows mapped at the same time for all the files
+	 *            together. Used in {@link StoreMode#MEMORY_MAPPED} only.
+	 * @throws IOException
+	 */
+	public MultiFileStore(List<FileDictionary> files, String parentDir, StoreMode mode, int windowSize,
+			int maxWindows) throws IOException {
 		if (parentDir == null || !(new File(parentDir)).isDirectory()) {
 			throw new IllegalArgumentException("Incorrect parent directory.");
 		}
@@ -47,12 +83,15 @@ public class MultiFileStore implements FileStore {
 		_beginMap = new HashMap<FileStore, Long>();
 		_fileNames = new LinkedList<String>();
 		_size = 0;
+		// All the files share one budget of mapped windows.
+		MappedWindowCache windows = StoreMode.MEMORY_MAPPED.equals(mode)
+				? new MappedWindowCache(windowSize, maxWindows) : null;
 		for (FileDictionary file : files) {
 			File actual = new File(parentDir, file.getFile().getPath());
 			// Create the directory of the file.
 			actual.getParentFile().mkdirs();
 			
-			SingleFileStore store = new SingleFileStore(actual, file.getLength());
+			SingleFileStore store = provideFileStore(actual, file.getLength(), windows);
 			_fileStores.add(store);
 			_fileNames.add(actual.getName());
 			_beginMap.put(store, _size);
@@ -60,6 +99,15 @@ public class MultiFileStore implements FileStore {
 		}
 	}
 	
+	private static SingleFileStore provideFileStore(File file, long length, MappedWindowCache windows)
+			throws IOException {
+		if (windows != null) {
+			return new MappedFileStore(file, length, windows);
+		}
+		
+		return new SingleFileStore(file, length);
+	}
+	
 	public String getParentName() {
 		if(_fileNames == null || _fileNames.isEmpty()) {
 			return null;
@@ -83,6 +131,15 @@ public class MultiFileStore implements FileStore {
 	public List<String> getFileNames() {
 		return _fileNames;
 	}
+
+	@Override
+	public List<File> getWorkingFiles() {
+		List<File> files = new ArrayList<File>(_fileStores.size());
+		for (FileStore store : _fileStores) {
+			files.addAll(store.getWorkingFiles());
+		}
+		return files;
+	}
 	
 	@Override
 	public int read(ByteBuffer data, long begin) throws IOException {
@@ -124,6 +181,67 @@ public class MultiFileStore implements FileStore {
 		return written;
 	}
 
+	@Override
+	public long write(ByteBuffer[] data, long begin) throws IOException {
+		long size = 0;
+		for (ByteBuffer block : data) {
+			size += block.remaining();
+		}
+
+		long written = 0;
+		int current = 0;
+
+		List<FileChunk> chunks = provideConcernedFiles(begin, size);
+
+		// Every file gets a gathering write of the parts of the blocks that
+		// fall in it.
+		for (FileChunk chunk : chunks) {
+			List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+			long needed = chunk.size();
+			while (needed > 0 && current < data.length) {
+				ByteBuffer block = data[current];
+				int length = (int) Math.min(block.remaining(), needed);
+				ByteBuffer part = block.duplicate();
+				part.limit(part.position() + length);
+				parts.add(part);
+
+				block.position(block.position() + length);
+				needed -= length;
+				if (!block.hasRemaining()) {
+					current++;
+				}
+			}
+			written += chunk.getFileStore().write(parts.toArray(new ByteBuffer[parts.size()]), chunk.begin());
+		}
+
+		// Check if we have written the needed amount of data.
+		if (written < size) {
+			throw new IOException("Not enough data written: expected " + size + ", written " + written);
+		}
+
+		return written;
+	}
+
+	@Override
+	public long transferTo(long begin, long length, WritableByteChannel target) throws IOException {
+		long transferred = 0;
+
+		// A block may span several files. The chunks are transferred in order
+		// and the transfer stops as soon as the target cannot accept any more
+		// data, so that the caller can resume from where it stopped.
+		List<FileChunk> chunks = provideConcernedFiles(begin, length);
+
+		for (FileChunk chunk : chunks) {
+			long sent = chunk.getFileStore().transferTo(chunk.begin(), chunk.size(), target);
+			transferred += sent;
+			if (sent < chunk.size()) {
+				break;
+			}
+		}
+
+		return transferred;
+	}
+
 	@Override
 	public void close() throws IOException {
 		for (FileStore store : _fileStores) {
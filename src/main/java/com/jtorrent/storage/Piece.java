@@ -1,8 +1,13 @@
 package com.jtorrent.storage;
 
 import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+import com.jtorrent.messaging.message.RequestMessage;
+import com.jtorrent.metainfo.MetaInfo;
+import com.jtorrent.metainfo.PieceTable;
 
 /**
  * <p>
@@ -12,12 +17,28 @@ import java.util.Set;
  * </p>
  * 
  * <p>
- * The Piece object also needs to be comparable. This is so, because the algorithm
- * employed for selecting a piece is Rarest First. The algorithm states that the 
- * pieces with the smallest frequency are downloaded first and the ones with a 
- * higher one - later. In order to know the frequency of a piece among the peer set,
- * the peer has a frequency counter and that count is used for comparing pieces when
- * the rarest piece is to be chosen. 
+ * The piece hashes its data as the blocks arrive. Every block that continues
+ * the already hashed prefix of the piece is fed to an incremental digest right
+ * away. Blocks that arrive out of order wait in the piece buffer until the gap
+ * before them is filled. Thus, the digest is finished as soon as the last block
+ * lands and the piece can be verified without reading it back from disk.
+ * Nothing is hashed while the blocks arrive unless the piece is verified in
+ * {@link VerificationMode#STREAMING} mode.
+ * </p>
+ * 
+ * <p>
+ * The data of a piece is assembled in a direct buffer taken from a
+ * {@link PieceBufferPool} and is given back to the pool once the piece has been
+ * written or discarded. The blocks of the piece are aligned to
+ * {@link #BLOCK_SIZE} and the received ones are tracked in a bitmap with a bit
+ * per block.
+ * </p>
+ * 
+ * <p>
+ * A piece keeps no copy of its meta data. Where it begins, its size and its
+ * hash are looked up by its index in the {@link PieceTable} of the torrent. The
+ * block bitmap and the digest only exist while the piece is being downloaded,
+ * so a piece that is not in flight takes little more than its object header.
  * </p>
  * 
  * <p>
@@ -31,41 +52,52 @@ import java.util.Set;
  * @author Alex
  *
  */
-public class Piece implements Comparable<Piece>{
-	public static final int HASH_SIZE = 20;
+public class Piece {
+	public static final int HASH_SIZE = PieceTable.HASH_SIZE;
+	/**
+	 * The size of the blocks the piece is requested in. Only the last block of
+	 * a piece may be smaller.
+	 */
+	public static final int BLOCK_SIZE = RequestMessage.DEFAULT_REQUEST_SIZE;
 
 	private final int _index;
-	private final long _begin;
-	private final long _size;
+	private final PieceTable _table;
+	private final PieceBufferPool _bufferPool;
 	private ByteBuffer _data;
 	private long _remaining;
 	
-	private Set<Integer> _blockSet;
-
 	/**
-	 * Each piece has a hash that is extracted from the meta info file.
+	 * A bit for every block of the piece that has been received. Only exists
+	 * while the piece has data.
 	 */
-	private final byte[] _hash;
+	private BitSet _blocks;
+	
+	/**
+	 * Incremental digest of the piece data.
+	 */
+	private MessageDigest _digest;
+	/**
+	 * The number of bytes from the beginning of the piece that have been fed
+	 * to the digest.
+	 */
+	private long _hashedBytes;
+	private boolean _hashValid;
 
 	/**
 	 * Boolean variable that signifies is the piece has been saved on disk.
 	 */
 	private volatile boolean _onDisk;
-	/**
-	 * Counts the number of peers that have this piece. This is used for the Rarest First
-	 * algorithm which uses the number of peers that have this piece. With the counter
-	 * we keep track of how rare, or how easily available, a piece is.
-	 */
-	private int _frequency;
 
-	public Piece(int index, long begin, long size, byte[] hash) {
+	public Piece(PieceTable table, int index) {
+		this(table, index, PieceBufferPool.instance());
+	}
+
+	public Piece(PieceTable table, int index, PieceBufferPool bufferPool) {
 		_index = index;
-		_begin = begin;
-		_size = size;
-		_hash = hash;
+		_table = table;
+		_bufferPool = bufferPool;
 
 		_onDisk = false;
-		_frequency = 0;
 	}
 
 	public int getIndex() {
@@ -73,39 +105,11 @@ public class Piece implements Comparable<Piece>{
 	}
 
 	public long getBegin() {
-		return _begin;
+		return _table.provideBegin(_index);
 	}
 
 	public long getSize() {
-		return _size;
-	}
-
-	/**
-	 * More or less this method is to be called when a have message is received
-	 * so that the counter can be updated.
-	 */
-	public void have() {
-		_frequency++;
-	}
-
-	/**
-	 * A peer no longer has this piece and so the have counter is decremented.
-	 */
-	public void lost() {
-		_frequency--;
-	}
-
-	/**
-	 * 
-	 * @return <b>true</b> - if at least one peer has this piece; <b>false</b> -
-	 *         no peers have this piece.
-	 */
-	private boolean isAvailable() {
-		return _frequency > 0;
-	}
-	
-	public int getFrequency() {
-		return _frequency;
+		return _table.provideSize(_index);
 	}
 
 	public boolean isOnDisk() {
@@ -117,45 +121,147 @@ public class Piece implements Comparable<Piece>{
 	}
 	
 	public synchronized boolean hasBlock(int blockBegin) {
-		return _data != null && _blockSet.contains(blockBegin);
-	}
-
-	public synchronized void addBlock(ByteBuffer block, int blockBegin) {
-		// The allocation of the piece is lazily declared this way
-		// so that the hash memory is not filled with the millions
-		// of pieces that need to be downloaded. Thus, when a piece
-		// has been chosen to be downloaded from a peer, its buffer is
-		// initialized and its blocks are added as they receive from the
-		// remote peer.
-		// NOTE: When a peer disconnects, the piece whose blocks it was sending
-		// to the torrent client, will be annulled. In this case, the next peer
-		// that will transmit this piece's data will start sending from block
-		// 0 again. When this happens, all of the piece's data needs to be
-		// discarded and a new byte buffer allocated for the peer. The described 
-		// approach is valid as blocks are sent sequentially in increasing number.
-		if (_data == null /*|| blockBegin == 0*/) {
-			_data = ByteBuffer.allocate((int) _size);
-			_remaining = _size;
-			_blockSet = new HashSet<>();
+		return _data != null && isBlockAligned(blockBegin) && _blocks.get(blockBegin / BLOCK_SIZE);
+	}
+	
+	private boolean isBlockAligned(int blockBegin) {
+		return blockBegin >= 0 && blockBegin < getSize() && blockBegin % BLOCK_SIZE == 0;
+	}
+	
+	private int blockLength(long blockBegin) {
+		return (int) Math.min(BLOCK_SIZE, getSize() - blockBegin);
+	}
+	
+	/**
+	 * Takes a buffer for the data of the piece from the pool, unless the piece
+	 * already has one.
+	 * 
+	 * @return <b>true</b> - if the piece has a buffer; <b>false</b> - if the
+	 *         pool has run out of memory.
+	 */
+	public synchronized boolean allocateData() {
+		if (_data != null) {
+			return true;
 		}
 		
-		if(_blockSet.contains(blockBegin)) {
+		long size = getSize();
+		_data = _bufferPool.tryAcquire((int) size);
+		if (_data == null) {
+			return false;
+		}
+		_remaining = size;
+		_blocks = new BitSet((int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE));
+		resetDigest();
+		return true;
+	}
+
+	/**
+	 * Adds a received block to the piece.
+	 * 
+	 * @param block
+	 *            The data of the block.
+	 * @param blockBegin
+	 *            Where the block begins in the piece.
+	 * @param verificationMode
+	 *            How the piece is verified. The block is fed to the digest
+	 *            only if the piece is verified as its blocks arrive.
+	 * @throws IllegalStateException
+	 *             If the block is not valid or the piece has no buffer.
+	 */
+	public synchronized void addBlock(ByteBuffer block, int blockBegin, VerificationMode verificationMode)
+			throws IllegalStateException {
+		// The buffer of the piece is normally taken from the pool when the
+		// piece is chosen for download. If the data has been released in the
+		// meantime - e.g. the peer that was downloading the piece has
+		// disconnected - the piece starts over from an empty buffer.
+		if (_data == null && !allocateData()) {
+			throw new IllegalStateException("no buffer available for piece #" + _index);
+		}
+		
+		block.rewind();
+		if (!isBlockAligned(blockBegin) || block.remaining() != blockLength(blockBegin)) {
+			throw new IllegalStateException("invalid block " + blockBegin + "(" + block.remaining()
+					+ " bytes) for piece #" + _index);
+		}
+		
+		int blockIndex = blockBegin / BLOCK_SIZE;
+		if (_blocks.get(blockIndex)) {
 			return;
-		} else {
-			_blockSet.add(blockBegin);
 		}
 		// Mark he amount of bytes that need to be written to complete the
 		// piece.
-		block.rewind();
+		_blocks.set(blockIndex);
 		_remaining -= block.remaining();
 		// Position the buffer to where the block starts.
 		_data.position(blockBegin);
 		_data.put(block);
 		_data.rewind();
+		
+		// A piece that is verified on disk is hashed once it has been written.
+		// Should the mode change while the piece is downloaded, the digest
+		// catches up with the blocks that are already in the buffer.
+		if (VerificationMode.STREAMING.equals(verificationMode)) {
+			updateDigest();
+		}
+	}
+	
+	private void resetDigest() {
+		_digest = null;
+		_hashedBytes = 0;
+		_hashValid = false;
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(MetaInfo.HASHING_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("hashing algorithm not supported: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Feeds to the digest all the blocks that continue the hashed prefix of
+	 * the piece. When the whole piece has been hashed, the digest is compared
+	 * to the hash of the piece from the meta info file.
+	 */
+	private void updateDigest() {
+		long size = getSize();
+		if (_hashedBytes == size) {
+			return;
+		}
+		if (_digest == null) {
+			_digest = newDigest();
+		}
+		
+		while (_hashedBytes < size && _blocks.get((int) (_hashedBytes / BLOCK_SIZE))) {
+			int length = blockLength(_hashedBytes);
+			ByteBuffer block = _data.duplicate();
+			block.limit((int) _hashedBytes + length);
+			block.position((int) _hashedBytes);
+			_digest.update(block);
+			_hashedBytes += length;
+		}
+		
+		if (_hashedBytes == size) {
+			_hashValid = _table.matches(_index, _digest.digest());
+			_digest = null;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return <b>true</b> - if all the blocks of the piece have been received
+	 *         and the data matches the hash of the piece; <b>false</b> -
+	 *         otherwise.
+	 */
+	public synchronized boolean isHashValid() {
+		return _hashValid;
 	}
 	
 	public synchronized void clear() {
-		_data = null;
+		releaseData();
+		_remaining = getSize();
+		_hashValid = false;
 	}
 
 	/**
@@ -175,24 +281,29 @@ public class Piece implements Comparable<Piece>{
 		return _data.duplicate();
 	}
 
+	/**
+	 * @return A copy of the hash of the piece from the meta info file.
+	 */
 	public byte[] getHash() {
-		return _hash.clone();
+		return _table.provideHash(_index);
 	}
 
-	public void releaseData() {
-		_data = null;
+	/**
+	 * Compares the digest to the hash of the piece without copying the hash.
+	 */
+	public boolean isHashOf(byte[] digest) {
+		return _table.matches(_index, digest);
 	}
 
-	@Override
-	public int compareTo(Piece piece) {
-		if (_index == piece.getIndex()) {
-			return 0;
-		}
-		// Compare frequency.
-		if(_frequency != piece.getFrequency()) {
-			return _frequency < piece.getFrequency() ? -1 : 1;
-		}
-		// If their frequency is equal, the chose the piece with the smaller index.
-		return _index < piece.getIndex() ? -1 : 1;		
+	/**
+	 * Gives the buffer of the piece back to the pool. The data must no longer
+	 * be used by anyone, e.g. by the {@link DiskWriter}.
+	 */
+	public synchronized void releaseData() {
+		ByteBuffer data = _data;
+		_data = null;
+		_blocks = null;
+		_digest = null;
+		_bufferPool.release(data);
 	}
 }
@@ -0,0 +1,262 @@
+package com.jtorrent.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * PieceBufferPool hands out the direct buffers in which the pieces are
+ * assembled while their blocks are being downloaded. The buffers of all the
+ * torrent sessions in the client come from the same pool, which never holds
+ * more native memory than its limit.
+ * </p>
+ * <p>
+ * Released buffers are kept and handed out again to pieces of the same size,
+ * as most pieces of a torrent have the same size. When a buffer of a new size
+ * is needed and the limit has been reached, idle buffers of other sizes are
+ * dropped to make room. If there is still no room, no buffer is handed out and
+ * the caller can wait for one via {@link #awaitBuffer(Runnable)} - the memory
+ * used for assembling pieces never grows beyond the limit.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class PieceBufferPool {
+
+	private static final Logger _logger = LoggerFactory.getLogger(PieceBufferPool.class);
+
+	public static final long DEFAULT_MEMORY_LIMIT = 256L * 1024 * 1024;
+
+	private static final PieceBufferPool INSTANCE = new PieceBufferPool(DEFAULT_MEMORY_LIMIT);
+
+	/**
+	 * Idle buffers by capacity.
+	 */
+	private final Map<Integer, Deque<ByteBuffer>> _idle;
+	private final Queue<Runnable> _waiters;
+
+	private long _memoryLimit;
+	/**
+	 * The native memory held by the pool - both idle and in use.
+	 */
+	private long _allocatedBytes;
+	private long _inUseBytes;
+	private long _hits;
+	private long _misses;
+	private long _refusals;
+
+	private volatile boolean _exhausted;
+
+	public PieceBufferPool(long memoryLimit) {
+		if (memoryLimit <= 0) {
+			throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+		}
+
+		_memoryLimit = memoryLimit;
+		_idle = new HashMap<Integer, Deque<ByteBuffer>>();
+		_waiters = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * @return The pool shared by all the torrent sessions.
+	 */
+	public static PieceBufferPool instance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Provides a buffer for a piece, if the memory limit allows it.
+	 *
+	 * @param size
+	 *            The size of the piece.
+	 * @return A cleared buffer whose limit is <b>size</b>, or <b>null</b> if
+	 *         there is no room for another buffer.
+	 */
+	public ByteBuffer tryAcquire(int size) {
+		ByteBuffer buffer;
+		synchronized (this) {
+			Deque<ByteBuffer> idle = _idle.get(size);
+			buffer = idle != null ? idle.poll() : null;
+			if (buffer != null) {
+				_hits++;
+			} else {
+				while (_allocatedBytes + size > _memoryLimit && dropIdleBuffer()) {
+					// Keep dropping the buffers no one uses.
+				}
+
+				if (_allocatedBytes + size > _memoryLimit) {
+					_refusals++;
+					_exhausted = true;
+					return null;
+				}
+
+				_misses++;
+				buffer = ByteBuffer.allocateDirect(size);
+				_allocatedBytes += size;
+			}
+			_inUseBytes += size;
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not touch the buffer after
+	 * it has been released. The tasks waiting for a buffer are run.
+	 *
+	 * @param buffer
+	 *            A buffer handed out by {@link #tryAcquire(int)}.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+
+		int size = buffer.capacity();
+		synchronized (this) {
+			_inUseBytes -= size;
+			if (_allocatedBytes > _memoryLimit) {
+				// The limit has been lowered - let the garbage collector free
+				// the native memory.
+				_allocatedBytes -= size;
+			} else {
+				Deque<ByteBuffer> idle = _idle.get(size);
+				if (idle == null) {
+					idle = new ArrayDeque<ByteBuffer>();
+					_idle.put(size, idle);
+				}
+				idle.push(buffer);
+			}
+			_exhausted = false;
+		}
+
+		notifyWaiters();
+	}
+
+	/**
+	 * Drops one idle buffer. The caller must hold the lock of the pool.
+	 *
+	 * @return <b>true</b> if there was an idle buffer to drop.
+	 */
+	private boolean dropIdleBuffer() {
+		Iterator<Deque<ByteBuffer>> it = _idle.values().iterator();
+		while (it.hasNext()) {
+			Deque<ByteBuffer> idle = it.next();
+			ByteBuffer buffer = idle.poll();
+			if (idle.isEmpty()) {
+				it.remove();
+			}
+			if (buffer != null) {
+				_allocatedBytes -= buffer.capacity();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the task once a buffer is released. If the pool has not run out of
+	 * memory, the task is run right away.
+	 *
+	 * @param task
+	 *            The task that asks for a buffer again.
+	 */
+	public void awaitBuffer(Runnable task) {
+		_waiters.add(task);
+		// A buffer may have been released while the task was being added.
+		if (!_exhausted) {
+			notifyWaiters();
+		}
+	}
+
+	private void notifyWaiters() {
+		// Only the tasks that are waiting now are run. A task that finds the
+		// pool exhausted again waits for the next buffer.
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		Runnable task;
+		while ((task = _waiters.poll()) != null) {
+			tasks.add(task);
+		}
+
+		for (Runnable waiting : tasks) {
+			try {
+				waiting.run();
+			} catch (RuntimeException e) {
+				_logger.warn("Resuming after a piece buffer was released failed: {}", e.toString());
+			}
+		}
+	}
+
+	/**
+	 * @return <b>true</b> if the last request for a buffer was refused and no
+	 *         buffer has been released since.
+	 */
+	public boolean isExhausted() {
+		return _exhausted;
+	}
+
+	public synchronized void setMemoryLimit(long memoryLimit) {
+		if (memoryLimit <= 0) {
+			throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit);
+		}
+
+		_memoryLimit = memoryLimit;
+		while (_allocatedBytes > _memoryLimit && dropIdleBuffer()) {
+			// Free as much as possible right away; the buffers in use are
+			// dropped as they are released.
+		}
+	}
+
+	public synchronized long getMemoryLimit() {
+		return _memoryLimit;
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return _allocatedBytes;
+	}
+
+	public synchronized long getInUseBytes() {
+		return _inUseBytes;
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * @return The number of times a buffer was not handed out because of the
+	 *         memory limit.
+	 */
+	public synchronized long getRefusals() {
+		return _refusals;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("in use: ").append(_inUseBytes);
+		sb.append(", allocated: ").append(_allocatedBytes);
+		sb.append(", limit: ").append(_memoryLimit);
+		sb.append(", hits: ").append(_hits);
+		sb.append(", misses: ").append(_misses);
+		sb.append(", refusals: ").append(_refusals);
+		return sb.toString();
+	}
+}
@@ -5,16 +5,16 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,7 +22,9 @@ import org.slf4j.LoggerFactory;
 import com.jtorrent.messaging.message.RequestMessage;
 import com.jtorrent.metainfo.InfoDictionary;
 import com.jtorrent.metainfo.MetaInfo;
+import com.jtorrent.metainfo.PieceTable;
 import com.jtorrent.peer.Peer;
+import com.jtorrent.peer.SpeedClass;
 import com.jtorrent.torrent.SessionInfo;
 import com.jtorrent.torrent.TorrentSession;
 
@@ -36,76 +38,112 @@ import com.jtorrent.torrent.TorrentSession;
  * no longer connected and communicating with the client, the peer must call the
  * {@link #unregitser(Peer)} method.
  * <p>
+ * The repository does not have a single lock. It is split in regions that are
+ * guarded independently, so that writing and hashing a piece never makes the
+ * other peers wait to select a piece:
+ * <ul>
+ * <li>the completed and in-flight pieces are lock-free atomic bit sets;</li>
+ * <li>the data of a piece is guarded by the piece itself, so different pieces
+ * are written and checked concurrently;</li>
+ * <li>the pieces of every peer are guarded by the peer's own bit set and the
+ * requested pieces live in a concurrent map;</li>
+ * <li>the availability of the pieces and the rarest first order are guarded
+ * by the selection lock, which is never held during disk I/O or hashing.</li>
+ * </ul>
  * </p>
  * @author Alex
  *
  */
 public class PieceRepository {
 
-	private static final double END_GAME_PERCENT = 0.95;
+	/**
+	 * In end game a block is requested from at most this many peers at once.
+	 */
+	public static final int ENDGAME_REQUESTS_PER_BLOCK = 3;
+	/**
+	 * The most pieces a single peer downloads at once.
+	 */
+	public static final int MAX_PIECES_PER_PEER = 16;
 	
 	private static final Logger _logger = LoggerFactory.getLogger(PieceRepository.class);
 
 	private Piece[] _pieces;
 	private final FileStore _fileStore;
+	private final TorrentSession _session;
 	private final SessionInfo _sessionInfo;
 	private final InfoDictionary _infoDict;
+	private volatile VerificationMode _verificationMode;
 
-	private BitSet _completedPieces;
+	private final AtomicBitSet _completedPieces;
 	/**
 	 * Pieces that are currently being downloaded or requested.
 	 */
-	private BitSet _inFlightPieces;
-	private Map<String, RequestedPiece> _requestedPiecesMap;
+	private final AtomicBitSet _inFlightPieces;
+	/**
+	 * Pieces that have been received and are waiting to be written to disk.
+	 */
+	private final AtomicBitSet _queuedPieces;
+	private final DiskWriter _diskWriter;
+	private final PieceBufferPool _bufferPool;
+	/**
+	 * The pieces being downloaded from every peer.
+	 */
+	private final Map<String, PeerRequests> _requestedPiecesMap;
+	/**
+	 * The pieces in flight by their index. The peers downloading the same
+	 * piece request its blocks through it.
+	 */
+	private final Map<Integer, SharedPiece> _sharedPieces;
 	
 	// Rarest first variables.
-	private Map<String, BitSet> _peerBitSetMap;
-	private SortedSet<Piece> _rarestSet;
-	private RarestFirstSelector _pieceSelector;
+	private final Map<String, BitSet> _peerBitSetMap;
+	/**
+	 * Guards the frequencies of the pieces and the availability index.
+	 */
+	private final Object _selectionLock;
+	private final AvailabilityIndex _availability;
+	private final RarestFirstSelector _pieceSelector;
+	
+	// End game statistics.
+	private final AtomicLong _duplicateRequests;
+	private final AtomicLong _duplicateBytes;
+	private final AtomicLong _cancelsSent;
 	
 	public PieceRepository(TorrentSession session) {
 		_fileStore = session.getFileStore();
+		_session = session;
 		_sessionInfo = session.getSessionInfo();
 		_infoDict = session.getMetaInfo().getInfoDictionary();
+		_verificationMode = VerificationMode.DEFAULT;
 
-		// Calculate the number of pieces that the client needs to download.
-		// NOTE: here the last pieces, which is not equal to the standard
-		// piece size is also factored in.
-		int numPieces = (int) (Math.ceil((double) _fileStore.size() / _infoDict.getPieceLength()));
+		// The number of pieces that the client needs to download. The last
+		// piece, which may be shorter than the others, is also counted.
+		PieceTable pieceTable = _infoDict.getPieceTable();
+		int numPieces = pieceTable.size();
 		_pieces = new Piece[numPieces];
-		_completedPieces = new BitSet(numPieces);
-		_inFlightPieces = new BitSet(numPieces);
-		_requestedPiecesMap = new HashMap<>();
+		_completedPieces = new AtomicBitSet(numPieces);
+		_inFlightPieces = new AtomicBitSet(numPieces);
+		_queuedPieces = new AtomicBitSet(numPieces);
+		_requestedPiecesMap = new ConcurrentHashMap<>();
+		_sharedPieces = new ConcurrentHashMap<>();
+		_duplicateRequests = new AtomicLong();
+		_duplicateBytes = new AtomicLong();
+		_cancelsSent = new AtomicLong();
+		_bufferPool = PieceBufferPool.instance();
 		
-		// Add the hashes from the .torrent meta info file into every piece
-		// object. This way we can later check if the pieces have been
-		// downloaded successfully.
-		addPieces(_infoDict.getPieces().duplicate(), _infoDict);
+		// The pieces look up their hashes, begin and size in the table of the
+		// meta info, so nothing is copied per piece.
+		for (int index = 0; index < numPieces; index++) {
+			_pieces[index] = new Piece(pieceTable, index, _bufferPool);
+		}
 		
 		// Keep track of which peer has which pieces.
-		_rarestSet = Collections.synchronizedSortedSet(new TreeSet<Piece>());
-		_peerBitSetMap = new HashMap<String, BitSet>();
+		_selectionLock = new Object();
+		_availability = new AvailabilityIndex(numPieces);
+		_peerBitSetMap = new ConcurrentHashMap<String, BitSet>();
 		_pieceSelector = new RarestFirstSelector();
-	}
-	
-	private void addPieces(ByteBuffer hashes, InfoDictionary info) {
-		hashes.clear();
-		for (int index = 0; index < _pieces.length; index++) {
-			byte[] hash = new byte[Piece.HASH_SIZE];
-			hashes.get(hash);
-
-			long begin = ((long)index) * info.getPieceLength();
-			// The last piece of the torrent may not be equal to the pieceLength
-			// specified
-			// in the .torrent file. In that case the last piece has a length of
-			// [total files size] - [last piece begin]. We can get the total
-			// file size
-			// from the file store and the begin offset is easily calculate
-			// above.
-			int size = (int) Math.min(info.getPieceLength(), _fileStore.size() - begin);
-			Piece newPiece = new Piece(index, begin, size, hash);
-			_pieces[index] = newPiece;
-		}
+		
+		_diskWriter = new DiskWriter(this);
 	}
 
 	public Piece get(int index) {
@@ -120,6 +158,28 @@ public class PieceRepository {
 		return _pieces;
 	}
 
+	/**
+	 * @param begin
+	 *            Where the region begins in the file store.
+	 * @param length
+	 *            The length of the region.
+	 * @return The pieces that hold at least one byte of the region.
+	 */
+	public BitSet providePieces(long begin, long length) {
+		BitSet pieces = new BitSet(_pieces.length);
+		if (length <= 0 || _pieces.length == 0) {
+			return pieces;
+		}
+
+		long pieceLength = _infoDict.getPieceLength();
+		int first = (int) (begin / pieceLength);
+		int last = (int) Math.min(_pieces.length - 1, (begin + length - 1) / pieceLength);
+		if (first <= last) {
+			pieces.set(first, last + 1);
+		}
+		return pieces;
+	}
+
 	/**
 	 * Every piece consists of a blocks. This function tries to read a block of
 	 * data. It checks the block boundaries and whether the piece is on disk.
@@ -138,33 +198,67 @@ public class PieceRepository {
 	 */
 	public ByteBuffer readBlock(int pieceIndex, int blockBegin, int blockSize)
 			throws IllegalStateException, IOException {
+		ByteBuffer block = ByteBuffer.allocate(blockSize);
+		int read = _fileStore.read(block, provideBlockOffset(pieceIndex, blockBegin, blockSize));
+		// We need to rewind buffer so that the calling function will start
+		// reading from
+		// its beginning.
+		block.rewind();
+		block.limit(read >= 0 ? read : 0);
+		return block;
+	}
+
+	/**
+	 * Checks that a block can be served to a peer and finds where it is located
+	 * in the file store. This is used when a block is to be sent straight from
+	 * the file store, without being read in memory.
+	 * 
+	 * @param pieceIndex
+	 *            The index of the piece.
+	 * @param blockBegin
+	 *            Where the block starts in the piece.
+	 * @param blockSize
+	 *            The size of the block.
+	 * @return The offset of the block in the file store.
+	 * @throws IllegalStateException
+	 *             If the piece is not currently on disk
+	 */
+	public long provideBlockOffset(int pieceIndex, int blockBegin, int blockSize) throws IllegalStateException {
 		Piece piece = _pieces[pieceIndex];
 		if (!piece.isOnDisk()) {
 			throw new IllegalStateException("Trying to read from a piece that is not on disk.");
 		}
 
-		if (blockBegin + blockSize > piece.getSize()) {
+		if (blockBegin < 0 || blockSize <= 0 || (long) blockBegin + blockSize > piece.getSize()) {
 			throw new IllegalArgumentException("Attempting to read beyond peice#" + piece.getIndex() + " boundaries.");
 		}
 
-		ByteBuffer block = ByteBuffer.allocate(blockSize);
 		// The torrent files are viewed as a linear space. The block has an
 		// offset in the
 		// piece itself and the piece has an offset from the beginning of the
 		// entire file
 		// space. Thus, the block begins at [piece begin offset] + [block begin
 		// offset].
-		int read = _fileStore.read(block, piece.getBegin() + blockBegin);
-		// We need to rewind buffer so that the calling function will start
-		// reading from
-		// its beginning.
-		block.rewind();
-		block.limit(read >= 0 ? read : 0);
-		return block;
+		return piece.getBegin() + blockBegin;
+	}
+
+	public FileStore getFileStore() {
+		return _fileStore;
+	}
+	
+	/**
+	 * @return The stage that writes the received pieces to disk.
+	 */
+	public DiskWriter getDiskWriter() {
+		return _diskWriter;
 	}
 
 	/**
-	 * Write a block to a piece.
+	 * Write a block to a piece. Only the piece is locked while the block is
+	 * added, so blocks of different pieces are assembled and verified
+	 * concurrently. The block is kept in memory - when the piece is complete,
+	 * it is handed over to the {@link DiskWriter} and the piece is marked as
+	 * complete once it has been written.
 	 * 
 	 * @param pieceIndex
 	 *            The index of the piece.
@@ -175,37 +269,121 @@ public class PieceRepository {
 	 * @throws IOException
 	 *             When I/O exception occurs when writing to disk.
 	 */
-	public synchronized void writeBlock(int pieceIndex, ByteBuffer block, int blockBegin) throws IOException, IllegalStateException {
+	public void writeBlock(int pieceIndex, ByteBuffer block, int blockBegin) throws IOException, IllegalStateException {
 		Piece piece = _pieces[pieceIndex];
 		if (block == null) {
 			throw new IllegalArgumentException("Cannot write null data to piece #" + piece.getIndex());
 		}
 		
-		piece.addBlock(block, blockBegin);
+		synchronized (piece) {
+			writeBlock(piece, block, blockBegin);
+		}
+	}
+	
+	private void writeBlock(Piece piece, ByteBuffer block, int blockBegin) throws IOException, IllegalStateException {
+		int pieceIndex = piece.getIndex();
+		// In end game the same block may arrive from several peers after the
+		// piece has already been received.
+		if (_completedPieces.get(pieceIndex) || _queuedPieces.get(pieceIndex) || piece.hasBlock(blockBegin)) {
+			_duplicateBytes.addAndGet(block.remaining());
+			return;
+		}
+		
+		try {
+			piece.addBlock(block, blockBegin, _verificationMode);
+		} catch (IllegalStateException e) {
+			// No buffer for the piece or a malformed block - the piece is to
+			// be chosen again.
+			_inFlightPieces.clear(pieceIndex);
+			throw e;
+		}
 		// Only when the piece has had all it's blocks added, can it be stored
 		// on disk.
 		_logger.debug("[BLOCK]Piece {} has {} remaining", pieceIndex, piece.getRemaining());
-		if (piece.isComplete()) {
+		if (!piece.isComplete()) {
+			return;
+		}
+		
+		// The piece has already been hashed while its blocks were arriving.
+		// Only valid data is written to disk.
+		if (VerificationMode.STREAMING.equals(_verificationMode) && !piece.isHashValid()) {
+			_inFlightPieces.clear(pieceIndex);
+			piece.clear();
+			throw new IllegalStateException("received piece #" + pieceIndex + " is not valid");
+		}
+		
+		// The piece stays in flight until it is on disk, so that it is not
+		// chosen for download again in the meantime.
+		_queuedPieces.set(pieceIndex);
+		try {
+			_diskWriter.submit(piece);
+		} catch (IOException e) {
+			_queuedPieces.clear(pieceIndex);
+			_inFlightPieces.clear(pieceIndex);
+			piece.clear();
+			_logger.warn("could not queue piece #" + pieceIndex + " for writing.");
+			throw e;
+		}
+	}
+	
+	/**
+	 * Called by the {@link DiskWriter} once it is done with a piece.
+	 * 
+	 * @param piece
+	 *            The piece that was to be written.
+	 * @param written
+	 *            Whether the data of the piece has been written.
+	 */
+	void onPieceWritten(Piece piece, boolean written) {
+		int pieceIndex = piece.getIndex();
+		boolean valid = written;
+		if (valid && VerificationMode.ON_DISK.equals(_verificationMode)) {
 			try {
-				_fileStore.write(piece.getData(), piece.getBegin());
-				_inFlightPieces.set(pieceIndex, false);
-				
-				if(!check(piece.getIndex())) {
-					piece.clear();
-					throw new IllegalStateException("received piece #" + pieceIndex + " is not valid");
-				} else {				
-					markPieceComplete(pieceIndex);
-					// The data is released after it has been written to disk. This
-					// way
-					// the immediate heap can be garbage collected to free memory.
-					piece.releaseData();
-					_logger.info("{}% complete", completedPercent());
-				}
+				valid = check(pieceIndex);
 			} catch (IOException e) {
-				_logger.warn("could not write piece #" + pieceIndex + " to disk.");
-				throw e;
+				valid = false;
 			}
 		}
+		
+		boolean completed = false;
+		synchronized (piece) {
+			if (valid) {
+				completed = completePiece(pieceIndex);
+				// The data is released after it has been written to disk. This
+				// way the buffer goes back to the pool for the next piece.
+				piece.releaseData();
+			} else {
+				piece.clear();
+			}
+			_queuedPieces.clear(pieceIndex);
+			_inFlightPieces.clear(pieceIndex);
+		}
+		
+		if (!valid) {
+			_logger.warn("piece #{} could not be stored and is to be downloaded again", pieceIndex);
+			return;
+		}
+		if (completed) {
+			unlinkCompletedPiece(pieceIndex);
+		}
+		
+		_logger.info("{}% complete", completedPercent());
+		_session.onPieceCompleted(piece);
+	}
+
+	/**
+	 * @return The pool that holds the buffers of the pieces being downloaded.
+	 */
+	public PieceBufferPool getBufferPool() {
+		return _bufferPool;
+	}
+
+	public VerificationMode getVerificationMode() {
+		return _verificationMode;
+	}
+
+	public void setVerificationMode(VerificationMode verificationMode) {
+		_verificationMode = verificationMode;
 	}
 
 	/**
@@ -215,7 +393,7 @@ public class PieceRepository {
 	 * @return <b>true</b> - if the piece is on disk;<b>false</b>
 	 * @throws IOException
 	 */
-	public synchronized boolean check(int pieceIndex) throws IOException {
+	public boolean check(int pieceIndex) throws IOException {
 		Piece piece = _pieces[pieceIndex];
 		// Read the data from disk.
 		ByteBuffer pieceData = ByteBuffer.allocate((int) piece.getSize());
@@ -234,7 +412,7 @@ public class PieceRepository {
 			encrypted.reset();
 			encrypted.update(byteData);
 			byte[] digest = encrypted.digest();
-			res = Arrays.equals(digest, piece.getHash());
+			res = piece.isHashOf(digest);
 		} catch (NoSuchAlgorithmException e) {
 			res =  false;
 		}
@@ -242,7 +420,7 @@ public class PieceRepository {
 		return res;
 	}
 
-	public synchronized boolean checkPieceHasBlock(int pieceIndex, int blockBegin) {
+	public boolean checkPieceHasBlock(int pieceIndex, int blockBegin) {
 		return _pieces[pieceIndex].hasBlock(blockBegin);
 	}
 	
@@ -250,7 +428,7 @@ public class PieceRepository {
 		return _pieces.length;
 	}
 	
-	public synchronized boolean isPieceToBeDownloaded(int index) {
+	public boolean isPieceToBeDownloaded(int index) {
 		return !_completedPieces.get(index) && !_inFlightPieces.get(index);
 	}
 
@@ -260,29 +438,55 @@ public class PieceRepository {
 	 * @param pieceIndex
 	 *            The index of the piece.
 	 */
-	public synchronized void markPieceComplete(int pieceIndex) {
+	public void markPieceComplete(int pieceIndex) {
+		if(completePiece(pieceIndex)) {
+			unlinkCompletedPiece(pieceIndex);
+		}
+	}
+
+	/**
+	 * Marks the piece as complete. The caller may hold the monitor of the
+	 * piece.
+	 * 
+	 * @return <b>true</b> if the piece has not been completed before.
+	 */
+	private boolean completePiece(int pieceIndex) {
 		_logger.debug("Piece {} completed", pieceIndex);
+		Piece piece = _pieces[pieceIndex];
+		// The piece is on disk before it is seen as completed, so that a peer
+		// never gets to request a completed piece that cannot be read yet.
+		piece.setOnDisk(true);
 		// Check of the piece has not already been completed.
 		// If so - do nothing.
-		if(_completedPieces.get(pieceIndex)) {
-			return;
+		if(!_completedPieces.set(pieceIndex)) {
+			return false;
+		}
+		synchronized (_sessionInfo) {
+			_sessionInfo.setDownloaded(_sessionInfo.getDownloaded() + piece.getSize());
+			_sessionInfo.setLeft(_sessionInfo.getLeft() - piece.getSize());
+		}
+		return true;
+	}
+
+	/**
+	 * A completed piece is never chosen again, so the availability index
+	 * no longer walks it. The caller must not hold the monitor of the piece.
+	 */
+	private void unlinkCompletedPiece(int pieceIndex) {
+		synchronized (_selectionLock) {
+			_availability.remove(pieceIndex);
 		}
-		Piece piece = _pieces[pieceIndex];
-		piece.setOnDisk(true);
-		_completedPieces.set(pieceIndex);
-		_sessionInfo.setDownloaded(_sessionInfo.getDownloaded() + _pieces[pieceIndex].getSize());
-		_sessionInfo.setLeft(_sessionInfo.getLeft() - _pieces[pieceIndex].getSize());
 	}
 
 	/**
 	 * 
 	 * @return The number of pieces successfully downloaded/written on disk.
 	 */
-	public synchronized int getNumberOfcompletedPieces() {
+	public int getNumberOfcompletedPieces() {
 		return _completedPieces.cardinality();
 	}
 
-	public synchronized double completedPercent() {
+	public double completedPercent() {
 		double percent = ((double) _completedPieces.cardinality() / _pieces.length) * 100;
 		return percent;
 	}
@@ -295,12 +499,12 @@ public class PieceRepository {
 	 * with which piece it can download next.
 	 * @param peer
 	 */
-	public synchronized void register(Peer peer) {
+	public void register(Peer peer) {
 		_peerBitSetMap.put(peer.getHexPeerID(), new BitSet(_pieces.length));
 	}
 	
-	public synchronized void unregister(Peer peer) {
-		_peerBitSetMap.remove(peer.getHexPeerID(), new BitSet(_pieces.length));
+	public void unregister(Peer peer) {
+		_peerBitSetMap.remove(peer.getHexPeerID());
 	}
 	
 	/**
@@ -308,20 +512,21 @@ public class PieceRepository {
 	 * @param peer The peer to follow.
 	 * @param bitSet The initial bit set that is to be bound to the peer.
 	 */
-	public synchronized void followPeer(Peer peer, BitSet bitSet) {		
+	public void followPeer(Peer peer, BitSet bitSet) {		
 		_logger.debug("followed peer {}", peer.getHostAddress());
 		
-		BitSet bitField = _peerBitSetMap.get(peer.getHexPeerID());
-		if(bitField == null){
-			register(peer);
-			bitField = _peerBitSetMap.get(peer.getHexPeerID());
+		BitSet bitField = _peerBitSetMap.computeIfAbsent(peer.getHexPeerID(), id -> new BitSet(_pieces.length));
+		// Only the pieces the peer was not known to have are counted.
+		BitSet gained = (BitSet) bitSet.clone();
+		synchronized (bitField) {
+			gained.andNot(bitField);
+			bitField.or(gained);
 		}
-		bitField.or(bitSet);
-		
-		_peerBitSetMap.put(peer.getHexPeerID(), bitField);
 		
-		for(int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
-			updatePieceFrequency(i, true);
+		synchronized (_selectionLock) {
+			for(int i = gained.nextSetBit(0); i >= 0; i = gained.nextSetBit(i + 1)) {
+				updatePieceFrequency(i, true);
+			}
 		}
 	}
 	
@@ -330,89 +535,235 @@ public class PieceRepository {
 	 * and in flight blocks.
 	 * @param peer The peer to unfollow.
 	 */
-	public synchronized void unfollowPeer(Peer peer) {
+	public void unfollowPeer(Peer peer) {
 		_logger.debug("unfollowed peer {}", peer.getHostAddress());
 		BitSet bitSet = _peerBitSetMap.get(peer.getHexPeerID());
 		if(bitSet != null) {
-			for(int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
-				if(i == -1) break;
-				
-				updatePieceFrequency(i, false);
+			BitSet lost;
+			synchronized (bitSet) {
+				lost = (BitSet) bitSet.clone();
+				// A second unfollow must not count the pieces as lost again.
+				bitSet.clear();
+			}
+			synchronized (_selectionLock) {
+				for(int i = lost.nextSetBit(0); i >= 0; i = lost.nextSetBit(i + 1)) {
+					updatePieceFrequency(i, false);
+				}
 			}
 		}
 		
-		RequestedPiece reqPiece = _requestedPiecesMap.remove(peer.getHexPeerID());
-		if(reqPiece != null) {
-			_inFlightPieces.set(reqPiece.getPiece().getIndex(), false);
+		PeerRequests requests = _requestedPiecesMap.remove(peer.getHexPeerID());
+		if(requests != null) {
+			releasePieces(requests);
+		}
+	}
+	
+	/**
+	 * Gives up the pieces that were being downloaded from a peer, so that they
+	 * can be chosen again.
+	 */
+	private void releasePieces(PeerRequests requests) {
+		for(RequestedPiece reqPiece : requests.getPieces()) {
+			Piece piece = reqPiece.getPiece();
+			// The blocks that have not arrived go back to the other peers
+			// downloading the piece, if there are any.
+			if(!leave(reqPiece)) {
+				continue;
+			}
 			// Release the data from the requested piece if the peer started downloading a piece.
-			reqPiece.getPiece().releaseData();
+			// A piece that is waiting for the disk writer keeps its data until it is written.
+			synchronized (piece) {
+				if (!_queuedPieces.get(piece.getIndex()) && !_completedPieces.get(piece.getIndex())) {
+					_inFlightPieces.clear(piece.getIndex());
+					piece.clear();
+				}
+			}
 		}
 	}
 	
 	///////////////////////// PIECE /////////////////////////
 	
-	public void removeCurrentRequestedPiece(Peer peer) {
+	/**
+	 * Stops tracking the download of a piece from the peer, once the piece
+	 * has been received or can no longer be assembled.
+	 */
+	public void removeRequestedPiece(Peer peer, int pieceIndex) {
 		synchronized (peer) {
-			// Check if a requested piece exist first.
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests == null) {
 				return;
 			}
 			
-			_requestedPiecesMap.put(peer.getHexPeerID(), null);
+			RequestedPiece rp = requests.remove(pieceIndex);
+			if(rp != null) {
+				leave(rp);
+			}
+			if(requests.isEmpty()) {
+				_requestedPiecesMap.remove(peer.getHexPeerID());
+			}
 		}
 	}
 	
 	/**
-	 * Updates the bit set of a peer by setting the piece index in the set to <b>true</b>.
+	 * The peer stops downloading the piece.
+	 * 
+	 * @return <b>true</b> if no other peer is downloading the piece.
+	 */
+	private boolean leave(RequestedPiece rp) {
+		SharedPiece shared = rp.getSharedPiece();
+		if(shared.leave(rp) > 0) {
+			return false;
+		}
+		
+		_sharedPieces.remove(rp.getPiece().getIndex(), shared);
+		return true;
+	}
+	
+	/**
+	 * Drops the pieces whose blocks have all been requested and received by
+	 * the peer, but which have been completed by other peers.
+	 */
+	private void pruneFinishedPieces(PeerRequests requests) {
+		for(RequestedPiece rp : new ArrayList<RequestedPiece>(requests.getPieces())) {
+			if(rp.isFullyRequested() && rp.getBlocksInFlight().isEmpty()) {
+				requests.remove(rp.getPiece().getIndex());
+				leave(rp);
+			}
+		}
+	}
+	
+	/**
+	 * Finds a piece that the peer can help to download. Slow peers are given
+	 * no shared pieces, so that no other peer waits for their blocks. The
+	 * caller must hold the selection lock.
+	 * 
+	 * @return The piece of the class of the peer that is the closest to being
+	 *         completed, or <b>null</b> if there is none.
+	 */
+	private SharedPiece provideSharedPiece(Peer peer, SpeedClass speedClass, BitSet requested) {
+		if(SpeedClass.SLOW.equals(speedClass) || _sharedPieces.isEmpty()) {
+			return null;
+		}
+		
+		BitSet peerPieces = providePeerPieces(peer);
+		SharedPiece best = null;
+		int bestUnrequested = Integer.MAX_VALUE;
+		for(SharedPiece shared : _sharedPieces.values()) {
+			int index = shared.getPiece().getIndex();
+			if(!speedClass.equals(shared.getSpeedClass()) || requested.get(index) || !peerPieces.get(index)
+					|| !_inFlightPieces.get(index) || _queuedPieces.get(index) || _completedPieces.get(index)) {
+				continue;
+			}
+			
+			int unrequested = shared.getUnrequestedBlocks();
+			if(unrequested > 0 && unrequested < bestUnrequested) {
+				best = shared;
+				bestUnrequested = unrequested;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Updates the bit set of a peer. The availability of the piece changes
+	 * only if the bit flips, so a repeated HAVE is not counted twice.
 	 * @param peer The peer whose bit set is to be updated.
 	 * @param index The index of the piece in the bit set
+	 * @param have Whether the peer has the piece.
 	 */
 	public void setPeerHavePiece(Peer peer, int index, boolean have) {
-		synchronized (peer) {
+		BitSet pieceSet = _peerBitSetMap.get(peer.getHexPeerID());
+		if(pieceSet == null) {
+			return;
+		}
+		
+		synchronized (pieceSet) {
+			if(pieceSet.get(index) == have) {
+				return;
+			}
+			pieceSet.set(index, have);
+		}
+		synchronized (_selectionLock) {
 			updatePieceFrequency(index, have);
-			BitSet pieceSet = _peerBitSetMap.get(peer.getHexPeerID());
-			pieceSet.set(index);
-			_peerBitSetMap.put(peer.getHexPeerID(), pieceSet);
 		}
 	}
 	
 	/**
-	 * Updates the frequency of the piece.
+	 * Updates the frequency of the piece. The caller must hold the selection lock.
 	 * @param index The piece whose frequency is to be updated.
 	 * @param available Whether the piece is available or has been lost due to peer disconnecting. 
 	 */
-	private synchronized void updatePieceFrequency(int index, boolean available) {
-		Piece piece = _pieces[index];
-		_rarestSet.remove(piece);
-		// update the piece frequency
+	private void updatePieceFrequency(int index, boolean available) {
 		if(available) {
-			piece.have();
+			_availability.increment(index);
 		} else {
-			piece.lost();
+			_availability.decrement(index);
 		}
-		_rarestSet.add(piece);
 	}
 	
 	/**
-	 * Determines which next piece the Peer should start downloading.
+	 * Determines which next piece the Peer should start downloading. The piece
+	 * is added to the pieces that are being downloaded from the peer.
 	 * @param peer The peer whose next piece is to be chosen.
+	 * @throws IllegalStateException If the peer is downloading as many pieces
+	 * as it may.
 	 */
-	public synchronized Piece selectNextPiece(Peer peer) throws IllegalStateException {
+	public Piece selectNextPiece(Peer peer) throws IllegalStateException {
 		Piece piece = null;
 		synchronized(peer) {
-			RequestedPiece requestedPiece = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(requestedPiece != null) {
-				throw new IllegalStateException("Peer #" + peer.getHostAddress() + " has piece in flight.");
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests != null && requests.size() >= provideMaxPieces(peer)) {
+				throw new IllegalStateException("Peer #" + peer.getHostAddress() + " has "
+						+ requests.size() + " pieces in flight.");
 			}
+			BitSet requested = requests != null ? requests.provideIndices() : new BitSet();
+			SpeedClass speedClass = SpeedClass.of(peer);
 			
-			piece = _pieceSelector.select(peer);
-			if(piece == null) {
+			// The piece is marked as in flight while the selection lock is
+			// still held, so that no two peers choose the same piece outside
+			// of end game.
+			boolean claimed = false;
+			boolean endgame = false;
+			SharedPiece shared;
+			synchronized (_selectionLock) {
+				// A peer joins a piece started by a peer of its class before it
+				// starts a fresh one.
+				shared = provideSharedPiece(peer, speedClass, requested);
+				if(shared == null) {
+					piece = _pieceSelector.select(peer, requested, speedClass);
+					if(piece == null) {
+						return null;
+					}
+					// In end game the piece may already be in flight from another peer.
+					claimed = _inFlightPieces.set(piece.getIndex());
+					endgame = !claimed;
+					if(claimed) {
+						shared = new SharedPiece(piece, speedClass);
+						_sharedPieces.put(piece.getIndex(), shared);
+					} else {
+						final Piece endgamePiece = piece;
+						shared = _sharedPieces.computeIfAbsent(piece.getIndex(),
+								index -> new SharedPiece(endgamePiece, speedClass));
+					}
+				}
+				piece = shared.getPiece();
+				shared.join();
+			}
+			
+			// The buffer of the piece is taken up front, so that no blocks are
+			// requested for a piece that cannot be assembled. The peer waits
+			// for a buffer via the pool instead.
+			if (claimed && !piece.allocateData()) {
+				_inFlightPieces.clear(piece.getIndex());
+				_sharedPieces.remove(piece.getIndex(), shared);
+				_logger.debug("no buffer for piece {}: {}", piece.getIndex(), _bufferPool);
 				return null;
 			}
-			_inFlightPieces.set(piece.getIndex());
-			requestedPiece = new RequestedPiece(piece);
-			_requestedPiecesMap.put(peer.getHexPeerID(), requestedPiece);
+			if(requests == null) {
+				requests = new PeerRequests(peer);
+				_requestedPiecesMap.put(peer.getHexPeerID(), requests);
+			}
+			requests.add(new RequestedPiece(shared, endgame));
 		}
 		
 		_logger.debug("chose piece {} for peer {}", piece.getIndex(), peer.getHostAddress());
@@ -420,19 +771,66 @@ public class PieceRepository {
 		return piece;
 	}
 	
-	public Piece getDownloadingPiece(Peer peer) {
+	/**
+	 * @return The pieces being downloaded from the peer, the oldest first.
+	 */
+	public List<Piece> getDownloadingPieces(Peer peer) {
 		synchronized (peer) {
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
-				return null;
+			List<Piece> pieces = new ArrayList<Piece>();
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests != null) {
+				for(RequestedPiece rp : requests.getPieces()) {
+					pieces.add(rp.getPiece());
+				}
+			}
+			return pieces;
+		}
+	}
+	
+	/**
+	 * The number of pieces a peer downloads at once follows its request
+	 * depth. A slow peer downloads a single piece, so that the partial pieces
+	 * are not scattered among the slow peers. A fast peer starts on the next
+	 * pieces while the last blocks of the previous ones are arriving.
+	 * 
+	 * @return The most pieces that may be downloaded from the peer at once.
+	 */
+	public int provideMaxPieces(Peer peer) {
+		int blocksPerPiece = (int) Math.ceil(((double) _infoDict.getPieceLength()) / Piece.BLOCK_SIZE);
+		return Math.min(MAX_PIECES_PER_PEER, 1 + peer.getRequestDepth() / Math.max(1, blocksPerPiece));
+	}
+	
+	/**
+	 * @return <b>true</b> if all the blocks of the pieces being downloaded
+	 *         from the peer have been requested, there is room for more
+	 *         requests and the peer may download another piece.
+	 */
+	public boolean needsAnotherPiece(Peer peer) {
+		synchronized (peer) {
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests == null) {
+				return true;
 			}
 			
-			return rp.getPiece();
+			pruneFinishedPieces(requests);
+			return requests.size() < provideMaxPieces(peer) && requests.isFullyRequested()
+					&& requests.getBlocksInFlightCount() < peer.getRequestDepth();
 		}
 	}
 	
-	public synchronized BitSet getCompletedPieces() {
-		return _completedPieces;
+	/**
+	 * @return A snapshot of the completed pieces.
+	 */
+	public BitSet getCompletedPieces() {
+		return _completedPieces.toBitSet();
+	}
+	
+	/**
+	 * @return A copy of the completed pieces that is safe to be used while
+	 *         pieces keep being completed.
+	 */
+	public BitSet provideCompletedPieces() {
+		return _completedPieces.toBitSet();
 	}
 	
 	/**
@@ -442,14 +840,28 @@ public class PieceRepository {
 	 * @return A BitSet object which contains which pieces can be downloaded from
 	 * this peer.
 	 */
-	public synchronized BitSet provideDownloadablePieces(Peer peer) {
-		BitSet freePieceSet = (BitSet) _peerBitSetMap.get(peer.getHexPeerID()).clone();
-		freePieceSet.andNot(_completedPieces);
-		freePieceSet.andNot(_inFlightPieces);
+	public BitSet provideDownloadablePieces(Peer peer) {
+		BitSet freePieceSet = providePeerPieces(peer);
+		freePieceSet.andNot(_completedPieces.toBitSet());
+		freePieceSet.andNot(_inFlightPieces.toBitSet());
 		return freePieceSet;
 	}
 	
-	public synchronized boolean isRepositoryCompleted() {
+	/**
+	 * @return A copy of the pieces that the peer has.
+	 */
+	private BitSet providePeerPieces(Peer peer) {
+		BitSet bitSet = _peerBitSetMap.get(peer.getHexPeerID());
+		if(bitSet == null) {
+			return new BitSet(_pieces.length);
+		}
+		
+		synchronized (bitSet) {
+			return (BitSet) bitSet.clone();
+		}
+	}
+	
+	public boolean isRepositoryCompleted() {
 		return _completedPieces.cardinality() == _pieces.length;
 	}
 	
@@ -461,108 +873,479 @@ public class PieceRepository {
 		}
 	}
 	
+	public boolean isDownloadingPiece(Peer peer, int pieceIndex) {
+		synchronized (peer) {
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			return requests != null && requests.get(pieceIndex) != null;
+		}
+	}
+	
 	/**
-	 * Returns a list of block to be sent for downloading.
+	 * Returns a list of block to be sent for downloading. No more blocks are
+	 * requested than the request depth of the peer allows to be in flight.
+	 * The blocks are taken from the oldest piece first, so that the pieces
+	 * are completed in the order in which they were started.
 	 * @param peer The peer which requests the blocks.
 	 * @return A list of blocks that are to be downloaded.
 	 */
 	public LinkedBlockingQueue<ByteBuffer> requestBlocks(Peer peer) {
 		synchronized (peer) {
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests == null) {
 				return null;
 			}
 			
-			return rp.provideBlocks();
+			pruneFinishedPieces(requests);
+			return requests.provideBlocks(peer.getRequestDepth());
 		}
 	}
 	
-	public void markBlockCompleted(Peer peer, int blockBegin) {
+	/**
+	 * @return The block that was in flight, or <b>null</b> if the block was
+	 *         not requested from the peer.
+	 */
+	public Block markBlockCompleted(Peer peer, int pieceIndex, int blockBegin) {
 		synchronized (peer) {
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
-				return;
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests == null) {
+				return null;
 			}
 			
-			rp.blockCompleted(blockBegin);
+			RequestedPiece rp = requests.get(pieceIndex);
+			return rp != null ? rp.blockCompleted(blockBegin) : null;
 		}
 	}
 	
-	public BlockingQueue<Block> getBlocksInFlight(Peer peer) {
+	/**
+	 * @return The blocks requested from the peer that have not arrived yet,
+	 *         or <b>null</b> if no piece is being downloaded from the peer.
+	 */
+	public List<Block> getBlocksInFlight(Peer peer) {
 		synchronized (peer) {
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
+			PeerRequests requests = _requestedPiecesMap.get(peer.getHexPeerID());
+			if(requests == null) {
 				return null;
 			}
-			return rp.getBlocksInFlight();
+			return requests.provideBlocksInFlight();
 		}
 	}
 	
+	/**
+	 * Drops the requests to the peer. The pieces that were being downloaded
+	 * from the peer can be chosen again.
+	 */
 	public void cancelAllRequestedBlocks(Peer peer) {
+		PeerRequests requests;
 		synchronized (peer) {
-			RequestedPiece rp = _requestedPiecesMap.get(peer.getHexPeerID());
-			if(rp == null) {
-				return;
+			requests = _requestedPiecesMap.remove(peer.getHexPeerID());
+		}
+		if(requests != null) {
+			releasePieces(requests);
+		}
+	}
+	
+	/**
+	 * End game starts once every block that can be downloaded has been
+	 * requested. The pieces that none of the connected peers has do not hold
+	 * it back.
+	 */
+	public boolean hasReachedEndgame() {
+		BitSet missing = _completedPieces.toBitSet();
+		missing.or(_inFlightPieces.toBitSet());
+		missing.flip(0, _pieces.length);
+		synchronized (_selectionLock) {
+			for(int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+				if(_availability.getFrequency(i) > 0) {
+					return false;
+				}
+			}
+		}
+		
+		for(SharedPiece shared : _sharedPieces.values()) {
+			if(shared.getUnrequestedBlocks() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * A block has arrived from a peer. The other peers that have the block
+	 * requested are no longer waited for.
+	 * 
+	 * @param receiver
+	 *            The peer the block arrived from.
+	 * @return The peers to which a cancel is to be sent. Only the peers that
+	 *         have this exact block requested are returned.
+	 */
+	public List<Peer> cancelDuplicateRequests(Peer receiver, int pieceIndex, int blockBegin) {
+		List<Peer> holders = new ArrayList<Peer>();
+		SharedPiece shared = _sharedPieces.get(pieceIndex);
+		if(shared == null || !shared.hasOutstandingRequests(blockBegin)) {
+			return holders;
+		}
+		
+		for(PeerRequests requests : _requestedPiecesMap.values()) {
+			Peer peer = requests.getPeer();
+			if(peer == receiver) {
+				continue;
 			}
 			
-			_requestedPiecesMap.put(peer.getHexPeerID(), null);
+			synchronized (peer) {
+				RequestedPiece rp = requests.get(pieceIndex);
+				if(rp != null && rp.blockCompleted(blockBegin) != null) {
+					holders.add(peer);
+				}
+			}
 		}
+		_cancelsSent.addAndGet(holders.size());
+		return holders;
 	}
 	
-	public synchronized boolean hasReachedEndgame() {
-		return !(_completedPieces.cardinality() < END_GAME_PERCENT * _pieces.length);
+	/**
+	 * @return The number of blocks requested in end game from a peer while
+	 *         they were already requested from another.
+	 */
+	public long getDuplicateRequests() {
+		return _duplicateRequests.get();
+	}
+	
+	/**
+	 * @return The number of bytes received for blocks that had already
+	 *         arrived from another peer.
+	 */
+	public long getDuplicateBytes() {
+		return _duplicateBytes.get();
+	}
+	
+	/**
+	 * @return The number of requests cancelled because the block arrived from
+	 *         another peer.
+	 */
+	public long getCancelsSent() {
+		return _cancelsSent.get();
 	}
 	
 	///////////////////////// REQUESTED PIECE
 	
-	private static class RequestedPiece {
-		private static final int REQUESTED_BLOCKS_QUEUE_SIZE = 5;
+	/**
+	 * The pieces being downloaded from a peer, in the order in which they were
+	 * chosen. Guarded by the peer.
+	 */
+	private static class PeerRequests {
+		private final Peer _peer;
+		private final Map<Integer, RequestedPiece> _pieces;
+		
+		public PeerRequests(Peer peer) {
+			_peer = peer;
+			_pieces = new LinkedHashMap<Integer, RequestedPiece>();
+		}
+		
+		public Peer getPeer() {
+			return _peer;
+		}
 		
+		public void add(RequestedPiece piece) {
+			_pieces.put(piece.getPiece().getIndex(), piece);
+		}
+		
+		public RequestedPiece get(int pieceIndex) {
+			return _pieces.get(pieceIndex);
+		}
+		
+		public RequestedPiece remove(int pieceIndex) {
+			return _pieces.remove(pieceIndex);
+		}
+		
+		public int size() {
+			return _pieces.size();
+		}
+		
+		public boolean isEmpty() {
+			return _pieces.isEmpty();
+		}
+		
+		public Collection<RequestedPiece> getPieces() {
+			return _pieces.values();
+		}
+		
+		public BitSet provideIndices() {
+			BitSet indices = new BitSet();
+			for(int index : _pieces.keySet()) {
+				indices.set(index);
+			}
+			return indices;
+		}
+		
+		public boolean isFullyRequested() {
+			for(RequestedPiece piece : _pieces.values()) {
+				if(!piece.isFullyRequested()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		public int getBlocksInFlightCount() {
+			int count = 0;
+			for(RequestedPiece piece : _pieces.values()) {
+				count += piece.getBlocksInFlight().size();
+			}
+			return count;
+		}
+		
+		public List<Block> provideBlocksInFlight() {
+			List<Block> blocks = new ArrayList<Block>();
+			for(RequestedPiece piece : _pieces.values()) {
+				blocks.addAll(piece.getBlocksInFlight());
+			}
+			return blocks;
+		}
+		
+		/**
+		 * @param depth
+		 *            How many blocks may be in flight at once.
+		 */
+		public LinkedBlockingQueue<ByteBuffer> provideBlocks(int depth) {
+			int budget = depth - getBlocksInFlightCount();
+			if(budget <= 0) {
+				return null;
+			}
+			
+			LinkedBlockingQueue<ByteBuffer> messages = new LinkedBlockingQueue<>();
+			for(RequestedPiece piece : _pieces.values()) {
+				if(messages.size() >= budget) {
+					break;
+				}
+				piece.provideBlocks(budget - messages.size(), messages);
+			}
+			return messages;
+		}
+	}
+	
+	/**
+	 * A piece in flight as seen by all the peers downloading it. Outside of end
+	 * game each block is requested from one of the peers only. In end game a
+	 * block that has not arrived yet is requested from up to
+	 * {@link #ENDGAME_REQUESTS_PER_BLOCK} peers.
+	 */
+	private class SharedPiece {
 		private final Piece _piece;
-		private int _lastBlock;
+		/**
+		 * The class of the peer that started the piece.
+		 */
+		private final SpeedClass _speedClass;
+		/**
+		 * The blocks that have been requested from any of the peers and have
+		 * not been given back.
+		 */
+		private final BitSet _requested;
+		/**
+		 * The number of peers that have each block requested and have not
+		 * delivered it yet.
+		 */
+		private final int[] _outstanding;
+		private final int _blocks;
+		private int _peers;
 		
-		private BlockingQueue<Block> _blocksInFlight;
-
-		public RequestedPiece(Piece piece) {
+		public SharedPiece(Piece piece, SpeedClass speedClass) {
 			_piece = piece;
-			_blocksInFlight = new LinkedBlockingQueue<Block>(REQUESTED_BLOCKS_QUEUE_SIZE);
+			_speedClass = speedClass;
+			_blocks = (int) ((piece.getSize() + Piece.BLOCK_SIZE - 1) / Piece.BLOCK_SIZE);
+			_requested = new BitSet(_blocks);
+			_outstanding = new int[_blocks];
 		}
 		
 		public Piece getPiece() {
 			return _piece;
 		}
 		
-		public LinkedBlockingQueue<ByteBuffer> provideBlocks() {
-			if(_blocksInFlight.size() == REQUESTED_BLOCKS_QUEUE_SIZE) {
-				return null;
+		public SpeedClass getSpeedClass() {
+			return _speedClass;
+		}
+		
+		public synchronized void join() {
+			_peers++;
+		}
+		
+		/**
+		 * The blocks that the peer has not delivered are given back, unless
+		 * other peers have them requested as well.
+		 * 
+		 * @return The number of peers still downloading the piece.
+		 */
+		public synchronized int leave(RequestedPiece rp) {
+			for(Block block : rp.getBlocksInFlight()) {
+				onRequestDone(block.getBegin());
+				int index = block.getBegin() / Piece.BLOCK_SIZE;
+				if(_outstanding[index] == 0 && !_piece.hasBlock(block.getBegin())) {
+					_requested.clear(index);
+				}
+			}
+			return --_peers;
+		}
+		
+		/**
+		 * @return Where the block begins in the piece, or -1 if all the blocks
+		 *         have been requested.
+		 */
+		public synchronized int claimNextBlock() {
+			int block = _requested.nextClearBit(0);
+			if(block >= _blocks) {
+				return -1;
 			}
 			
-			LinkedBlockingQueue<ByteBuffer> messages = new LinkedBlockingQueue<>();
-			while(_blocksInFlight.remainingCapacity() > 0 && _lastBlock < _piece.getSize()) {
-				int length = (int) Math.min((int)_piece.getSize() - _lastBlock,
+			_requested.set(block);
+			_outstanding[block]++;
+			return block * Piece.BLOCK_SIZE;
+		}
+		
+		/**
+		 * Claims a block that the piece is missing, even if it has been
+		 * requested from other peers.
+		 * 
+		 * @param inFlight
+		 *            The blocks already requested from the peer.
+		 * @return Where the block begins in the piece, or -1 if there is no
+		 *         block to request.
+		 */
+		public synchronized int claimEndgameBlock(Collection<Block> inFlight) {
+			int block = findEndgameBlock(inFlight);
+			if(block < 0) {
+				return -1;
+			}
+			
+			if(_outstanding[block] > 0) {
+				_duplicateRequests.incrementAndGet();
+			}
+			_requested.set(block);
+			_outstanding[block]++;
+			return block * Piece.BLOCK_SIZE;
+		}
+		
+		public synchronized boolean hasEndgameBlock(Collection<Block> inFlight) {
+			return findEndgameBlock(inFlight) >= 0;
+		}
+		
+		private int findEndgameBlock(Collection<Block> inFlight) {
+			for(int block = 0; block < _blocks; block++) {
+				int begin = block * Piece.BLOCK_SIZE;
+				if(_outstanding[block] >= ENDGAME_REQUESTS_PER_BLOCK || _piece.hasBlock(begin)) {
+					continue;
+				}
+				
+				boolean requested = false;
+				for(Block own : inFlight) {
+					if(own.getBegin() == begin) {
+						requested = true;
+						break;
+					}
+				}
+				if(!requested) {
+					return block;
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * A request of the block has been delivered or cancelled.
+		 */
+		public synchronized void onRequestDone(int blockBegin) {
+			int index = blockBegin / Piece.BLOCK_SIZE;
+			if(_outstanding[index] > 0) {
+				_outstanding[index]--;
+			}
+		}
+		
+		public synchronized boolean hasOutstandingRequests(int blockBegin) {
+			return _outstanding[blockBegin / Piece.BLOCK_SIZE] > 0;
+		}
+		
+		public synchronized int getUnrequestedBlocks() {
+			return _blocks - _requested.cardinality();
+		}
+	}
+	
+	private static class RequestedPiece {
+		private final Piece _piece;
+		private final SharedPiece _shared;
+		/**
+		 * In end game the blocks the piece is missing are requested from the
+		 * peer, even those requested from other peers.
+		 */
+		private final boolean _endgame;
+		
+		private BlockingQueue<Block> _blocksInFlight;
+
+		public RequestedPiece(SharedPiece shared, boolean endgame) {
+			_piece = shared.getPiece();
+			_shared = shared;
+			_endgame = endgame;
+			_blocksInFlight = new LinkedBlockingQueue<Block>();
+		}
+		
+		public Piece getPiece() {
+			return _piece;
+		}
+		
+		public SharedPiece getSharedPiece() {
+			return _shared;
+		}
+		
+		public boolean isEndgame() {
+			return _endgame;
+		}
+		
+		public boolean isFullyRequested() {
+			return _endgame ? !_shared.hasEndgameBlock(_blocksInFlight) : _shared.getUnrequestedBlocks() == 0;
+		}
+		
+		/**
+		 * Requests the next blocks of the piece.
+		 * 
+		 * @param count
+		 *            The most blocks to request.
+		 * @param messages
+		 *            Where the request messages are added.
+		 */
+		public void provideBlocks(int count, LinkedBlockingQueue<ByteBuffer> messages) {
+			int requested = 0;
+			int begin;
+			while(requested < count && (begin = _endgame ? _shared.claimEndgameBlock(_blocksInFlight)
+					: _shared.claimNextBlock()) >= 0) {
+				int length = (int) Math.min(_piece.getSize() - begin,
 						RequestMessage.DEFAULT_REQUEST_SIZE);
-				ByteBuffer msg = RequestMessage.make(_piece.getIndex(), _lastBlock, length);
+				ByteBuffer msg = RequestMessage.make(_piece.getIndex(), begin, length);
 				messages.add(msg);
-				_blocksInFlight.add(new Block(_piece.getIndex(), _lastBlock, length));
-				_lastBlock += length;
+				_blocksInFlight.add(new Block(_piece.getIndex(), begin, length));
+				requested++;
 			}
-			_logger.debug("Sending {} blocks ({} last) with {} remaining block for piece {}({})", messages.size(), _lastBlock, _blocksInFlight.size(), _piece.getIndex(), _piece.getSize());
-			return messages;
+			_logger.debug("Sending {} blocks with {} remaining block for piece {}({})", requested, _blocksInFlight.size(), _piece.getIndex(), _piece.getSize());
 		}
 		
-		public void blockCompleted(int blockBegin) {
-			if(_blocksInFlight == null) {
-				return;
-			}
-			
+		/**
+		 * The block has been delivered by the peer or the request has been
+		 * cancelled.
+		 * 
+		 * @return The block, or <b>null</b> if it was not requested from the
+		 *         peer.
+		 */
+		public Block blockCompleted(int blockBegin) {
+			Block completed = null;
 			for(Block block : _blocksInFlight) {
 				if(block.getPieceIndex() == _piece.getIndex() && block.getBegin() == blockBegin) {
 					_blocksInFlight.remove(block);
+					completed = block;
 					break;
 				}
 			}
+			if(completed != null) {
+				_shared.onRequestDone(blockBegin);
+			}
 			
 			_logger.debug("Completed block # {} - blocks in flight for piece {} are {}", blockBegin, _piece.getIndex(), _blocksInFlight.size());
+			return completed;
 		}
 		
 		public BlockingQueue<Block> getBlocksInFlight() {
@@ -574,11 +1357,20 @@ public class PieceRepository {
 		private final int _pieceIndex;
 		private final int _begin;
 		private final int _length;
+		private final long _requestedAt;
 		
 		public Block(int index, int begin, int length) {
 			_pieceIndex = index;
 			_begin = begin;
 			_length = length;
+			_requestedAt = System.currentTimeMillis();
+		}
+		
+		/**
+		 * @return When the block was requested, in milliseconds.
+		 */
+		public long getRequestedAt() {
+			return _requestedAt;
 		}
 
 		public int getLength() {
@@ -611,6 +1403,9 @@ public class PieceRepository {
 	 * RarestFirstSelector does the job of selecting a a random piece among the first rarest
 	 * pieces. The number of rare pieces is defined in <b>MAX_SET_SIZE</b>.
 	 * </p>
+	 * <p>
+	 * The selector must be used while holding the selection lock of the repository.
+	 * </p>
 	 * @author Alex
 	 *
 	 */
@@ -618,35 +1413,93 @@ public class PieceRepository {
 		
 		public static final int MAX_SET_SIZE = 40;
 		private Random _generator;
+		/**
+		 * Receives the rarest pieces. Only used under the selection lock.
+		 */
+		private final int[] _rarest;
 		
 		public RarestFirstSelector() {
 			_generator = new Random(System.currentTimeMillis());
+			_rarest = new int[MAX_SET_SIZE];
 		}
 		
-		public Piece select(Peer peer) {
+		/**
+		 * @param peer The peer for which a piece is selected.
+		 * @param requested The pieces already being downloaded from the peer.
+		 * @param speedClass The class of the peer.
+		 */
+		public Piece select(Peer peer, BitSet requested, SpeedClass speedClass) {
 			// We can determine if a peer has a free piece if that piece has not
 			// been downloaded yet or is not currently being downloaded.
 			// The following code clears all the bits that are completed and 
 			// currently in flight, leaving those available for download.
-			BitSet freePieceSet = (BitSet) _peerBitSetMap.get(peer.getHexPeerID()).clone();
-			freePieceSet.andNot(_completedPieces);
-			freePieceSet.andNot(_inFlightPieces);
+			BitSet peerPieces = providePeerPieces(peer);
+			BitSet completedPieces = _completedPieces.toBitSet();
+			BitSet freePieceSet = (BitSet) peerPieces.clone();
+			freePieceSet.andNot(completedPieces);
+			freePieceSet.andNot(_inFlightPieces.toBitSet());
 			// If all the pieces are either completed or in flight the it is likely
 			// that end game is reached. For this reason the in-flight pieces are not 
 			// included in calculating the free piece set and the same pieces can be
 			// requested by different peers.
 			if (freePieceSet.cardinality() == 0) {
-				freePieceSet = (BitSet) _peerBitSetMap.get(peer.getHexPeerID()).clone();
-				freePieceSet.andNot(_completedPieces);
+				freePieceSet = peerPieces;
+				freePieceSet.andNot(completedPieces);
+				freePieceSet.andNot(_queuedPieces.toBitSet());
+				freePieceSet.andNot(requested);
+				removeSaturatedPieces(freePieceSet);
+				// Every peer takes part in end game, slow ones included - when
+				// all the peers are slow or not measured yet, they are the only
+				// ones that can duplicate the last blocks. The faster peers
+				// still take over from the slower ones first.
 				if (!hasFreePieces(peer, freePieceSet)) {
 					_logger.debug("No piece found for peer {}", peer.getHostAddress());
 					return null;
 				}
+				preferSlowerPieces(freePieceSet, speedClass);
 			}
 
 			return selectRarest(freePieceSet);
 		}
 		
+		/**
+		 * Removes the pieces whose missing blocks have all been requested from
+		 * as many peers as allowed.
+		 */
+		private void removeSaturatedPieces(BitSet freePieceSet) {
+			List<Block> none = new ArrayList<Block>();
+			for (SharedPiece shared : _sharedPieces.values()) {
+				if (!shared.hasEndgameBlock(none)) {
+					freePieceSet.clear(shared.getPiece().getIndex());
+				}
+			}
+		}
+		
+		/**
+		 * Narrows the pieces down to those started by peers slower than the
+		 * given class, if there are any, so that in end game the faster peers
+		 * take over from the slowest ones first.
+		 */
+		private void preferSlowerPieces(BitSet freePieceSet, SpeedClass speedClass) {
+			for (SpeedClass slower : SpeedClass.values()) {
+				if (!slower.isSlowerThan(speedClass)) {
+					break;
+				}
+				
+				BitSet pieces = new BitSet();
+				for (SharedPiece shared : _sharedPieces.values()) {
+					int index = shared.getPiece().getIndex();
+					if (slower.equals(shared.getSpeedClass()) && freePieceSet.get(index)) {
+						pieces.set(index);
+					}
+				}
+				if (!pieces.isEmpty()) {
+					freePieceSet.and(pieces);
+					return;
+				}
+			}
+		}
+		
 		/**
 		 * Checks if there are any pieces left to be downloaded. If not - then 
 		 * it should be checked if end game mode has been reached. If so - then
@@ -675,30 +1528,18 @@ public class PieceRepository {
 		}
 		
 		/**
-		 * The pieces are sorted by rarity(frequency). Among the first MAX_SET_SIZE a rondom
-		 * piece is selected.
+		 * The pieces are grouped by rarity(frequency) in the availability index.
+		 * Among the first MAX_SET_SIZE a rondom piece is selected.
 		 * @param freePieceSet
 		 * @return A randomly selected rare piece.
 		 */
 		private Piece selectRarest(BitSet freePieceSet) {
-			ArrayList<Piece> rarestFirstSubList = new ArrayList<Piece>(MAX_SET_SIZE);
-			synchronized (_rarestSet) {
-				for (Piece piece : _rarestSet) {
-					if (freePieceSet.get(piece.getIndex())) {
-						rarestFirstSubList.add(piece);
-						if (rarestFirstSubList.size() >= MAX_SET_SIZE) {
-							break;
-						}
-					}
-				}
-			}
-			
-			if (rarestFirstSubList.size() == 0) {
+			int found = _availability.provideRarest(freePieceSet, _rarest);
+			if (found == 0) {
 				return null;
 			}
 
-			return rarestFirstSubList.get(_generator.nextInt(
-					Math.min(rarestFirstSubList.size(), MAX_SET_SIZE)));
+			return _pieces[_rarest[_generator.nextInt(found)]];
 		}
 	}
 }
@@ -4,7 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -17,7 +22,9 @@ import com.jtorrent.metainfo.FileDictionary;
  * from/write to.
  * <p>
  * The class is <b>thread-safe</b> as it uses FileChannel for thread-safe
- * read/write operations.
+ * read/write operations. The reads, the writes and the transfers share a read
+ * lock, so they still run in parallel. Completing and closing the store take
+ * the write lock, so the file is never swapped under a running operation.
  * </p>
  * 
  * @author Alex
@@ -33,8 +40,9 @@ public class SingleFileStore implements FileStore {
 	private final File _file;
 	private final long _fileSize;
 
+	private final ReadWriteLock _fileLock = new ReentrantReadWriteLock();
 	private RandomAccessFile _randomAccessFile;
-	private File _workingFile;
+	private volatile File _workingFile;
 
 	public SingleFileStore(File file, long size) throws IOException {
 		_file = file;
@@ -52,7 +60,12 @@ public class SingleFileStore implements FileStore {
 
 		// Open a random access file
 		_randomAccessFile = new RandomAccessFile(_workingFile, "rw");
-		_randomAccessFile.setLength(_fileSize);
+		// Truncating the file touches its modification time even if the
+		// length stays the same, which would make the fast resume state of
+		// the file useless.
+		if (_randomAccessFile.length() != _fileSize) {
+			_randomAccessFile.setLength(_fileSize);
+		}
 	}
 
 	@Override
@@ -63,7 +76,13 @@ public class SingleFileStore implements FileStore {
 		}
 
 		// Read the data from the file and save into the data buffer.
-		int bytesRead = _randomAccessFile.getChannel().read(data, begin);
+		int bytesRead;
+		_fileLock.readLock().lock();
+		try {
+			bytesRead = _randomAccessFile.getChannel().read(data, begin);
+		} finally {
+			_fileLock.readLock().unlock();
+		}
 		if (bytesRead < dataSize) {
 			throw new IOException("Error reading from file: expected " + dataSize + ", got: " + bytesRead);
 		}
@@ -79,39 +98,103 @@ public class SingleFileStore implements FileStore {
 			throw new IllegalArgumentException("The block of data form the offset exceeds the file size");
 		}
 
-		return _randomAccessFile.getChannel().write(data, begin);
+		_fileLock.readLock().lock();
+		try {
+			return _randomAccessFile.getChannel().write(data, begin);
+		} finally {
+			_fileLock.readLock().unlock();
+		}
 	}
 
 	@Override
-	public synchronized void close() throws IOException {
-		// Make sure that the all the data is written to permanent storage.
-		if (_randomAccessFile.getChannel().isOpen()) {
-			_randomAccessFile.getChannel().force(true);
+	public synchronized long write(ByteBuffer[] data, long begin) throws IOException {
+		long dataSize = 0;
+		for (ByteBuffer block : data) {
+			dataSize += block.remaining();
+		}
+
+		if (begin + dataSize > _fileSize) {
+			throw new IllegalArgumentException("The block of data form the offset exceeds the file size");
 		}
 
-		_randomAccessFile.close();
+		// There is no positional gathering write, so the position of the
+		// channel is moved instead. The positional reads and writes are not
+		// affected by it.
+		_fileLock.readLock().lock();
+		try {
+			FileChannel channel = _randomAccessFile.getChannel();
+			channel.position(begin);
+			long written = 0;
+			while (written < dataSize) {
+				long bytes = channel.write(data);
+				if (bytes <= 0) {
+					break;
+				}
+				written += bytes;
+			}
+
+			return written;
+		} finally {
+			_fileLock.readLock().unlock();
+		}
 	}
 
 	@Override
-	public synchronized void complete() throws IOException {
-		// Make sure that the all the data is written to permanent storage.
-		if (_randomAccessFile.getChannel().isOpen()) {
-			_randomAccessFile.getChannel().force(true);
+	public long transferTo(long begin, long length, WritableByteChannel target) throws IOException {
+		if (begin + length > _fileSize) {
+			throw new IllegalArgumentException("The block of data form the offset exceeds the file size");
 		}
 
-		// No need to do any moving since we are working on the end file itself.
-		if (isComplete())
-			return;
+		_fileLock.readLock().lock();
+		try {
+			return _randomAccessFile.getChannel().transferTo(begin, length, target);
+		} finally {
+			_fileLock.readLock().unlock();
+		}
+	}
 
-		// Move the file to it's final destination.
-		_randomAccessFile.close();
-		FileUtils.deleteQuietly(_file);
-		FileUtils.moveFile(_workingFile, _file);
+	@Override
+	public synchronized void close() throws IOException {
+		_fileLock.writeLock().lock();
+		try {
+			// Make sure that the all the data is written to permanent storage.
+			if (_randomAccessFile.getChannel().isOpen()) {
+				_randomAccessFile.getChannel().force(true);
+			}
+
+			_randomAccessFile.close();
+		} finally {
+			_fileLock.writeLock().unlock();
+		}
+	}
 
-		// Switch to working with the fully downloaded file.
-		_randomAccessFile = new RandomAccessFile(_file, "rw");
-		_randomAccessFile.setLength(_fileSize);
-		_workingFile = _file;
+	@Override
+	public synchronized void complete() throws IOException {
+		// The uploads keep reading from the file while the torrent completes,
+		// so they are held off until the file is swapped.
+		_fileLock.writeLock().lock();
+		try {
+			// Make sure that the all the data is written to permanent storage.
+			if (_randomAccessFile.getChannel().isOpen()) {
+				_randomAccessFile.getChannel().force(true);
+			}
+
+			// No need to do any moving since we are working on the end file itself.
+			if (isComplete())
+				return;
+
+			// Move the file to it's final destination.
+			_randomAccessFile.close();
+			FileUtils.deleteQuietly(_file);
+			FileUtils.moveFile(_workingFile, _file);
+
+			// Switch to working with the fully downloaded file.
+			_randomAccessFile = new RandomAccessFile(_file, "rw");
+			_randomAccessFile.setLength(_fileSize);
+			_workingFile = _file;
+		} finally {
+			_fileLock.writeLock().unlock();
+		}
 
 		// Remove the partial file.
 		FileUtils.deleteQuietly(providePartFile());
@@ -134,6 +217,22 @@ public class SingleFileStore implements FileStore {
 		return _fileSize;
 	}
 
+	/**
+	 * @return The lock that keeps the file from being swapped or closed while
+	 *         it is read from or written to. The reads and writes take its read
+	 *         lock, completing and closing the store - its write lock.
+	 */
+	protected ReadWriteLock getFileLock() {
+		return _fileLock;
+	}
+
+	/**
+	 * @return The channel of the file the store is currently working with.
+	 */
+	protected FileChannel getChannel() {
+		return _randomAccessFile.getChannel();
+	}
+
 	public File getFile() {
 		return _file;
 	}
@@ -143,6 +242,11 @@ public class SingleFileStore implements FileStore {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public List<File> getWorkingFiles() {
+		return Collections.singletonList(_workingFile);
+	}
+
 	@Override
 	public String getParentName() {
 		return _file.getParentFile().getAbsolutePath();
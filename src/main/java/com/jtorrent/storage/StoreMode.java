@@ -0,0 +1,24 @@
+package com.jtorrent.storage;
+
+/**
+ * Determines how a torrent session accesses the files on disk.
+ * 
+ * @author Alex
+ *
+ */
+public enum StoreMode {
+	/**
+	 * Every block is read and written with a positional read/write on the
+	 * file channel. See {@link SingleFileStore}.
+	 */
+	RANDOM_ACCESS,
+	/**
+	 * The files are accessed through memory mapped windows. See
+	 * {@link MappedFileStore}. The size and number of the windows are given
+	 * to the {@link MultiFileStore}, and the number holds for all the files of
+	 * the store together.
+	 */
+	MEMORY_MAPPED;
+
+	public static final StoreMode DEFAULT = RANDOM_ACCESS;
+}
@@ -0,0 +1,388 @@
+package com.jtorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jtorrent.metainfo.MetaInfo;
+
+/**
+ * <p>
+ * TorrentChecker finds out which pieces of a torrent are already on disk.
+ * </p>
+ * <p>
+ * The checking is a pipeline of two stages. A single reader goes through the
+ * file store sequentially and reads it in big chunks of whole pieces - the
+ * read-ahead - so that the disk sees long sequential reads instead of a random
+ * read per piece. Every chunk is then handed over to a fork/join pool which
+ * hashes its pieces on all the cores. The pool is shared by all the checkers,
+ * so checking several torrents at once does not start a set of threads per
+ * torrent. The hashing does not take any lock on
+ * the {@link PieceRepository} - only the pieces that turn out to be valid are
+ * marked as complete.
+ * </p>
+ * <p>
+ * The number of chunks that are read but not yet hashed is bounded. When all
+ * the chunk buffers are taken, the reader waits for the hashing to catch up, so
+ * the memory used by the checker never exceeds
+ * <b>readAhead * (parallelism + 1)</b> bytes.
+ * </p>
+ * <p>
+ * A check can be cancelled at any time from another thread with
+ * {@link #cancel()}. The cancel holds until {@link #reset()} is called, so a
+ * check that starts after it has been cancelled returns at once. A check can
+ * also be limited to a subset of the pieces,
+ * e.g. the ones that lie in files that have been modified since the state of
+ * the torrent was last saved.
+ * </p>
+ *
+ * @author Alex
+ *
+ */
+public class TorrentChecker {
+
+	private static final Logger _logger = LoggerFactory.getLogger(TorrentChecker.class);
+
+	public static final int DEFAULT_READ_AHEAD = 4 * 1024 * 1024;
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Hashes the chunks of all the checkers.
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(DEFAULT_PARALLELISM);
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(MetaInfo.HASHING_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Hashing algorithm not supported: " + MetaInfo.HASHING_ALGORITHM);
+			}
+		}
+	};
+
+	private final PieceRepository _repository;
+	private final FileStore _store;
+	private final int _readAhead;
+	private final int _parallelism;
+
+	private final AtomicInteger _checkedPieces;
+	private final AtomicInteger _validPieces;
+	private final AtomicLong _checkedBytes;
+	private volatile int _totalPieces;
+	private volatile long _startTime;
+	private volatile long _endTime;
+	private volatile boolean _cancelled;
+
+	public TorrentChecker(PieceRepository repository) {
+		this(repository, DEFAULT_READ_AHEAD, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param repository
+	 *            The repository whose pieces are to be checked.
+	 * @param readAhead
+	 *            How many bytes are read from the file store at once. The
+	 *            chunks always contain at least one whole piece.
+	 * @param parallelism
+	 *            How many chunks may be hashed at the same time. The threads
+	 *            that hash them are shared by all the checkers.
+	 */
+	public TorrentChecker(PieceRepository repository, int readAhead, int parallelism) {
+		if (readAhead <= 0 || parallelism <= 0) {
+			throw new IllegalArgumentException("Invalid checker configuration: " + readAhead + "x" + parallelism);
+		}
+
+		_repository = repository;
+		_store = repository.getFileStore();
+		_readAhead = readAhead;
+		_parallelism = parallelism;
+
+		_checkedPieces = new AtomicInteger();
+		_validPieces = new AtomicInteger();
+		_checkedBytes = new AtomicLong();
+		_totalPieces = repository.size();
+	}
+
+	/**
+	 * Checks all the pieces of the repository and marks the ones that are on
+	 * disk as complete. The call blocks until every piece has been checked or
+	 * the check has been cancelled.
+	 *
+	 * @return <b>true</b> - if all the pieces have been checked; <b>false</b> -
+	 *         if the check was cancelled.
+	 */
+	public boolean check() {
+		BitSet all = new BitSet(_repository.size());
+		all.set(0, _repository.size());
+		return check(all);
+	}
+
+	/**
+	 * Checks only the given pieces of the repository and marks the ones that
+	 * are on disk as complete. The rest of the pieces are left as they are.
+	 *
+	 * @param toCheck
+	 *            The indices of the pieces that are to be checked.
+	 * @return <b>true</b> - if all the pieces have been checked; <b>false</b> -
+	 *         if the check was cancelled.
+	 */
+	public boolean check(BitSet toCheck) {
+		Piece[] pieces = _repository.toPieceArray();
+
+		// The cancel flag is not reset here, so a cancel that came before the
+		// check has started is not lost.
+		_checkedPieces.set(0);
+		_validPieces.set(0);
+		_checkedBytes.set(0);
+		_totalPieces = toCheck.cardinality();
+		_startTime = System.currentTimeMillis();
+		_endTime = 0;
+
+		if (_cancelled) {
+			_endTime = _startTime;
+			return false;
+		}
+		if (_totalPieces == 0) {
+			_endTime = _startTime;
+			return true;
+		}
+
+		long pieceLength = pieces[0].getSize();
+		int piecesPerChunk = (int) Math.max(1, _readAhead / pieceLength);
+		int chunkSize = (int) (piecesPerChunk * pieceLength);
+		int maxBuffers = Math.min(_parallelism + 1, (_totalPieces + piecesPerChunk - 1) / piecesPerChunk);
+
+		BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+		int allocatedBuffers = 0;
+
+		try {
+			int first = toCheck.nextSetBit(0);
+			while (first >= 0 && first < pieces.length && !_cancelled) {
+				// A chunk is a run of consecutive pieces that are to be
+				// checked, so that the pieces in between are not read.
+				int last = Math.min(first + piecesPerChunk, pieces.length);
+				int gap = toCheck.nextClearBit(first);
+				if (gap < last) {
+					last = gap;
+				}
+
+				ByteBuffer buffer = freeBuffers.poll();
+				if (buffer == null && allocatedBuffers < maxBuffers) {
+					// The chunks are read into direct memory, so that the data
+					// does not get copied on its way from the file.
+					buffer = ByteBuffer.allocateDirect(chunkSize);
+					allocatedBuffers++;
+				} else if (buffer == null) {
+					// Wait for the hashing to catch up with the reading.
+					buffer = freeBuffers.take();
+				}
+
+				if (readChunk(pieces, first, last, buffer)) {
+					POOL.execute(new ChunkTask(pieces, first, last, buffer, pieces[first].getBegin(), freeBuffers, true));
+				} else {
+					freeBuffers.add(buffer);
+				}
+				first = toCheck.nextSetBit(last);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			_cancelled = true;
+		} finally {
+			// Every chunk gives its buffer back once it has been hashed, so the
+			// check is over when all the buffers are back.
+			try {
+				for (int returned = 0; returned < allocatedBuffers; returned++) {
+					freeBuffers.take();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				_cancelled = true;
+			}
+			_endTime = System.currentTimeMillis();
+		}
+
+		_logger.debug("Checked {}/{} pieces at {} bytes/s", _checkedPieces.get(), _totalPieces, getThroughput());
+		return !_cancelled;
+	}
+
+	/**
+	 * Reads the data of the pieces <b>[first, last)</b> in the buffer.
+	 *
+	 * @return <b>true</b> if the data has been read; <b>false</b> - the pieces
+	 *         cannot be on disk.
+	 */
+	private boolean readChunk(Piece[] pieces, int first, int last, ByteBuffer buffer) {
+		long begin = pieces[first].getBegin();
+		long length = pieces[last - 1].getBegin() + pieces[last - 1].getSize() - begin;
+
+		buffer.clear();
+		buffer.limit((int) length);
+		try {
+			_store.read(buffer, begin);
+			return true;
+		} catch (IOException | IllegalArgumentException e) {
+			_logger.warn("Could not read pieces {} to {} from disk: {}", first, last - 1, e.getMessage());
+			for (int index = first; index < last; index++) {
+				onPieceChecked(pieces[index], false);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Hashes a single piece of a chunk and marks it as complete if it is valid.
+	 */
+	private void checkPiece(Piece piece, ByteBuffer chunk, long chunkBegin) {
+		if (_cancelled) {
+			return;
+		}
+
+		ByteBuffer data = chunk.duplicate();
+		int offset = (int) (piece.getBegin() - chunkBegin);
+		data.limit(offset + (int) piece.getSize());
+		data.position(offset);
+
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update(data);
+		boolean valid = piece.isHashOf(digest.digest());
+
+		if (valid) {
+			_repository.markPieceComplete(piece.getIndex());
+			_logger.debug("have piece {}", piece.getIndex());
+		}
+		onPieceChecked(piece, valid);
+	}
+
+	private void onPieceChecked(Piece piece, boolean valid) {
+		if (valid) {
+			_validPieces.incrementAndGet();
+		}
+		_checkedBytes.addAndGet(piece.getSize());
+
+		int totalPieces = _totalPieces;
+		int checked = _checkedPieces.incrementAndGet();
+		if (checked * 10L / totalPieces > (checked - 1) * 10L / totalPieces) {
+			_logger.info("checked {}%", checked * 100L / totalPieces);
+		}
+	}
+
+	/**
+	 * Cancels the check that is currently running, or the next one if none is
+	 * running. The pieces that have already been read are not hashed.
+	 */
+	public void cancel() {
+		_cancelled = true;
+	}
+
+	/**
+	 * Lets the next check run after a cancel. It is to be called when the
+	 * check is scheduled, not when it starts, so that a cancel in between
+	 * still stops it.
+	 */
+	public void reset() {
+		_cancelled = false;
+	}
+
+	public boolean isCancelled() {
+		return _cancelled;
+	}
+
+	/**
+	 * @return The part of the pieces that have been checked, between 0 and 1.
+	 */
+	public double getProgress() {
+		int total = _totalPieces;
+		if (total == 0) {
+			return 1;
+		}
+		return ((double) _checkedPieces.get()) / total;
+	}
+
+	public int getCheckedPieces() {
+		return _checkedPieces.get();
+	}
+
+	public int getValidPieces() {
+		return _validPieces.get();
+	}
+
+	/**
+	 * @return The number of bytes checked per second during the last (or the
+	 *         current) check.
+	 */
+	public long getThroughput() {
+		if (_startTime == 0) {
+			return 0;
+		}
+
+		long end = _endTime != 0 ? _endTime : System.currentTimeMillis();
+		long elapsed = Math.max(1, end - _startTime);
+		return _checkedBytes.get() * 1000 / elapsed;
+	}
+
+	/**
+	 * Hashes the pieces of a chunk. Chunks with many pieces are split so that
+	 * all the threads of the pool can work on a single chunk. The task that
+	 * received the chunk from the reader gives the buffer back when all the
+	 * pieces have been hashed.
+	 *
+	 * @author Alex
+	 *
+	 */
+	@SuppressWarnings("serial")
+	private class ChunkTask extends RecursiveAction {
+		private final Piece[] _pieces;
+		private final int _first;
+		private final int _last;
+		private final ByteBuffer _chunk;
+		/**
+		 * Where the data in the chunk begins in the file store.
+		 */
+		private final long _chunkBegin;
+		private final BlockingQueue<ByteBuffer> _freeBuffers;
+		private final boolean _ownsChunk;
+
+		public ChunkTask(Piece[] pieces, int first, int last, ByteBuffer chunk, long chunkBegin,
+				BlockingQueue<ByteBuffer> freeBuffers, boolean ownsChunk) {
+			_pieces = pieces;
+			_first = first;
+			_last = last;
+			_chunk = chunk;
+			_chunkBegin = chunkBegin;
+			_freeBuffers = freeBuffers;
+			_ownsChunk = ownsChunk;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if (_last - _first > 1) {
+					int middle = (_first + _last) >>> 1;
+					invokeAll(new ChunkTask(_pieces, _first, middle, _chunk, _chunkBegin, _freeBuffers, false),
+							new ChunkTask(_pieces, middle, _last, _chunk, _chunkBegin, _freeBuffers, false));
+				} else {
+					// The chunk begins where the first piece read with it begins.
+					checkPiece(_pieces[_first], _chunk, _chunkBegin);
+				}
+			} finally {
+				if (_ownsChunk) {
+					_freeBuffers.add(_chunk);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.jtorrent.storage;
+
+/**
+ * Determines how a downloaded piece is verified against its hash.
+ * 
+ * @author Alex
+ *
+ */
+public enum VerificationMode {
+	/**
+	 * The piece is written to disk, read back and then hashed.
+	 */
+	ON_DISK,
+	/**
+	 * The piece is hashed incrementally as its blocks arrive and is verified
+	 * before it is written to disk.
+	 */
+	STREAMING;
+
+	public static final VerificationMode DEFAULT = STREAMING;
+}
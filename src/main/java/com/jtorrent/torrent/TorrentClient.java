@@ -15,7 +15,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jtorrent.messaging.announce.ConnectionService;
+import com.jtorrent.messaging.announce.ScrapeService;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
+import com.jtorrent.messaging.http.HTTPTrackerConnector;
+import com.jtorrent.peer.MessageReactor;
 import com.jtorrent.peer.Peer;
+import com.jtorrent.storage.StoreMode;
 import com.jtorrent.torrent.TorrentSession.Status;
 import com.jtorrent.torrent.restore.RestoreManager;
 
@@ -26,8 +31,9 @@ import com.jtorrent.torrent.restore.RestoreManager;
  * </p>
  * <p>
  * It also queues torrents when the maximum number of downloading torrents is exceeded.
- * When a torrent finishes downloading, the first torrent session from the queue is retrieved
- * and promptly started.
+ * When a torrent finishes downloading, the queued torrent session with the most seeders
+ * is retrieved and promptly started. The number of seeders is known from the scrapes of
+ * the {@link ScrapeService}.
  * </p>
  */
 public class TorrentClient implements TorrentSessionEventListener {
@@ -39,6 +45,7 @@ public class TorrentClient implements TorrentSessionEventListener {
 	public static final int MAX_TORRENTS = 30;
 	
 	private ConnectionService _connectionService;
+	private ScrapeService _scrapeService;
 	private ExecutorService _sessionExecutor;
 	
 	private List<SessionTask> _torrentQueue;
@@ -52,9 +59,19 @@ public class TorrentClient implements TorrentSessionEventListener {
 	private static final Logger _logger = LoggerFactory.getLogger(TorrentClient.class);
 
 	public TorrentClient() throws IllegalStateException {
+		this(MessageReactor.DEFAULT_LOOP_THREADS);
+	}
+	
+	/**
+	 * @param messageLoopThreads
+	 *            The number of selector threads that handle the peer
+	 *            connections of all torrent sessions.
+	 */
+	public TorrentClient(int messageLoopThreads) throws IllegalStateException {
 		_sessionExecutor = Executors.newCachedThreadPool();
 		
-		_connectionService = new ConnectionService();		
+		_connectionService = new ConnectionService(messageLoopThreads);
+		_scrapeService = new ScrapeService();
 		String id = BITTORRENT_ID_PREFIX + UUID.randomUUID().toString().split("-")[4];
 		try {
 			_connectionService.setClientPeerID(new String(id.getBytes(TorrentSession.BYTE_ENCODING)));
@@ -81,6 +98,18 @@ public class TorrentClient implements TorrentSessionEventListener {
 		return _connectionService;
 	}
 	
+	public ScrapeService getScrapeService() {
+		return _scrapeService;
+	}
+	
+	/**
+	 * @return The number of seeders and leechers of the torrent reported by its
+	 *         trackers, or <b>null</b> if they have not been scraped yet.
+	 */
+	public ScrapeStatistics getScrapeStatistics(TorrentSession session) {
+		return _scrapeService.getStatistics(session.getMetaInfo().getInfoHash());
+	}
+	
 	public Peer getClientPeer() {
 		return _clientPeer;
 	}
@@ -91,9 +120,11 @@ public class TorrentClient implements TorrentSessionEventListener {
 				_connectionService.getSocketAddress().getAddress().getHostAddress(),
 				_connectionService.getSocketAddress().getPort(),
 				_connectionService.getClientPeerID());
+		_scrapeService.start();
 	}
 	
 	public void stop() {
+		_scrapeService.stop();
 		_connectionService.stop();
 		try {
 			_connectionService.cancel();
@@ -102,15 +133,25 @@ public class TorrentClient implements TorrentSessionEventListener {
 		}
 		for(TorrentSession session : _activeSessions) {
 			if(!session.isStopped() && !session.isQueuing()) {
+				saveResumeState(session);
 				session.stop(true);
 			}
 		}
 		_sessionExecutor.shutdownNow();
+		HTTPTrackerConnector.instance().closeIdle();
 	}	
 
 	public synchronized TorrentSession startNewSession(String fileName, String destination)
 			throws Exception {
-		NewSessionTask task = new NewSessionTask(fileName, destination);
+		return startNewSession(fileName, destination, StoreMode.DEFAULT);
+	}
+	
+	/**
+	 * Starts a new torrent session whose files are accessed in the given mode.
+	 */
+	public synchronized TorrentSession startNewSession(String fileName, String destination, StoreMode storeMode)
+			throws Exception {
+		NewSessionTask task = new NewSessionTask(fileName, destination, storeMode);
 		startTask(task);
 		return task.getTorrentSession();
 	}
@@ -137,16 +178,51 @@ public class TorrentClient implements TorrentSessionEventListener {
 	
 	private synchronized void addNewActiveSession(TorrentSession session) {
 		_activeSessions.add(session);
+		_scrapeService.register(session);
+	}
+	
+	@Override
+	public void onSessionCompleted(TorrentSession session) {
+		// The files have been moved, so the saved state no longer matches.
+		saveResumeState(session);
+	}
+	
+	private void saveResumeState(TorrentSession session) {
+		try {
+			_restoreManager.saveResumeState(session);
+		} catch (IOException e) {
+			_logger.warn("Unable to save the resume state of {}: {}", session.getTorrentFileName(), e.getMessage());
+		}
 	}
 	
 	@Override
 	public synchronized void onSessionClosed() {
 		_downloading--;
 		if(!_torrentQueue.isEmpty()) {
-			SessionTask waiting = ((LinkedList<SessionTask>)_torrentQueue).poll();
+			SessionTask waiting = pollBestQueued();
 			_sessionExecutor.execute(waiting);
 		}
 	}
+	
+	/**
+	 * Removes the queued task whose torrent has the most seeders. Torrents that
+	 * have not been scraped yet count as having none, and ties keep the order
+	 * of the queue.
+	 */
+	private SessionTask pollBestQueued() {
+		SessionTask best = null;
+		int bestSeeders = -1;
+		for(SessionTask task : _torrentQueue) {
+			ScrapeStatistics statistics = getScrapeStatistics(task.getTorrentSession());
+			int seeders = statistics != null ? statistics.getSeeders() : 0;
+			if(seeders > bestSeeders) {
+				best = task;
+				bestSeeders = seeders;
+			}
+		}
+		_torrentQueue.remove(best);
+		return best;
+	}
 
 	public synchronized void resumeTorrentSession(TorrentSession session) throws Exception {
 		if(session.isQueuing() || session.isDownloading() || session.isSeeding()) {
@@ -155,6 +231,9 @@ public class TorrentClient implements TorrentSessionEventListener {
 		
 		try {
 			_restoreManager.setTorrentSessionStopped(session, false);
+			// Only the files that have been modified while the session was
+			// stopped need to be checked again.
+			_restoreManager.applyResumeState(session);
 		} catch (IOException e) {
 			_logger.warn("Unable to update torrent session in Restore Manager: {}", e.getMessage());
 		}
@@ -169,6 +248,7 @@ public class TorrentClient implements TorrentSessionEventListener {
 		
 		try {
 			_restoreManager.setTorrentSessionStopped(session, true);
+			_restoreManager.saveResumeState(session);
 		} catch (IOException e) {
 			_logger.warn("Unable to update torrent session in Restore Manager: {}", e.getMessage());
 		}
@@ -183,6 +263,7 @@ public class TorrentClient implements TorrentSessionEventListener {
 			_logger.warn("Could not remove resotre point for {}: e", session.getTorrentFileName(),
 					e.getMessage());
 		}
+		_scrapeService.unregister(session);
 		
 		if(session.isQueuing()) {
 			for(SessionTask task : _torrentQueue) {
@@ -198,9 +279,14 @@ public class TorrentClient implements TorrentSessionEventListener {
 	}
 	
 	public void shutdown() {
+		_scrapeService.stop();
 		for(TorrentSession session : _activeSessions) {
+			saveResumeState(session);
 			session.stop(true);
 		}
+		// The stop announces have been sent, so the connections to the
+		// trackers are no longer needed.
+		HTTPTrackerConnector.instance().closeIdle();
 	}
 
 	@SuppressWarnings("serial")
@@ -221,9 +307,9 @@ public class TorrentClient implements TorrentSessionEventListener {
 			_torrentSession = torrentSession;
 		}
 		
-		public SessionTask(String fileName, String destination) 
+		public SessionTask(String fileName, String destination, StoreMode storeMode) 
 				throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException, URISyntaxException {
-			_torrentSession = new TorrentSession(fileName, destination, _clientPeer, _connectionService);
+			_torrentSession = new TorrentSession(fileName, destination, _clientPeer, _connectionService, storeMode);
 		}
 		
 		@Override
@@ -256,11 +342,13 @@ public class TorrentClient implements TorrentSessionEventListener {
 	private class NewSessionTask extends SessionTask {		
 		public NewSessionTask(TorrentSession torrentSession) {
 			super(torrentSession);
+			// A stop that comes before the task runs cancels the check.
+			_torrentSession.getTorrentChecker().reset();
 		}
 		
-		public NewSessionTask(String fileName, String destination) 
+		public NewSessionTask(String fileName, String destination, StoreMode storeMode) 
 				throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException, URISyntaxException {
-			super(fileName, destination);
+			super(fileName, destination, storeMode);
 		}
 
 		@Override
@@ -274,6 +362,7 @@ public class TorrentClient implements TorrentSessionEventListener {
 			boolean isStopped = _torrentSession.isStopped();
 			// Even if a torrent is stopped it needs to be checked first.
 			_torrentSession.check();
+			saveResumeState(_torrentSession);
 			// If it has not been stopped before the client was terminated, then 
 			// an attempt is made to be started. It is called an attempt, because
 			// if the man number of downloading torrents has been reached, the
@@ -292,11 +381,14 @@ public class TorrentClient implements TorrentSessionEventListener {
 	private class ResumeSessionTask extends SessionTask {		
 		public ResumeSessionTask(TorrentSession torrentSession) {
 			super(torrentSession);
+			// A stop that comes before the task runs cancels the check.
+			_torrentSession.getTorrentChecker().reset();
 		}
 		
 		@Override
 		public void run() {
 			_torrentSession.check();
+			saveResumeState(_torrentSession);
 			tryTorrentSession();
 		}
 	}
@@ -3,15 +3,12 @@ package com.jtorrent.torrent;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,13 +17,17 @@ import com.jtorrent.messaging.announce.AnnounceException;
 import com.jtorrent.messaging.announce.AnnounceService;
 import com.jtorrent.messaging.announce.ConnectionService;
 import com.jtorrent.messaging.announce.TrackerResponseMessage;
+import com.jtorrent.messaging.message.HaveMessage;
 import com.jtorrent.metainfo.MetaInfo;
+import com.jtorrent.peer.MessageChannel;
 import com.jtorrent.peer.Peer;
 import com.jtorrent.peer.PeerManager;
 import com.jtorrent.storage.FileStore;
 import com.jtorrent.storage.MultiFileStore;
 import com.jtorrent.storage.Piece;
 import com.jtorrent.storage.PieceRepository;
+import com.jtorrent.storage.StoreMode;
+import com.jtorrent.storage.TorrentChecker;
 
 public class TorrentSession {
 	public enum Status {
@@ -52,12 +53,18 @@ public class TorrentSession {
 	private final PeerManager _peerManager;
 	private final ConnectionService _connectionService;
 	private final FileStore _store;
+	private final StoreMode _storeMode;
 	private final PieceRepository _pieceRepository;
+	private final TorrentChecker _checker;
 	private Status _torrentStatus;
 	
 	private List<TorrentSessionEventListener> _listeners;
 	
-	private long _checkedPieces;
+	// Fast resume state handed over by the restore manager. It is used by
+	// the next check only.
+	private volatile BitSet _resumedPieces;
+	private volatile BitSet _piecesToCheck;
+	private volatile boolean _checked;
 	
 	public TorrentSession(String torrentFileName, String destination, Peer clientPeer,
 			ConnectionService connectionService, Status status) 
@@ -65,15 +72,29 @@ public class TorrentSession {
 		this(torrentFileName, destination, clientPeer, connectionService);
 		_torrentStatus = status;
 	}
+	
+	public TorrentSession(String torrentFileName, String destination, Peer clientPeer,
+			ConnectionService connectionService, StoreMode storeMode, Status status) 
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException, URISyntaxException {
+		this(torrentFileName, destination, clientPeer, connectionService, storeMode);
+		_torrentStatus = status;
+	}
 
 	public TorrentSession(String torrentFileName, String destination, Peer clientPeer,
 			ConnectionService connectionService)
 			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException, URISyntaxException {
+		this(torrentFileName, destination, clientPeer, connectionService, StoreMode.DEFAULT);
+	}
+
+	public TorrentSession(String torrentFileName, String destination, Peer clientPeer,
+			ConnectionService connectionService, StoreMode storeMode)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException, URISyntaxException {
 		_torrentfileName = torrentFileName;
 		_destinationFolder = destination;
+		_storeMode = storeMode;
 		
 		_metaInfo = new MetaInfo(new File(torrentFileName));
-		_store = new MultiFileStore(_metaInfo.getInfoDictionary().getFiles(), destination);
+		_store = new MultiFileStore(_metaInfo.getInfoDictionary().getFiles(), destination, storeMode);
 		_torrentStatus = INITIAL_STATUS;
 		
 		// Session information
@@ -87,12 +108,35 @@ public class TorrentSession {
 
 		// Pieces handling
 		_pieceRepository = new PieceRepository(this);
+		_checker = new TorrentChecker(_pieceRepository);
 		_listeners = new LinkedList<TorrentSessionEventListener>();
 	}
 	
 	protected void check() {
 		_torrentStatus = Status.CHECKING;
-		checkTorrentCompletion();
+		_checked = checkTorrentCompletion();
+	}
+	
+	/**
+	 * Makes the next check trust the given pieces without reading them from
+	 * disk and check only the rest of the given pieces.
+	 * 
+	 * @param resumedPieces
+	 *            The pieces known to be on disk.
+	 * @param piecesToCheck
+	 *            The pieces whose state is unknown.
+	 */
+	public void setResumeState(BitSet resumedPieces, BitSet piecesToCheck) {
+		_piecesToCheck = piecesToCheck;
+		_resumedPieces = resumedPieces;
+	}
+	
+	/**
+	 * @return <b>true</b> if the last check of the session went through all
+	 *         of its pieces.
+	 */
+	public boolean isChecked() {
+		return _checked;
 	}
 
 	protected void start() {		
@@ -115,6 +159,10 @@ public class TorrentSession {
 
 	protected void stop(boolean isRemoved) {
 		_torrentStatus = Status.STOPPED;
+		// A check that is still running is of no use anymore.
+		_checker.cancel();
+		// The pieces that have already been received are still written.
+		_pieceRepository.getDiskWriter().stop();
 		// Make disconnecting happen in the background.
 		Thread th = new Thread(new Runnable() {
 			
@@ -129,6 +177,7 @@ public class TorrentSession {
 				}
 				if(isRemoved) {
 					_peerManager.cleanup();
+					closeFileStore();
 				}
 				_connectionService.unregister(TorrentSession.this);			
 			}
@@ -137,6 +186,22 @@ public class TorrentSession {
 		th.start();		
 	}
 
+	/**
+	 * Closes the file store of a session that is not going to be resumed. A
+	 * stopped session keeps its store open, as it may be resumed later on.
+	 */
+	private void closeFileStore() {
+		try {
+			// The pieces that are still queued have to reach the disk first.
+			_pieceRepository.getDiskWriter().awaitStop();
+			_store.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			_logger.warn("Could not close the files of {}: {}", _torrentfileName, e.getMessage());
+		}
+	}
+
 	/**
 	 * <p>
 	 * Handles the periodic announce and update response to the tracker.
@@ -188,6 +253,10 @@ public class TorrentSession {
 		return _store;
 	}
 	
+	public StoreMode getStoreMode() {
+		return _storeMode;
+	}
+	
 	public List<String> getFileNames() {
 		return _store.getFileNames();
 	}
@@ -196,6 +265,10 @@ public class TorrentSession {
 		return _pieceRepository;
 	}
 	
+	public TorrentChecker getTorrentChecker() {
+		return _checker;
+	}
+	
 	public void setStatus(Status status) {
 		_torrentStatus = status;
 	}
@@ -244,107 +317,60 @@ public class TorrentSession {
 	}
 	
 	public double getCheckedPiecesPrgress() {
-		return ((double)_checkedPieces) / ((double)_pieceRepository.size());
+		return _checker.getProgress();
 	}
 	
 	/**
 	 * Check how much of the torrent is present on disk.
 	 */
-	private void checkTorrentCompletion() {
-		ExecutorService exec = Executors.newCachedThreadPool();
-
-		int percent = 0;
-		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
-		// In order not to overwhelm the program with threads, each few iterations
-		// the results from tasks are inspected and then the algorithm moves on
-		// with scheduling more checker tasks.
-		for (Piece p : _pieceRepository.toPieceArray()) {
-			if(isStopped()) {
-				results.clear();
-				exec.shutdownNow();
-				return;
-			}
-			results.add(exec.submit(new PieceChecker(p)));
-
-			if (results.size() != Runtime.getRuntime().availableProcessors()) {
-				continue;
-			}
-
-			try {
-				percent = handleFinishedChekers(results, percent);
-			} catch (Exception e) {
-				_logger.debug("Could not retrieve the check result:" + e.getCause());
+	private boolean checkTorrentCompletion() {
+		BitSet resumedPieces = _resumedPieces;
+		BitSet piecesToCheck = _piecesToCheck;
+		_resumedPieces = null;
+		_piecesToCheck = null;
+		
+		boolean checked;
+		if (resumedPieces != null) {
+			for (int i = resumedPieces.nextSetBit(0); i >= 0; i = resumedPieces.nextSetBit(i + 1)) {
+				_pieceRepository.markPieceComplete(i);
 			}
-
-			results.clear();
+			_logger.info("Resumed {} pieces, {} pieces of modified files are to be checked",
+					resumedPieces.cardinality(), piecesToCheck.cardinality());
+			checked = _checker.check(piecesToCheck);
+		} else {
+			checked = _checker.check();
 		}
 		
-		// Handle any checkers left unfinished.
-		try {
-			percent = handleFinishedChekers(results, percent);
-		} catch (Exception e) {
-			_logger.debug("Could not retrieve the check result:" + e.getCause());
+		if (!checked) {
+			_logger.info("Checking of {} was cancelled", _torrentfileName);
+			return false;
 		}
 
 		_logger.info("Have: " + _pieceRepository.completedPercent() + "%");
 		_logger.info("Have {}/{}", _pieceRepository.getCompletedPieces().cardinality(), _pieceRepository.size());
-		exec.shutdown();
+		_logger.info("Checked at {} kB/s", _checker.getThroughput() / 1024);
+		return true;
 	}
 	
-	private int handleFinishedChekers(List<Future<Boolean>> results, int percent) throws Exception {
-		for (Future<Boolean> result : results) {
-			try {
-				// Wait for the check to complete.
-				result.get();
-				_checkedPieces++;
-				double checkedPercent = ((double) _checkedPieces / _pieceRepository.size()) * 100;
-				if(checkedPercent > percent) {
-					_logger.info("checked " + percent + "%");
-					percent += 10;
-				}
-				
-			} catch (Exception e) {
-				throw e;
-			}
-		}
-		
-		return percent;
-	}
-
 	/**
-	 * A callable task that checks if a piece is present on disk.
+	 * Called once a piece has been written to disk. The peers are told that
+	 * the client has the piece only now, as it cannot be served before that.
 	 * 
-	 * @author Alex
-	 *
+	 * @param piece
+	 *            The piece that has been completed.
 	 */
-	private class PieceChecker implements Callable<Boolean> {
-
-		private final Piece _piece;
-
-		public PieceChecker(Piece piece) {
-			_piece = piece;
-		}
-
-		@Override
-		public Boolean call() {
-			// The check function reads from disk and compares the hash of the
-			// written piece with the one in the repository. If the piece is 
-			// not on disk, the hashes will obviously not match. If they do - 
-			// then the torrent is on disk.
-			boolean presentOnDisk;
-			try {
-				presentOnDisk = _pieceRepository.check(_piece.getIndex());
-			} catch (IOException e) {
-				_logger.warn("Could not read from piece {} from piece repository.", _piece.getIndex());
-				return false;
+	public void onPieceCompleted(Piece piece) {
+		ByteBuffer haveMessage = HaveMessage.make(piece.getIndex());
+		for(Peer peer : _peerManager.getConnectedPeers()) {
+			MessageChannel channel = peer.getMessageChannel();
+			if(channel != null) {
+				channel.send(haveMessage);
 			}
-			if (!presentOnDisk){
-				return false;
-			}
-			
-			_pieceRepository.markPieceComplete(_piece.getIndex());
-			_logger.debug("have piece {}", _piece.getIndex());
-			return true;			
+		}
+		
+		// Check if the torrent has been completely downloaded.
+		if(_pieceRepository.isRepositoryCompleted() && !isFinilizing() && !isSeeding()) {
+			onTorrentDownloaded(_pieceRepository);
 		}
 	}
 	
@@ -353,8 +379,9 @@ public class TorrentSession {
 		
 		try {
 			_torrentStatus = Status.FINILIZING;
+			// The store is kept open after it is completed, as the blocks
+			// are served from it while seeding.
 			getFileStore().complete();
-			getFileStore().close();
 			_announceService.sendCompletedMessage();
 		} catch (IOException e) {
 			_logger.warn("could not finish downloading the file {}", e.getMessage());
@@ -363,6 +390,10 @@ public class TorrentSession {
 			_logger.warn("could not send COMPLEDTED message to tracker");
 		}
 		
+		for(TorrentSessionEventListener listener : _listeners) {
+			listener.onSessionCompleted(this);
+		}
+		
 		// Notify the listeners that the download was completed.
 		notifyDownloadCompleted();
 		
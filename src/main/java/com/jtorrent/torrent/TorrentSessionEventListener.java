@@ -5,4 +5,10 @@ import java.util.EventListener;
 public interface TorrentSessionEventListener extends EventListener{
 	
 	public void onSessionClosed();
+	
+	/**
+	 * Called when all the pieces of the session have been downloaded and its
+	 * files have been moved to their final location.
+	 */
+	public void onSessionCompleted(TorrentSession session);
 }
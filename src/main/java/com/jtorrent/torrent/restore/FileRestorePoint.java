@@ -0,0 +1,66 @@
+package com.jtorrent.torrent.restore;
+
+import java.io.File;
+
+/**
+ * The state of a file of a torrent at the time the restore point was saved.
+ * If the file still has the same path, size and modification time when the
+ * torrent is restored, the pieces in it are trusted without being checked.
+ */
+public class FileRestorePoint {
+
+	// The absolute path to the file the torrent was working with.
+	private String _path;
+	private long _size;
+	private long _lastModified;
+
+	public static FileRestorePoint fromFile(File file) {
+		FileRestorePoint restorePoint = new FileRestorePoint();
+		restorePoint.setPath(file.getAbsolutePath());
+		restorePoint.setSize(file.length());
+		restorePoint.setLastModified(file.lastModified());
+		return restorePoint;
+	}
+
+	/**
+	 * @param file
+	 *            The file as it is on disk now.
+	 * @return <b>true</b> if the file has not been changed since the restore
+	 *         point was saved.
+	 */
+	public boolean matches(File file) {
+		return file.exists()
+				&& file.getAbsolutePath().equals(_path)
+				&& file.length() == _size
+				&& file.lastModified() == _lastModified;
+	}
+
+	public void setPath(String path) {
+		_path = path;
+	}
+
+	public String getPath() {
+		return _path;
+	}
+
+	public void setSize(long size) {
+		_size = size;
+	}
+
+	public long getSize() {
+		return _size;
+	}
+
+	public void setLastModified(long lastModified) {
+		_lastModified = lastModified;
+	}
+
+	public long getLastModified() {
+		return _lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return _path + " (" + _size + " bytes, modified " + _lastModified + ")";
+	}
+}
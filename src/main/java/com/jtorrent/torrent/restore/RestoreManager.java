@@ -10,6 +10,7 @@ import java.nio.file.Paths;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -17,7 +18,10 @@ import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jtorrent.messaging.announce.ConnectionService;
+import com.jtorrent.metainfo.FileDictionary;
 import com.jtorrent.peer.Peer;
+import com.jtorrent.storage.PieceRepository;
+import com.jtorrent.storage.StoreMode;
 import com.jtorrent.torrent.TorrentSession;
 import com.jtorrent.torrent.TorrentSession.Status;
 
@@ -75,6 +79,7 @@ public class RestoreManager {
 		restorePoint.setTorrentFile(session.getTorrentFileName());
 		restorePoint.setDestinationFolder(session.getDestionationFolder());
 		restorePoint.setStopped(session.isStopped());
+		restorePoint.setStoreMode(session.getStoreMode());
 		
 		return restorePoint;
 	}
@@ -114,6 +119,97 @@ public class RestoreManager {
 		updateResotreFile(lastRestore);
 	}
 	
+	/**
+	 * Saves which pieces of the torrent session are on disk together with the
+	 * state of its files. When the session is restored and its files have not
+	 * been modified in the meantime, the pieces are trusted without being
+	 * checked again. Nothing is saved if the session has not been checked yet,
+	 * as its pieces are not known.
+	 * 
+	 * @param session
+	 *            The session whose state is to be saved.
+	 * @throws IOException
+	 */
+	public void saveResumeState(TorrentSession session) throws IOException {
+		if(!session.isChecked()) {
+			return;
+		}
+		
+		// Take the state of the files before the pieces. A piece that is
+		// written in between then makes its file look modified and gets
+		// checked, instead of being silently missing from the saved pieces.
+		List<FileRestorePoint> files = new ArrayList<FileRestorePoint>();
+		for(File file : session.getFileStore().getWorkingFiles()) {
+			files.add(FileRestorePoint.fromFile(file));
+		}
+		BitSet completedPieces = session.getPieceRepository().provideCompletedPieces();
+		
+		TorrentClientRestorePoint lastRestore = getLastRestorePoint();
+		for(TorrentSessionRestorePoint restore : lastRestore.getTorrentSessions()) {
+			if(restore.getTorrentFile().equals(session.getTorrentFileName())) {
+				restore.setCompletedPieces(completedPieces.toByteArray());
+				restore.setFiles(files);
+				updateResotreFile(lastRestore);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Hands the saved state of the pieces over to the torrent session, so that
+	 * the next check of the session verifies only the pieces of the files that
+	 * have been modified since the state was saved.
+	 * 
+	 * @param session
+	 *            The session that is to be resumed.
+	 * @return <b>true</b> if there was a usable saved state.
+	 * @throws IOException
+	 */
+	public boolean applyResumeState(TorrentSession session) throws IOException {
+		TorrentClientRestorePoint lastRestore = getLastRestorePoint();
+		for(TorrentSessionRestorePoint restore : lastRestore.getTorrentSessions()) {
+			if(restore.getTorrentFile().equals(session.getTorrentFileName())) {
+				return applyResumeState(session, restore);
+			}
+		}
+		
+		return false;
+	}
+	
+	private boolean applyResumeState(TorrentSession session, TorrentSessionRestorePoint restore) {
+		if(restore.getCompletedPieces() == null || restore.getFiles() == null) {
+			return false;
+		}
+		
+		List<File> files = session.getFileStore().getWorkingFiles();
+		List<FileDictionary> dictionaries = session.getMetaInfo().getInfoDictionary().getFiles();
+		if(files.size() != restore.getFiles().size() || files.size() != dictionaries.size()) {
+			return false;
+		}
+		
+		PieceRepository repository = session.getPieceRepository();
+		BitSet completedPieces = BitSet.valueOf(restore.getCompletedPieces());
+		if(completedPieces.length() > repository.size()) {
+			return false;
+		}
+		
+		// Every piece that has a byte in a modified file has to be checked
+		// again - no matter what the saved state says about it.
+		BitSet piecesToCheck = new BitSet(repository.size());
+		long begin = 0;
+		for(int i = 0; i < files.size(); i++) {
+			long length = dictionaries.get(i).getLength();
+			if(!restore.getFiles().get(i).matches(files.get(i))) {
+				piecesToCheck.or(repository.providePieces(begin, length));
+			}
+			begin += length;
+		}
+		completedPieces.andNot(piecesToCheck);
+		
+		session.setResumeState(completedPieces, piecesToCheck);
+		return true;
+	}
+	
 	public boolean isInRestorePoint(TorrentSession session) throws IOException {
 		TorrentClientRestorePoint lastRestore = getLastRestorePoint();
 		for(TorrentSessionRestorePoint torrentPoint : lastRestore.getTorrentSessions()) {
@@ -155,6 +251,8 @@ public class RestoreManager {
 		valid.addAll(lastSession);
 		for(int i = 0; i < lastSession.size(); i++) {
 			Status status = lastSession.get(i).getStopped() ? Status.STOPPED : TorrentSession.INITIAL_STATUS;
+			StoreMode storeMode = lastSession.get(i).getStoreMode() != null ? 
+					lastSession.get(i).getStoreMode() : StoreMode.DEFAULT;
 			// Skip any problematic torrents and remove them from the restore file.
 			try {
 				TorrentSession session = new TorrentSession(
@@ -162,7 +260,9 @@ public class RestoreManager {
 						lastSession.get(i).getDestinationFolder(),
 						clientPeer,
 						connService,
+						storeMode,
 						status);
+				applyResumeState(session, lastSession.get(i));
 				sessions.add(session);
 			} catch (Exception e) {
 				valid.remove(i);
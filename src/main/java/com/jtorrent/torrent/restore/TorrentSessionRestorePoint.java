@@ -1,5 +1,9 @@
 package com.jtorrent.torrent.restore;
 
+import java.util.List;
+
+import com.jtorrent.storage.StoreMode;
+
 public class TorrentSessionRestorePoint {
 
 	// The file location of the .torrent file.
@@ -8,6 +12,13 @@ public class TorrentSessionRestorePoint {
 	private String _destinationFolder;
 	// The path to the folder where the torrent is to be downloaded.
 	private boolean _stopped;
+	// How the files of the torrent are accessed.
+	private StoreMode _storeMode;
+	// The pieces that were on disk when the restore point was saved
+	// (see BitSet.toByteArray()).
+	private byte[] _completedPieces;
+	// The state of the files when the restore point was saved.
+	private List<FileRestorePoint> _files;
 	
 	public void setTorrentFile(String filePath) {
 		_torrentFile = filePath;
@@ -33,6 +44,30 @@ public class TorrentSessionRestorePoint {
 		return _stopped;
 	}
 	
+	public void setStoreMode(StoreMode storeMode) {
+		_storeMode = storeMode;
+	}
+	
+	public StoreMode getStoreMode() {
+		return _storeMode;
+	}
+	
+	public void setCompletedPieces(byte[] completedPieces) {
+		_completedPieces = completedPieces;
+	}
+	
+	public byte[] getCompletedPieces() {
+		return _completedPieces;
+	}
+	
+	public void setFiles(List<FileRestorePoint> files) {
+		_files = files;
+	}
+	
+	public List<FileRestorePoint> getFiles() {
+		return _files;
+	}
+	
 	@Override
 	public String toString() {
 		return _torrentFile + " in " + _destinationFolder + " stopped: " + _stopped;
@@ -0,0 +1,99 @@
+package com.jtorrent.bencode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Compares encoding a dictionary with {@link BEncoder} and with a reused
+ * {@link BWriter}. The dictionary looks like a torrent: a few keys, a list of
+ * files and the piece hashes.
+ * </p>
+ * <p>
+ * Run it after <code>mvn test-compile</code> with:
+ * </p>
+ * 
+ * <pre>
+ * mvn dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/test-classes:target/classes:$(cat cp.txt) org.openjdk.jmh.Main BWriterBenchmark
+ * </pre>
+ * 
+ * @author Alex
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BWriterBenchmark {
+
+	/**
+	 * The number of files in the torrent.
+	 */
+	@Param({ "1", "100" })
+	public int files;
+
+	private Map<String, Object> _torrent;
+	private BWriter _writer;
+	private ByteArrayOutputStream _out;
+
+	@Setup
+	public void setUp() throws IOException {
+		// The lists hold BObjects, as the decoded ones do.
+		List<BObject> fileList = new ArrayList<BObject>();
+		for (int i = 0; i < files; i++) {
+			Map<String, BObject> file = new HashMap<String, BObject>();
+			file.put("path", new BObject(Arrays.asList(new BObject("directory"), new BObject("file-" + i + ".bin"))));
+			file.put("length", new BObject(1048576L * (i + 1)));
+			fileList.add(new BObject(file));
+		}
+
+		Map<String, BObject> info = new HashMap<String, BObject>();
+		info.put("name", new BObject("benchmark"));
+		info.put("piece length", new BObject(262144));
+		info.put("pieces", new BObject(new byte[20 * 400]));
+		info.put("files", new BObject(fileList));
+
+		_torrent = new HashMap<String, Object>();
+		_torrent.put("announce", "http://tracker.example.org/announce");
+		_torrent.put("creation date", 1500000000L);
+		_torrent.put("info", info);
+
+		_writer = new BWriter();
+		_out = new ByteArrayOutputStream();
+	}
+
+	@Benchmark
+	public int encoder() throws IOException {
+		_out.reset();
+		BEncoder.instance().encode(_torrent, _out);
+		return _out.size();
+	}
+
+	@Benchmark
+	public int writer() throws IOException {
+		_writer.clear();
+		_writer.write(_torrent);
+		return _writer.size();
+	}
+}
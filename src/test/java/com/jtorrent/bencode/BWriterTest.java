@@ -0,0 +1,151 @@
+package com.jtorrent.bencode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link BWriter} writes the same bytes as {@link BEncoder}.
+ * 
+ * @author Alex
+ *
+ */
+public class BWriterTest {
+
+	@Test
+	public void testScalarsMatchEncoder() throws IOException {
+		assertSameEncoding(0L);
+		assertSameEncoding(-1);
+		assertSameEncoding(42);
+		assertSameEncoding((short) -300);
+		assertSameEncoding((byte) 7);
+		assertSameEncoding(Long.MAX_VALUE);
+		assertSameEncoding(Long.MIN_VALUE);
+		assertSameEncoding(new BigInteger("-123456789012345678901234567890"));
+		assertSameEncoding("");
+		assertSameEncoding("announce");
+		assertSameEncoding("caf\u00e9 \u00fcber \u4e2d\u6587");
+		assertSameEncoding(new byte[] { 0, (byte) 0xFF, (byte) 0x80, 'e', ':' });
+	}
+
+	@Test
+	public void testTorrentMatchesEncoder() throws IOException {
+		byte[] pieces = new byte[3 * 20];
+		for (int i = 0; i < pieces.length; i++) {
+			pieces[i] = (byte) (i * 31);
+		}
+
+		// The lists hold BObjects, as the decoded ones do.
+		Map<String, BObject> file = new HashMap<String, BObject>();
+		file.put("path", new BObject(Arrays.asList(new BObject("dir"), new BObject("file.bin"))));
+		file.put("length", new BObject(123456789012L));
+
+		Map<String, BObject> info = new HashMap<String, BObject>();
+		info.put("piece length", new BObject(262144));
+		info.put("pieces", new BObject(pieces));
+		info.put("name", new BObject("torrent"));
+		info.put("files", new BObject(Collections.singletonList(new BObject(file))));
+
+		Map<String, Object> torrent = new LinkedHashMap<String, Object>();
+		torrent.put("info", info);
+		torrent.put("creation date", 1500000000L);
+		torrent.put("announce-list",
+				new BObject(Arrays.asList(
+						new BObject(Collections.singletonList(new BObject("udp://tracker.example.org:80"))),
+						new BObject(Collections.<BObject> emptyList()))));
+		torrent.put("announce", "http://tracker.example.org/announce");
+
+		assertSameEncoding(torrent);
+	}
+
+	@Test
+	public void testDecodedValueMatchesEncoder() throws IOException {
+		byte[] encoded = "d1:ad0:i0ee4:listli5ei-66ee4:spam4:eggse".getBytes(StandardCharsets.US_ASCII);
+		BObject decoded = BDecoder.instance().decode(ByteBuffer.wrap(encoded));
+
+		assertSameEncoding(decoded);
+		assertArrayEquals(encoded, write(decoded));
+	}
+
+	@Test
+	public void testSortedMapWithComparatorIsWrittenInCanonicalOrder() throws IOException {
+		Map<String, Object> reversed = new TreeMap<String, Object>(Collections.reverseOrder());
+		reversed.put("a", 1);
+		reversed.put("c", 3);
+		reversed.put("b", 2);
+
+		assertArrayEquals("d1:ai1e1:bi2e1:ci3ee".getBytes(StandardCharsets.US_ASCII), write(reversed));
+		assertSameEncoding(reversed);
+	}
+
+	@Test
+	public void testNonIntegralNumbersAreRejected() {
+		for (Object number : Arrays.asList(1.5, 2.0f, new BigDecimal("3.25"), Double.NaN)) {
+			try {
+				new BWriter().write(number);
+				fail(number + " has been written");
+			} catch (BObject.BEncodingException e) {
+				// Expected
+			}
+			try {
+				new BWriter().write(Collections.singletonMap("n", number));
+				fail(number + " has been written in a dictionary");
+			} catch (BObject.BEncodingException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testBufferGrowsAndIsReused() throws IOException {
+		byte[] block = new byte[5000];
+		Arrays.fill(block, (byte) 'x');
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put("block", block);
+		message.put("index", 3);
+
+		BWriter writer = new BWriter(1);
+		writer.write(message);
+		assertArrayEquals(encode(message), toArray(writer.getEncoded()));
+
+		writer.clear();
+		writer.write("spam");
+		assertEquals(6, writer.size());
+		assertArrayEquals("4:spam".getBytes(StandardCharsets.US_ASCII), toArray(writer.getEncoded()));
+	}
+
+	private static void assertSameEncoding(Object value) throws IOException {
+		assertArrayEquals(encode(value), write(value));
+	}
+
+	private static byte[] encode(Object value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BEncoder.instance().encode(value, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] write(Object value) throws IOException {
+		return toArray(new BWriter().write(value).getEncoded());
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,339 @@
+package com.jtorrent.messaging.udp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jtorrent.messaging.announce.AnnounceException;
+import com.jtorrent.messaging.announce.ScrapeStatistics;
+import com.jtorrent.messaging.announce.TrackerRequestEvent;
+
+/**
+ * Runs the client against a fake tracker listening on the loopback address.
+ * Every test gets a tracker on a new port, so the connection IDs cached by
+ * earlier tests are not reused.
+ * 
+ * @author Alex
+ *
+ */
+public class UDPTrackerClientTest {
+
+	private static final int INTERVAL = 1800;
+	private static final int SEEDERS = 5;
+	private static final int LEECHERS = 7;
+	private static final String PEER_ID = "-JT0001-012345678901";
+
+	private FakeTracker _tracker;
+	private Thread _trackerThread;
+
+	@Before
+	public void setUp() throws IOException {
+		_tracker = new FakeTracker();
+		_trackerThread = new Thread(_tracker, "fake-udp-tracker");
+		_trackerThread.setDaemon(true);
+		_trackerThread.start();
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		_tracker.close();
+		_trackerThread.join(1000);
+	}
+
+	@Test
+	public void testConnectAndScrape() throws Exception {
+		byte[] first = infoHash(1);
+		byte[] second = infoHash(2);
+
+		List<ScrapeStatistics> statistics = client(1000, 0).scrape(Arrays.asList(first, second));
+
+		assertEquals(1, _tracker._connects.get());
+		assertEquals(1, _tracker._scrapes.get());
+		assertEquals(2, statistics.size());
+		assertArrayEquals(first, statistics.get(0).getInfoHash());
+		assertEquals(SEEDERS, statistics.get(0).getSeeders());
+		assertEquals(1, statistics.get(0).getCompleted());
+		assertEquals(LEECHERS, statistics.get(0).getLeechers());
+		assertArrayEquals(second, statistics.get(1).getInfoHash());
+		assertEquals(2, statistics.get(1).getCompleted());
+	}
+
+	@Test
+	public void testAnnounce() throws Exception {
+		UDPTrackerResponseMessage response = client(1000, 0).announce(announceRequest());
+
+		assertEquals(1, _tracker._connects.get());
+		assertEquals(1, _tracker._announces.get());
+		assertEquals("", response.getFailureReason());
+		assertEquals(INTERVAL, response.getInterval());
+		assertEquals(SEEDERS, response.getComplete());
+		assertEquals(LEECHERS, response.getIncomplete());
+		assertEquals(1, response.getPeers().size());
+		assertEquals(6881, response.getPeers().get(0).getAddress().getPort());
+
+		assertArrayEquals(infoHash(1), _tracker._lastInfoHash);
+		assertEquals(TrackerRequestEvent.STARTED.getID(), _tracker._lastEvent);
+		assertEquals(6882, _tracker._lastPort);
+	}
+
+	@Test
+	public void testConnectionIDIsReused() throws Exception {
+		UDPTrackerClient client = client(1000, 0);
+		client.announce(announceRequest());
+		client.scrape(Arrays.asList(infoHash(1)));
+		// Another client of the same tracker shares the ID as well.
+		client(1000, 0).announce(announceRequest());
+
+		assertEquals(1, _tracker._connects.get());
+		assertEquals(2, _tracker._announces.get());
+		assertEquals(1, _tracker._scrapes.get());
+	}
+
+	@Test
+	public void testScrapeErrorDropsConnectionID() throws Exception {
+		UDPTrackerClient client = client(1000, 0);
+		client.scrape(Arrays.asList(infoHash(1)));
+
+		_tracker._error = "try again";
+		try {
+			client.scrape(Arrays.asList(infoHash(1)));
+			fail("the error has been ignored");
+		} catch (AnnounceException e) {
+			assertTrue(e.getMessage().contains("try again"));
+		}
+
+		client.scrape(Arrays.asList(infoHash(1)));
+		assertEquals(2, _tracker._connects.get());
+	}
+
+	@Test
+	public void testAnnounceErrorDropsConnectionID() throws Exception {
+		UDPTrackerClient client = client(1000, 0);
+		_tracker._error = "unknown torrent";
+		UDPTrackerResponseMessage response = client.announce(announceRequest());
+		assertEquals("unknown torrent", response.getFailureReason());
+
+		response = client.announce(announceRequest());
+		assertEquals("", response.getFailureReason());
+		assertEquals(2, _tracker._connects.get());
+	}
+
+	@Test
+	public void testLostRequestIsRetransmitted() throws Exception {
+		_tracker._drop.set(1);
+		List<ScrapeStatistics> statistics = client(50, 2).scrape(Arrays.asList(infoHash(1)));
+
+		assertEquals(1, statistics.size());
+		// The first connect request has been lost.
+		assertEquals(2, _tracker._received.get() - _tracker._scrapes.get());
+		assertEquals(1, _tracker._connects.get());
+	}
+
+	@Test
+	public void testSilentTrackerIsGivenUp() throws Exception {
+		_tracker._drop.set(Integer.MAX_VALUE);
+		long start = System.currentTimeMillis();
+		try {
+			client(20, 2).scrape(Arrays.asList(infoHash(1)));
+			fail("the tracker has not answered");
+		} catch (AnnounceException e) {
+			// 20 + 40 + 80 ms
+			assertTrue(System.currentTimeMillis() - start >= 140);
+			assertEquals(3, _tracker._received.get());
+		}
+	}
+
+	@Test
+	public void testInterruptStopsWaiting() throws Exception {
+		_tracker._drop.set(Integer.MAX_VALUE);
+		long start = System.currentTimeMillis();
+		Thread.currentThread().interrupt();
+		try {
+			client(10000, 0).scrape(Arrays.asList(infoHash(1)));
+			fail("the interrupt has been ignored");
+		} catch (InterruptedIOException e) {
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+	}
+
+	private UDPTrackerClient client(long baseTimeout, int maxRetransmissions) {
+		URI uri = URI.create("udp://127.0.0.1:" + _tracker.getPort() + "/announce");
+		return new UDPTrackerClient(null, uri, baseTimeout, maxRetransmissions);
+	}
+
+	private static UDPTrackerRequestMessage announceRequest() {
+		return new UDPTrackerRequestMessage(infoHash(1), PEER_ID, 6882, 0, 0, 1024, TrackerRequestEvent.STARTED,
+				UDPTrackerRequestMessage.DEFAULT_UDP_NUM_WANT, 42);
+	}
+
+	private static byte[] infoHash(int seed) {
+		byte[] infoHash = new byte[20];
+		Arrays.fill(infoHash, (byte) seed);
+		return infoHash;
+	}
+
+	/**
+	 * Answers the requests the way a tracker would. Requests with an unknown
+	 * connection ID are refused.
+	 */
+	private static class FakeTracker implements Runnable {
+		private final DatagramChannel _channel;
+		private final int _port;
+
+		private final AtomicInteger _received = new AtomicInteger();
+		private final AtomicInteger _connects = new AtomicInteger();
+		private final AtomicInteger _announces = new AtomicInteger();
+		private final AtomicInteger _scrapes = new AtomicInteger();
+		/**
+		 * How many of the next requests are left unanswered.
+		 */
+		private final AtomicInteger _drop = new AtomicInteger();
+		/**
+		 * The error sent instead of the next announce or scrape response.
+		 */
+		private volatile String _error;
+
+		private volatile long _connectionID;
+		private volatile byte[] _lastInfoHash;
+		private volatile int _lastEvent;
+		private volatile int _lastPort;
+
+		public FakeTracker() throws IOException {
+			_channel = DatagramChannel.open();
+			_channel.bind(new InetSocketAddress("127.0.0.1", 0));
+			_port = ((InetSocketAddress) _channel.getLocalAddress()).getPort();
+		}
+
+		public int getPort() {
+			return _port;
+		}
+
+		public void close() throws IOException {
+			_channel.close();
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer request = ByteBuffer.allocate(2048);
+			try {
+				while (true) {
+					request.clear();
+					SocketAddress client = _channel.receive(request);
+					request.flip();
+					_received.incrementAndGet();
+					if (_drop.get() > 0) {
+						_drop.decrementAndGet();
+						continue;
+					}
+
+					ByteBuffer response = respond(request);
+					if (response != null) {
+						_channel.send(response, client);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				// The test is over.
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private ByteBuffer respond(ByteBuffer request) {
+			long connectionID = request.getLong();
+			int action = request.getInt();
+			int transactionID = request.getInt();
+
+			if (action == UDPTrackerRequestMessage.ACTION_CONNECT) {
+				assertEquals(UDPTrackerRequestMessage.PROTOCOL_ID, connectionID);
+				_connects.incrementAndGet();
+				_connectionID = ThreadLocalRandom.current().nextLong();
+				ByteBuffer response = header(UDPTrackerRequestMessage.ACTION_CONNECT, transactionID, 8);
+				response.putLong(_connectionID);
+				response.flip();
+				return response;
+			}
+
+			if (connectionID != _connectionID) {
+				return error(transactionID, "unknown connection ID");
+			}
+			String error = _error;
+			if (error != null) {
+				_error = null;
+				return error(transactionID, error);
+			}
+
+			if (action == UDPTrackerRequestMessage.ACTION_ANNOUNCE) {
+				_announces.incrementAndGet();
+				_lastInfoHash = new byte[20];
+				request.get(_lastInfoHash);
+				// Peer ID, downloaded, left and uploaded
+				request.position(request.position() + 20 + 3 * 8);
+				_lastEvent = request.getInt();
+				// IP address, key and the number of peers wanted
+				request.position(request.position() + 3 * 4);
+				_lastPort = request.getShort() & 0xFFFF;
+
+				ByteBuffer response = header(UDPTrackerRequestMessage.ACTION_ANNOUNCE, transactionID, 12 + 6);
+				response.putInt(INTERVAL);
+				response.putInt(LEECHERS);
+				response.putInt(SEEDERS);
+				response.put(new byte[] { 127, 0, 0, 1 });
+				response.putShort((short) 6881);
+				response.flip();
+				return response;
+			}
+
+			if (action == UDPTrackerRequestMessage.ACTION_SCRAPE) {
+				_scrapes.incrementAndGet();
+				int count = request.remaining() / 20;
+				ByteBuffer response = header(UDPTrackerRequestMessage.ACTION_SCRAPE, transactionID, count * 12);
+				for (int i = 0; i < count; i++) {
+					response.putInt(SEEDERS);
+					// The completed count tells the torrents apart.
+					response.putInt(request.get(request.position() + i * 20));
+					response.putInt(LEECHERS);
+				}
+				response.flip();
+				return response;
+			}
+
+			throw new IllegalStateException("unexpected action " + action);
+		}
+
+		private static ByteBuffer header(int action, int transactionID, int bodySize) {
+			ByteBuffer response = ByteBuffer.allocate(UDPTrackerResponseMessage.RESPONSE_HEADER_SIZE + bodySize);
+			response.putInt(action);
+			response.putInt(transactionID);
+			return response;
+		}
+
+		private static ByteBuffer error(int transactionID, String message) {
+			byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer response = header(UDPTrackerRequestMessage.ACTION_ERROR, transactionID, bytes.length);
+			response.put(bytes);
+			response.flip();
+			return response;
+		}
+	}
+}
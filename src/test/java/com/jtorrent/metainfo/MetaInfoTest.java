@@ -0,0 +1,88 @@
+package com.jtorrent.metainfo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jtorrent.bencode.BDecoder;
+import com.jtorrent.bencode.BEncoder;
+
+/**
+ * Checks that the info-hash is taken over the info dictionary exactly as it is
+ * in the .torrent file.
+ *
+ * @author Alex
+ *
+ */
+public class MetaInfoTest {
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	@Test
+	public void testInfoHashIsTakenOverTheRawSpan() throws Exception {
+		byte[] pieces = new byte[2 * PieceTable.HASH_SIZE];
+		for (int i = 0; i < pieces.length; i++) {
+			pieces[i] = (byte) (i * 7);
+		}
+
+		// The keys of the info dictionary are not sorted, and it holds lists
+		// and dictionaries of its own.
+		ByteArrayOutputStream info = new ByteArrayOutputStream();
+		write(info, "d");
+		write(info, "6:pieces" + pieces.length + ":");
+		info.write(pieces);
+		write(info, "4:name8:file.bin");
+		write(info, "12:piece lengthi16384e");
+		write(info, "6:lengthi20000e");
+		write(info, "5:extrald4:infoi1e1:kli1ei2eeelee");
+		write(info, "e");
+		byte[] span = info.toByteArray();
+
+		// Neither are the keys of the meta info sorted. An 'info' key in a
+		// nested dictionary and an 'info' string are not the info dictionary.
+		ByteArrayOutputStream torrent = new ByteArrayOutputStream();
+		write(torrent, "d");
+		write(torrent, "8:announce23:http://tracker/announce");
+		write(torrent, "1:zd4:infod1:ai1ee4:listl4:infod4:infoi2eeee");
+		write(torrent, "7:comment4:info");
+		write(torrent, "4:info");
+		torrent.write(span);
+		write(torrent, "1:ald4:info1:xee");
+		write(torrent, "e");
+
+		File file = _folder.newFile("unsorted.torrent");
+		FileUtils.writeByteArrayToFile(file, torrent.toByteArray());
+		MetaInfo metaInfo = new MetaInfo(file);
+
+		assertArrayEquals(sha1(span), metaInfo.getInfoHash());
+		assertEquals(2, metaInfo.getInfoDictionary().getPieceTable().size());
+
+		// Encoding the decoded dictionary again sorts the keys, which gives
+		// another hash.
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		BEncoder.instance().encode(BDecoder.instance().decode(ByteBuffer.wrap(span)), encoded);
+		assertFalse(Arrays.equals(sha1(span), sha1(encoded.toByteArray())));
+	}
+
+	private static void write(ByteArrayOutputStream out, String data) throws IOException {
+		out.write(data.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static byte[] sha1(byte[] data) throws Exception {
+		return MessageDigest.getInstance(MetaInfo.HASHING_ALGORITHM).digest(data);
+	}
+}
@@ -0,0 +1,125 @@
+package com.jtorrent.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link AvailabilityIndex} moves the pieces between its buckets
+ * and picks the rarest pieces a peer has.
+ *
+ * @author Alex
+ *
+ */
+public class AvailabilityIndexTest {
+
+	@Test
+	public void testHaveAndLostMovePiecesBetweenBuckets() {
+		AvailabilityIndex index = new AvailabilityIndex(4);
+		for (int piece = 0; piece < 4; piece++) {
+			assertEquals(0, index.getFrequency(piece));
+		}
+
+		index.increment(1);
+		index.increment(1);
+		index.increment(2);
+		assertEquals(2, index.getFrequency(1));
+		assertEquals(1, index.getFrequency(2));
+
+		index.decrement(1);
+		index.decrement(2);
+		assertEquals(1, index.getFrequency(1));
+		assertEquals(0, index.getFrequency(2));
+
+		// Piece #1 is the only available piece left.
+		assertArrayEquals(new int[] { 1 }, rarest(index, 1, 0, 1, 2, 3));
+	}
+
+	@Test
+	public void testLosingAnUnavailablePieceFails() {
+		AvailabilityIndex index = new AvailabilityIndex(2);
+		index.increment(0);
+		index.decrement(0);
+		try {
+			index.decrement(0);
+			fail("the availability of piece #0 went below zero");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRarestPiecesComeFirst() {
+		AvailabilityIndex index = new AvailabilityIndex(6);
+		// Piece #i is available from i peers.
+		for (int piece = 0; piece < 6; piece++) {
+			for (int peer = 0; peer < piece; peer++) {
+				index.increment(piece);
+			}
+		}
+
+		assertArrayEquals(new int[] { 1, 2 }, rarest(index, 2, 0, 1, 2, 3, 4, 5));
+		// A piece moved to a rarer bucket is taken before the others.
+		for (int peer = 0; peer < 4; peer++) {
+			index.decrement(5);
+		}
+		assertArrayEquals(new int[] { 1, 5 }, rarest(index, 2, 0, 1, 2, 3, 4, 5));
+	}
+
+	@Test
+	public void testOnlyThePiecesOfThePeerAreTaken() {
+		AvailabilityIndex index = new AvailabilityIndex(8);
+		for (int piece = 0; piece < 8; piece++) {
+			for (int peer = 0; peer <= piece; peer++) {
+				index.increment(piece);
+			}
+		}
+
+		// The rarest pieces of the torrent are #0 and #1, but the peer has
+		// neither of them.
+		assertArrayEquals(new int[] { 3, 5 }, rarest(index, 2, 3, 5, 6, 7));
+	}
+
+	@Test
+	public void testRemovedPiecesAreNotTaken() {
+		AvailabilityIndex index = new AvailabilityIndex(5);
+		for (int piece = 0; piece < 5; piece++) {
+			for (int peer = 0; peer <= piece; peer++) {
+				index.increment(piece);
+			}
+		}
+
+		index.remove(0);
+		index.remove(1);
+		// Removing a piece twice does not unlink another one.
+		index.remove(1);
+		assertArrayEquals(new int[] { 2, 3 }, rarest(index, 2, 0, 1, 2, 3, 4));
+
+		// The availability of a removed piece is still counted, but the piece
+		// stays out of the buckets.
+		index.decrement(0);
+		index.increment(1);
+		assertEquals(0, index.getFrequency(0));
+		assertEquals(3, index.getFrequency(1));
+		assertArrayEquals(new int[] { 2, 3 }, rarest(index, 2, 0, 1, 2, 3, 4));
+		assertArrayEquals(new int[] { 2, 3, 4 }, rarest(index, 3, 0, 1, 2, 3, 4));
+	}
+
+	private static int[] rarest(AvailabilityIndex index, int count, int... candidates) {
+		BitSet set = new BitSet();
+		for (int piece : candidates) {
+			set.set(piece);
+		}
+
+		int[] rarest = new int[count];
+		int found = index.provideRarest(set, rarest);
+		int[] result = Arrays.copyOf(rarest, found);
+		Arrays.sort(result);
+		return result;
+	}
+}